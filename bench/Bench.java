@@ -0,0 +1,89 @@
+package bench;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+//small stand-in for JMH: warmup iterations, then timed iterations that each run the operation as often as fits in the iteration time
+//scores are average time per call with the standard deviation over the measured iterations
+class Bench {
+    interface Op {
+        //the result goes into a volatile field so the JIT can't drop the work
+        long run() throws Exception;
+    }
+
+    record Result(String benchmark, String params, int count, double score, double error, double pixelsPerSecond) {
+    }
+
+    private static volatile long sink;
+
+    private final int warmupIterations;
+    private final int iterations;
+    private final long iterationNanos;
+    private final List<Result> results = new ArrayList<>();
+
+    Bench(int warmupIterations, int iterations, long iterationMillis) {
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+        this.iterationNanos = iterationMillis * 1_000_000L;
+    }
+
+    //pixels is how many pixels one call touches, used for the throughput column
+    void run(String benchmark, String params, long pixels, Op op) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(op);
+        }
+        double[] scores = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            scores[i] = iteration(op);
+        }
+
+        double mean = 0;
+        for (double s : scores) mean += s;
+        mean /= iterations;
+        double variance = 0;
+        for (double s : scores) variance += (s - mean) * (s - mean);
+        double error = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+
+        Result result = new Result(benchmark, params, iterations, mean, error, pixels / (mean / 1e6));
+        results.add(result);
+        System.out.println(format(result));
+    }
+
+    //microseconds per call for one iteration
+    private double iteration(Op op) throws Exception {
+        long calls = 0;
+        long value = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            value += op.run();
+            calls++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+        sink = value;
+        return elapsed / 1000.0 / calls;
+    }
+
+    static String header() {
+        return String.format(Locale.ROOT, "%-16s %-22s %4s %12s %10s %8s %12s", "Benchmark", "Params", "Cnt", "Score", "Error", "Units", "Mpx/s");
+    }
+
+    private static String format(Result r) {
+        return String.format(Locale.ROOT, "%-16s %-22s %4d %12.1f %10.1f %8s %12.1f",
+                r.benchmark(), r.params(), r.count(), r.score(), r.error(), "us/op", r.pixelsPerSecond() / 1e6);
+    }
+
+    //one line per result, so runs can be diffed or plotted to spot regressions
+    void writeCsv(String path) throws IOException {
+        try (PrintWriter out = new PrintWriter(path)) {
+            out.println("benchmark,params,count,score_us,error_us,mpx_per_s");
+            for (Result r : results) {
+                out.println(String.format(Locale.ROOT, "%s,%s,%d,%.3f,%.3f,%.3f",
+                        r.benchmark(), r.params(), r.count(), r.score(), r.error(), r.pixelsPerSecond() / 1e6));
+            }
+        }
+    }
+}
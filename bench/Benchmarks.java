@@ -0,0 +1,308 @@
+package bench;
+
+import distributed.InProcessTransport;
+import distributed.NioTransport;
+import distributed.Transport;
+import util.FrameCodec;
+import util.FrameDiff;
+import util.ImageDecoder;
+import util.LogLevel;
+import util.Logger;
+import util.MaskKernel;
+import util.Options;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+//micro benchmarks for the per frame hot paths, on synthetic frames so no video or ffmpeg is needed
+//java bench.Benchmarks [--filter=diff,fill] [--sizes=360p,1080p] [--motion=0.01,0.1] [--warmup=N] [--iterations=N] [--time=ms] [--csv=file] [--simd]
+public class Benchmarks {
+    private static final String ALL = "diff,mask,fill,pyramid,pixelDifference,pngEncode,pngDecode,codecs,transportThreads,transportNio";
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options(args, 0);
+        Set<String> selected = new HashSet<>(Arrays.asList(options.get("filter", ALL).split(",")));
+        String[] sizes = options.get("sizes", "360p,720p,1080p").split(",");
+        String[] motions = options.get("motion", "0.01,0.1,0.5").split(",");
+        MaskKernel kernel = MaskKernel.select(options.has("simd"));
+        Bench bench = new Bench(options.getInt("warmup", 2), options.getInt("iterations", 5), options.getInt("time", 200));
+
+        //rank 1 of each transport runs in a thread and answers every frame with a one byte ack
+        Transport threads = selected.contains("transportThreads") ? startEcho(InProcessTransport.create(2)) : null;
+        Transport nio = selected.contains("transportNio") ? startEcho(nioPair()) : null;
+
+        System.out.println(Bench.header());
+        for (String size : sizes) {
+            int[] dims = resolution(size.trim());
+            if (dims == null) {
+                Logger.log("Unknown size " + size + ", use 360p, 720p, 1080p, 1440p or 2160p", LogLevel.Warn);
+                continue;
+            }
+            int width = dims[0], height = dims[1];
+            int n = width * height;
+            for (String motionValue : motions) {
+                double motion = Double.parseDouble(motionValue.trim());
+                String params = size.trim() + " " + Math.round(motion * 100) + "%";
+                BufferedImage[] pair = framePair(width, height, motion, 42);
+                BufferedImage prev = pair[0], curr = pair[1];
+                int[] prevPixels = FrameDiff.argbPixels(prev, null);
+                int[] currPixels = FrameDiff.argbPixels(curr, null);
+
+                if (selected.contains("diff")) {
+                    //the whole step a processor does per pair, including reading the BGR bytes ImageIO hands out
+                    FrameDiff frameDiff = new FrameDiff(new Random(7), kernel);
+                    BufferedImage[] out = {null};
+                    bench.run("diff", params, n, () -> {
+                        out[0] = frameDiff.computeDifference(prev, curr, out[0]);
+                        return 1;
+                    });
+                }
+                if (selected.contains("mask")) {
+                    long[] mask = new long[(n + 63) >>> 6];
+                    bench.run("mask", params, n, () -> {
+                        kernel.computeMask(prevPixels, currPixels, mask, 0, n, FrameDiff.SAD_THRESHOLD);
+                        return mask[0];
+                    });
+                }
+                if (selected.contains("fill")) {
+                    //labelling and coloring only, the mask is computed once up front
+                    FillOnly fillOnly = new FillOnly(kernel);
+                    int[] out = new int[n];
+                    bench.run("fill", params, n, () -> {
+                        fillOnly.computeDifference(prevPixels, currPixels, out, width, height);
+                        return out[0];
+                    });
+                }
+                if (selected.contains("pyramid")) {
+                    pyramid(bench, params, prev, curr, kernel);
+                }
+                if (selected.contains("pixelDifference")) {
+                    bench.run("pixelDifference", params, n, () -> {
+                        long sum = 0;
+                        for (int p = 0; p < n; p++) {
+                            sum += FrameDiff.pixelDifference(prevPixels[p], currPixels[p]);
+                        }
+                        return sum;
+                    });
+                }
+
+                BufferedImage diffFrame = new FrameDiff(new Random(7), kernel).computeDifference(prev, curr);
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                if (selected.contains("pngEncode")) {
+                    //diff frames are what the sinks and the MPI ranks encode
+                    bench.run("pngEncode", params, n, () -> {
+                        buffer.reset();
+                        ImageIO.write(diffFrame, "png", buffer);
+                        return buffer.size();
+                    });
+                }
+                buffer.reset();
+                ImageIO.write(curr, "png", buffer);
+                byte[] png = buffer.toByteArray();
+                if (selected.contains("pngDecode")) {
+                    //extracted frames are decoded into a reused image like PngFrameSource does
+                    BufferedImage[] reuse = {ImageDecoder.read(new ByteArrayInputStream(png), null)};
+                    bench.run("pngDecode", params, n, () -> {
+                        reuse[0] = ImageDecoder.read(new ByteArrayInputStream(png), reuse[0]);
+                        return reuse[0].getWidth();
+                    });
+                }
+                if (selected.contains("codecs")) {
+                    codecs(bench, params, curr, diffFrame);
+                }
+                //a png frame to rank 1 and the ack back, the per frame cost of each transport without MPJ's
+                if (threads != null) {
+                    bench.run("transportThreads", params, n, () -> roundTrip(threads, png));
+                }
+                if (nio != null) {
+                    bench.run("transportNio", params, n, () -> roundTrip(nio, png));
+                }
+            }
+        }
+
+        for (Transport transport : new Transport[]{threads, nio}) {
+            if (transport == null) continue;
+            transport.send(1, ECHO_TAG, new byte[0]);
+            transport.receive(1, ECHO_TAG);
+            transport.close();
+        }
+
+        String csv = options.get("csv", null);
+        if (csv != null) {
+            bench.writeCsv(csv);
+            Logger.log("Results written to " + csv, LogLevel.Success);
+        }
+    }
+
+    private static final int ECHO_TAG = 1;
+
+    //--pyramid at 1 to 3 levels against the exact path: time per frame, then how much of the exact result it found
+    //every changed pixel it reports is a real one, so only missed pixels and regions are counted
+    private static void pyramid(Bench bench, String params, BufferedImage prev, BufferedImage curr, MaskKernel kernel) throws Exception {
+        int n = prev.getWidth() * prev.getHeight();
+        int words = (n + 63) >>> 6;
+        FrameDiff exact = new FrameDiff(new Random(7), kernel, 0);
+        exact.computeDifference(prev, curr);
+        long exactPixels = changedPixels(exact.lastMask(), words);
+        int exactRegions = exact.lastRegions().count();
+        for (int levels = 1; levels <= 3; levels++) {
+            FrameDiff frameDiff = new FrameDiff(new Random(7), kernel, levels);
+            BufferedImage[] out = {null};
+            bench.run("pyramid" + levels, params, n, () -> {
+                out[0] = frameDiff.computeDifference(prev, curr, out[0]);
+                return 1;
+            });
+            long found = changedPixels(frameDiff.lastMask(), words);
+            System.out.println(String.format(Locale.ROOT, "  %d levels: %.2f%% of %d changed pixels, %d of %d regions, %d of %d tiles compared",
+                    levels, exactPixels == 0 ? 100.0 : 100.0 * found / exactPixels, exactPixels, frameDiff.lastRegions().count(), exactRegions,
+                    frameDiff.lastComparedTiles(), frameDiff.lastTileCount()));
+        }
+    }
+
+    //every --frame-format on the two kinds of intermediate frames: extracted ones are written by ffmpeg and decoded by
+    //the processors, diff frames are encoded by the sinks and ranks and decoded by makeVideo or rank 0
+    private static void codecs(Bench bench, String params, BufferedImage frame, BufferedImage diffFrame) throws Exception {
+        int n = frame.getWidth() * frame.getHeight();
+        for (FrameCodec codec : new FrameCodec[]{FrameCodec.select("png", -1), FrameCodec.select("png", 1),
+                FrameCodec.select("qoi", -1), FrameCodec.select("raw", -1)}) {
+            //pngEncode and pngDecode already time ImageIO's defaults on their own
+            String name = codec.toString().equals("png") ? "pngDefault" : codec.toString().replace("png level ", "png");
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            bench.run(name + "Encode", params, n, () -> {
+                buffer.reset();
+                codec.write(diffFrame, buffer);
+                return buffer.size();
+            });
+            int diffSize = buffer.size();
+            buffer.reset();
+            codec.write(frame, buffer);
+            byte[] encoded = buffer.toByteArray();
+            BufferedImage[] reuse = {ImageDecoder.read(new ByteArrayInputStream(encoded), null)};
+            bench.run(name + "Decode", params, n, () -> {
+                reuse[0] = ImageDecoder.read(new ByteArrayInputStream(encoded), reuse[0]);
+                return reuse[0].getWidth();
+            });
+            System.out.println(String.format(Locale.ROOT, "  %s: %d KB per frame, %d KB per diff frame", codec, encoded.length / 1024, diffSize / 1024));
+        }
+    }
+
+    private static long changedPixels(long[] mask, int words) {
+        long count = 0;
+        for (int w = 0; w < words; w++) count += Long.bitCount(mask[w]);
+        return count;
+    }
+
+    private static long roundTrip(Transport transport, byte[] data) throws IOException {
+        transport.send(1, ECHO_TAG, data);
+        return transport.receive(1, ECHO_TAG)[0];
+    }
+
+    //returns rank 0, an empty message stops rank 1
+    private static Transport startEcho(Transport[] endpoints) {
+        Thread echo = new Thread(() -> {
+            try {
+                while (true) {
+                    byte[] data = endpoints[1].receive(0, ECHO_TAG);
+                    endpoints[1].send(0, ECHO_TAG, new byte[]{(byte) data.length});
+                    if (data.length == 0) break;
+                }
+                endpoints[1].close();
+            } catch (IOException e) {
+                Logger.log("Echo rank failed: " + e.getMessage(), LogLevel.Error);
+            }
+        }, "echo");
+        echo.setDaemon(true);
+        echo.start();
+        return endpoints[0];
+    }
+
+    //both ends on loopback, rank 1 connects while rank 0 accepts
+    private static Transport[] nioPair() throws Exception {
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        Transport[] endpoints = new Transport[2];
+        Thread worker = new Thread(() -> {
+            try {
+                endpoints[1] = NioTransport.connect(1, 2, "localhost", port);
+            } catch (IOException e) {
+                Logger.log("Could not connect rank 1: " + e.getMessage(), LogLevel.Error);
+            }
+        });
+        worker.start();
+        endpoints[0] = NioTransport.connect(0, 2, "localhost", port);
+        worker.join();
+        return endpoints;
+    }
+
+    //computes the mask on the first call only, so repeated calls time just the region labelling
+    private static class FillOnly extends FrameDiff {
+        private boolean maskReady;
+
+        FillOnly(MaskKernel kernel) {
+            super(new Random(7), kernel);
+        }
+
+        @Override
+        protected void computeMask(int[] prev, int[] curr, int from, int to) {
+            if (!maskReady) {
+                super.computeMask(prev, curr, from, to);
+                maskReady = true;
+            }
+        }
+    }
+
+    private static int[] resolution(String name) {
+        return switch (name) {
+            case "360p" -> new int[]{640, 360};
+            case "720p" -> new int[]{1280, 720};
+            case "1080p" -> new int[]{1920, 1080};
+            case "1440p" -> new int[]{2560, 1440};
+            case "2160p" -> new int[]{3840, 2160};
+            default -> null;
+        };
+    }
+
+    //a noisy gradient and a copy of it with rectangles repainted until about motion of the pixels changed
+    //frames are TYPE_3BYTE_BGR since that is what ImageIO returns for the extracted pngs
+    static BufferedImage[] framePair(int width, int height, double motion, long seed) {
+        Random random = new Random(seed);
+        BufferedImage prev = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = 60 + x * 120 / width + random.nextInt(6);
+                int g = 90 + y * 100 / height + random.nextInt(6);
+                int b = 140 + random.nextInt(6);
+                prev.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+
+        BufferedImage curr = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = curr.createGraphics();
+        g.drawImage(prev, 0, 0, null);
+        long target = Math.round(motion * width * height);
+        long painted = 0;
+        //objects a few percent of the frame wide, like people or cars in the test videos
+        int maxSide = Math.max(4, width / 12);
+        while (painted < target) {
+            int w = 4 + random.nextInt(maxSide);
+            int h = 4 + random.nextInt(maxSide);
+            g.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            g.fillRect(random.nextInt(width), random.nextInt(height), w, h);
+            painted += (long) w * h;
+        }
+        g.dispose();
+        return new BufferedImage[]{prev, curr};
+    }
+}
@@ -1,54 +1,100 @@
 package distributed;
 
-import mpi.MPI;
-import mpi.MPIException;
+import parallel.FramePipeline;
 import util.*;
 
-import javax.imageio.ImageIO;
-import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntUnaryOperator;
 
 public class DistributedProcessor {
-    private static final int CHUNK_SIZE = 512 * 1024; // 512KB chunks for sending bytes so we limit overhead but don't overload the network/buffer overflow
-    public void processFramesD(String imgPath, String outputPath, int fps) throws IOException, MPIException, InterruptedException {
-        int rank = MPI.COMM_WORLD.Rank();
-        int size = MPI.COMM_WORLD.Size();
+    public static final int CHUNK_SIZE = 512 * 1024; // 512KB chunks for sending bytes so we limit overhead but don't overload the network/buffer overflow
+    //one per thread, with --threads every diff thread of the pipeline has its own scratch buffers
+    private final ThreadLocal<FrameDiff> frameDiff = ThreadLocal.withInitial(FrameDiff::new);
+    private BufferedImage diffBuffer; //every diff is encoded or written before the next one, so one output image is reused
+    private static final int TAG_FRAME = 1; //frames from rank 0, a rank gets them in the order it needs them
+    private static final int TAG_REQUEST = 2; //worker asks for a batch, carries the result of the previous one
+    private static final int TAG_TASK = 3; //rank 0 answers with the next batch, an empty one means stop
+    private final Transport transport;
+    //--sparse: workers send MotionMask runs instead of encoded diffs and rank 0 paints them over its own copy of the frame
+    private final boolean sparse;
+    private final boolean localRead;
+    private final int batchSize;
+    private final int inflight; //results a worker may have on the way to rank 0 before it waits
+    private final int reorderWindow; //results an ordered sink on rank 0 may have waiting, 0 picks it from the ranks and windows
+    private final int threads; //diff threads per rank, more than one runs the rank's pairs through the parallel pipeline
+    private final boolean regions; //workers send their region stats along with the diffs, for the file or for --track
+    private final boolean render; //false with --no-render, workers send only the region stats
+    private final AtomicInteger unchangedPairs = new AtomicInteger(); //this rank's pairs that skipped the pixel pass
+
+    public DistributedProcessor(Transport transport) {
+        this(new Options(new String[0], 0), transport);
+    }
+
+    public DistributedProcessor(Options options, Transport transport) {
+        this.transport = transport;
+        //sparse results need the extracted frames on rank 0, so they are only used with the frame folder
+        this.sparse = options.has("sparse") && !options.has("stream");
+        this.localRead = options.has("local-read");
+        this.batchSize = Math.max(1, options.getInt("batch", 8));
+        this.inflight = Math.max(1, options.getInt("inflight", 4));
+        this.reorderWindow = Math.max(0, options.getInt("reorder-window", 0));
+        this.render = !options.has("no-render");
+        this.regions = options.has("regions") || options.has("track") || !render;
+        //--hybrid: one rank per node with the node's cores shared by its ranks (--ranks-per-node, all of them for the threads transport)
+        //instead of one single threaded rank per core, --threads=N sets the count directly
+        int ranksPerNode = Math.max(1, options.getInt("ranks-per-node", transport instanceof InProcessTransport ? transport.size() : 1));
+        int cores = Runtime.getRuntime().availableProcessors();
+        this.threads = Math.max(1, options.getInt("threads", options.has("hybrid") ? Math.max(1, cores / ranksPerNode) : 1));
+        if (threads > 1 && transport.rank() == 0) {
+            Logger.log("Every rank diffs its frames on " + threads + " threads", LogLevel.Info);
+        }
+    }
+
+    public void processFramesD(String imgPath, String outputPath, int fps) throws IOException, InterruptedException {
+        FrameSink sink = transport.rank() == 0 ? new PngFrameSink(outputPath, fps) : null;
+        processFramesD(imgPath, sink);
+    }
+
+    //the sink is only used on rank 0
+    public void processFramesD(String imgPath, FrameSink sink) throws IOException, InterruptedException {
+        int rank = transport.rank();
+        int size = transport.size();
         long startTime = System.currentTimeMillis();
 
 
         if (rank == 0) {
             String[] filenames = null;
-            int[] count = new int[1];
-            // Setup output directory
-            File outputDir = new File(outputPath);
-            if (outputDir.exists()) deleteRecursively(outputDir);
-            outputDir.mkdirs();
 
             // Load all image filenames
-            File[] files = new File(imgPath).listFiles((d, name) -> name.endsWith(".png"));
-            if (files == null || files.length == 0) {
+            File[] files = PngFrameSource.listFrames(imgPath);
+            if (files.length == 0) {
                 Logger.log("No frames found.", LogLevel.Error);
-                count[0] = 0;
-                MPI.COMM_WORLD.Bcast(count, 0, 1, MPI.INT, 0);
+                broadcastCount(0);
                 return;
             }
-            Arrays.sort(files, Comparator.comparingInt(f -> Integer.parseInt(f.getName().replaceAll("\\D", ""))));
             filenames = Arrays.stream(files).map(File::getName).toArray(String[]::new);
             int totalFrames = filenames.length;
-            count[0] = totalFrames;
-            MPI.COMM_WORLD.Bcast(count, 0, 1, MPI.INT, 0);
+            broadcastCount(totalFrames);
+
+            String[] names = filenames;
+            ResultCollector collector = newCollector(sink, totalFrames, sparse ? (i, reuse) -> loadSingleFrame(imgPath, names[i], reuse) : null);
 
-            // Send assigned frames to each rank
+            // Send assigned frames to each rank, results that already came back are written in between
             for (int r = 1; r < size; r++) {
                 int[] range = computeWorkRange(r, size, totalFrames);
-                int start = range[0];
+                int start = FrameDiff.backgroundLeadStart(range[0]); //with --background the lead-in frames go first
                 int end = range[1];
                 for (int i = start; i < end; i++) {
-                    byte[] imgBytes = frameToBytes(loadSingleFrame(imgPath, filenames[i]));
-                    sendChunkedBytes(imgBytes, r, 1000 + i); //tag so the node can identify the frame
+                    byte[] imgBytes = frameToBytes(loadSingleFrame(imgPath, filenames[i], null));
+                    sendDraining(transport.sendAsync(r, TAG_FRAME, imgBytes), collector, r);
                 }
             }
 
@@ -56,296 +102,693 @@ public class DistributedProcessor {
             int[] myRange = computeWorkRange(rank, size, totalFrames);
             int myStart = myRange[0];
             int myEnd = myRange[1];
-            List<byte[]> myDiffs = processLocalChunk(filenames, myStart, myEnd, imgPath);
-
-            // Save own diffs
-            for (int i = 0; i < myDiffs.size(); i++) {
-                try (FileOutputStream fos = new FileOutputStream(new File(outputPath, filenames[i + 1]))) {
-                    fos.write(myDiffs.get(i));
-                }
+            if (threads > 1) {
+                diffOwnRange(rangeSource(myStart, myEnd, (i, reuse) -> loadSingleFrame(imgPath, names[i], reuse)), myStart, myEnd, collector);
+            } else {
+                processLocalChunk(filenames, myStart, myEnd, imgPath, collector.output(), collector);
+                collector.awaitAll();
             }
+            collector.logStats();
 
-            // Receive diffs from other ranks
+            Logger.log("Finished processing frames in " + (System.currentTimeMillis() - startTime) + " ms", LogLevel.Info);
 
-                for (int r = 1; r < size; r++) {
-                    int[] range = computeWorkRange(r, size, totalFrames);
-                    int start = range[0];
-                    int end = range[1];
-                    for (int i = start + 1; i < end; i++) {
-                            Logger.log("Receiving diff for frame " + (i + 1) + " from rank " + r, LogLevel.Debug);
-                            byte[] diffBytes = recvChunkedBytes(r, 20000 + i);
-                            Logger.log("Received diff for frame " + (i + 1) + " from rank " + r, LogLevel.Debug);
-                            try (FileOutputStream fos = new FileOutputStream(new File(outputPath, filenames[i]))) {
-                                fos.write(diffBytes);
-                            }
+            sink.finish();
+            Logger.log("Distributed processing complete.", LogLevel.Status);
 
-                }
-            }
+        } else {
+            processAsWorker(rank, size);
+        }
 
+    }
 
-            Logger.log("Finished processing frames in " + (System.currentTimeMillis() - startTime) + " ms", LogLevel.Info);
+    //same as above but rank 0 reads frames from a streamed source, the source and sink are only used on rank 0
+    public void processFramesD(FrameSource source, FrameSink sink) throws IOException, InterruptedException {
+        int rank = transport.rank();
+        int size = transport.size();
+        long startTime = System.currentTimeMillis();
 
-            new VideoProcessing().makeVideo(outputPath, "output.mp4", fps);
-            Logger.log("Distributed processing complete.", LogLevel.Status);
+        if (rank != 0) {
+            processAsWorker(rank, size);
+            return;
+        }
 
-        } else {
-            List<BufferedImage> diffs = new ArrayList<>();
-            int[] count = new int[1];
-            MPI.COMM_WORLD.Bcast(count, 0, 1, MPI.INT, 0);
-            int totalFrames = count[0];
-
-            int[] range = computeWorkRange(rank, size, totalFrames);
-            Logger.log("Rank " + rank + " processing frames from " + range[0] + " to " + range[1], LogLevel.Debug);
-            int start = range[0];
-            int end = range[1];
-            List<byte[]> diffBytesList = new ArrayList<>();
-
-            BufferedImage prevFrame = null;
-
-            for (int i = start; i < end; i++) {
-                byte[] imgBytes = recvChunkedBytes(0, 1000 + i);
-                Logger.log("Rank " + rank + " received frame: " + (i + 1), LogLevel.Debug);
-                BufferedImage currFrame = ImageIO.read(new ByteArrayInputStream(imgBytes));
-                Logger.log("Rank " + rank + " processing frame: " + (i + 1), LogLevel.Debug);
-
-                if (currFrame == null) {
-                    Logger.log("ImageIO failed to decode image from rank " + rank, LogLevel.Error);
-                    continue;
-                }
+        int totalFrames = Math.max(source.frameCount(), 0);
+        if (totalFrames == 0) {
+            Logger.log("Frame count of the stream is unknown, nothing to distribute.", LogLevel.Error);
+        }
+        broadcastCount(totalFrames);
+        if (totalFrames == 0) return;
+
+        int[][] ranges = new int[size][];
+        int[] sendFrom = new int[size];
+        for (int r = 0; r < size; r++) {
+            ranges[r] = computeWorkRange(r, size, totalFrames);
+            sendFrom[r] = FrameDiff.backgroundLeadStart(ranges[r][0]);
+        }
+        ResultCollector collector = newCollector(sink, totalFrames, null);
+        FrameSink out = collector.output();
+
+        // Frames arrive in order, so rank 0 diffs its own range as it goes and forwards the rest
+        BufferedImage prev = null;
+        int received = 0;
+        for (int i = 0; i < totalFrames; i++) {
+            BufferedImage curr = (received == i) ? source.read(null) : null;
+            if (curr != null) {
+                received++;
+            }
 
-                if (prevFrame != null) {
-                    BufferedImage diff = computeDifference(prevFrame, currFrame);
-                    byte[] diffBytes = frameToBytes(diff);
-                    diffBytesList.add(diffBytes);  // store compressed image only
-                    // Store for later
+            if (i < ranges[0][1]) {
+                if (prev != null && curr != null) {
+                    writeDiff(out, i, prev, curr);
+                } else if (i > 0) {
+                    out.skip(i);
                 }
+                prev = curr;
+            }
+            collector.poll();
 
-                prevFrame = currFrame;
+            byte[] imgBytes = null;
+            for (int r = 1; r < size; r++) {
+                if (i >= sendFrom[r] && i < ranges[r][1]) {
+                    if (imgBytes == null) {
+                        //an empty payload tells the worker the stream ended before this frame
+                        imgBytes = (curr != null) ? frameToBytes(curr) : new byte[0];
+                    }
+                    sendDraining(transport.sendAsync(r, TAG_FRAME, imgBytes), collector, r);
+                }
             }
+        }
+        if (received < totalFrames) {
+            Logger.log("Stream ended after " + received + " of " + totalFrames + " expected frames", LogLevel.Warn);
+        }
 
-            Logger.log("Rank " + rank + " finished processing. Sending diffs...", LogLevel.Info);
+        collector.awaitAll();
+        collector.logStats();
 
-            // Now send all diffs at once
-            for (int i = 1; i < diffBytesList.size() + 1; i++) {
-                sendChunkedBytes(diffBytesList.get(i - 1), 0, 20000 + (start + i));
-            }
+        Logger.log("Finished processing frames in " + (System.currentTimeMillis() - startTime) + " ms", LogLevel.Info);
 
+        sink.finish();
+        Logger.log("Distributed processing complete.", LogLevel.Status);
+    }
 
-            Logger.log("Rank " + rank + " done sending all diffs", LogLevel.Info);
+    //--local-read: rank 0 only broadcasts the sorted filenames and every rank decodes its own range from the frame folder
+    //the folder has to be visible to all ranks, same machine or a shared filesystem
+    public void processFramesLocal(String imgPath, FrameSink sink) throws IOException, InterruptedException {
+        int rank = transport.rank();
+        int size = transport.size();
+        long startTime = System.currentTimeMillis();
+
+        String[] filenames = null;
+        if (rank == 0) {
+            filenames = Arrays.stream(PngFrameSource.listFrames(imgPath)).map(File::getName).toArray(String[]::new);
+        }
+        filenames = broadcastNames(filenames);
+        int totalFrames = filenames.length;
+        if (totalFrames == 0) {
+            if (rank == 0) Logger.log("No frames found.", LogLevel.Error);
+            return;
         }
 
+        int[] range = computeWorkRange(rank, size, totalFrames);
+        File[] files = new File[range[1] - range[0]];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new File(imgPath, filenames[range[0] + i]);
+        }
+        String[] names = filenames;
+        try (FrameSource source = new PngFrameSource(files, 0)) {
+            processOwnRange(source, range, totalFrames, sink, startTime, sparse ? (i, reuse) -> loadSingleFrame(imgPath, names[i], reuse) : null,
+                    (i, reuse) -> loadSingleFrame(imgPath, names[i], reuse));
+        }
     }
 
-    private void deleteRecursively(File file) {
-        if (file.isDirectory()) {
-            for (File sub : file.listFiles()) {
-                deleteRecursively(sub);
+    //--stream with --local-read: every rank runs its own ffmpeg over its part of the video instead of getting frames from rank 0
+    public void processFramesLocalStream(String videoPath, int fps, FrameSink sink) throws IOException, InterruptedException {
+        int rank = transport.rank();
+        int size = transport.size();
+        long startTime = System.currentTimeMillis();
+        VideoProcessing vp = new VideoProcessing();
+
+        int count = 0;
+        if (rank == 0) {
+            count = Math.max(vp.probe(videoPath).frameCount(fps), 0);
+            if (count == 0) {
+                Logger.log("Frame count of the stream is unknown, nothing to distribute.", LogLevel.Error);
             }
         }
-        if (!file.delete()) {
-            Logger.log("Failed to delete file: " + file.getAbsolutePath(), LogLevel.Error);
+        int totalFrames = broadcastCount(count);
+        if (totalFrames == 0) return;
+
+        int[] range = computeWorkRange(rank, size, totalFrames);
+        //with --background the stream starts at the lead-in frames, which the model takes before the range
+        int lead = FrameDiff.backgroundLeadStart(range[0]);
+        try (FrameSource source = vp.openFrameStream(videoPath, fps, lead, range[1] - lead)) {
+            processOwnRange(source, range, totalFrames, sink, startTime, null, (i, reuse) -> source.read(reuse));
         }
     }
-    private byte[] frameToBytes(BufferedImage img) throws IOException {
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-            ImageIO.write(img, "PNG", baos);
-            return baos.toByteArray();
+
+    //--farm: rank 0 keeps handing out batches of --batch frame pairs to whichever worker asks next
+    //instead of one fixed range per rank, so slow nodes and busy parts of the video don't decide the finish time
+    public void processFramesFarm(String imgPath, FrameSink sink) throws IOException, InterruptedException {
+        int rank = transport.rank();
+        int size = transport.size();
+        long startTime = System.currentTimeMillis();
+
+        String[] filenames = null;
+        if (rank == 0) {
+            filenames = Arrays.stream(PngFrameSource.listFrames(imgPath)).map(File::getName).toArray(String[]::new);
+        }
+        filenames = broadcastNames(filenames);
+        int totalFrames = filenames.length;
+        if (totalFrames == 0) {
+            if (rank == 0) Logger.log("No frames found.", LogLevel.Error);
+            return;
+        }
+
+        if (rank != 0) {
+            farmWorker(rank, imgPath, filenames);
+            return;
+        }
+        if (size == 1) {
+            //nobody to hand batches to
+            processLocalChunk(filenames, 0, totalFrames, imgPath, sink, null);
+        } else {
+            farmMaster(size, imgPath, filenames, sink);
         }
+
+        Logger.log("Finished processing frames in " + (System.currentTimeMillis() - startTime) + " ms", LogLevel.Info);
+
+        sink.finish();
+        Logger.log("Distributed processing complete.", LogLevel.Status);
     }
 
-    private List<byte[]> processLocalChunk(String[] filenames, int start, int end, String path) throws IOException {
-        List<byte[]> diffs = new ArrayList<>();
-        BufferedImage prev = loadSingleFrame(path, filenames[start]);
-        for (int i = start + 1; i < end; i++) {
-            BufferedImage curr = loadSingleFrame(path, filenames[i]);
-            BufferedImage diff = computeDifference(prev, curr);
-            diffs.add(frameToBytes(diff));
-            prev = curr;
+    //rank 0 only coordinates: it answers requests, sends frames unless workers read them themselves and collects the diffs
+    //results stream in while the workers compute, so one probe on any tag serves both kinds of message
+    //for an ordered sink a batch is only handed out once it fits the reorder window of two batches per worker, a worker
+    //that asks earlier waits for its answer until the output has caught up with the slowest one
+    private void farmMaster(int size, String imgPath, String[] filenames, FrameSink sink) throws IOException {
+        int totalFrames = filenames.length;
+        int window = reorderWindow > 0 ? Math.max(reorderWindow, batchSize) : 2 * (size - 1) * batchSize;
+        ResultCollector collector = new ResultCollector(transport, sink, totalFrames, totalFrames - 1,
+                sparse ? (i, reuse) -> loadSingleFrame(imgPath, filenames[i], reuse) : null, window, null);
+
+        long[] busyNanos = new long[size];
+        long[] latencyNanos = new long[size];
+        long[] maxLatencyNanos = new long[size];
+        long[] assignedAt = new long[size];
+        int[] batches = new int[size];
+        int[] pairs = new int[size];
+        long farmStart = System.nanoTime();
+        ArrayDeque<Integer> waiting = new ArrayDeque<>(); //workers that asked and got no answer yet
+        int[] lastEnd = new int[size]; //end of each worker's last batch, a batch starting there continues its background model
+
+        int next = 1; //next frame whose diff has not been handed out, the pair is (next - 1, next)
+        int active = size - 1;
+        while (active > 0 || !collector.done()) {
+            Transport.Envelope envelope = transport.probe(Transport.ANY_SOURCE, Transport.ANY_TAG);
+            int worker = envelope.source();
+            if (envelope.tag() == ResultCollector.TAG_RESULT) {
+                collector.receive(worker);
+            } else {
+                long[] request = Transport.unpack(transport.receive(worker, TAG_REQUEST));
+                int doneStart = (int) request[1];
+                int doneEnd = (int) request[2];
+                if (doneStart >= 0) {
+                    //the diffs of the batch were sent before the request, so they have all been received by now
+                    long latency = System.nanoTime() - assignedAt[worker];
+                    latencyNanos[worker] += latency;
+                    maxLatencyNanos[worker] = Math.max(maxLatencyNanos[worker], latency);
+                    busyNanos[worker] += request[3];
+                    batches[worker]++;
+                    pairs[worker] += doneEnd - doneStart;
+                }
+                waiting.add(worker);
+            }
+
+            while (!waiting.isEmpty()) {
+                if (next < totalFrames) {
+                    int end = Math.min(next + batchSize, totalFrames);
+                    //with nothing handed out the output is at next, so a batch always fits then
+                    if (!collector.accepts(end - 1)) break;
+                    worker = waiting.poll();
+                    Logger.log("Giving frames " + next + " to " + end + " to rank " + worker, LogLevel.Debug);
+                    transport.send(worker, TAG_TASK, Transport.pack(next, end));
+                    assignedAt[worker] = System.nanoTime();
+                    //a worker that doesn't continue its last batch also needs the lead-in frames with --background
+                    int from = lastEnd[worker] == next ? next - 1 : FrameDiff.backgroundLeadStart(next - 1);
+                    lastEnd[worker] = end;
+                    if (!localRead) {
+                        //the frame files go out as they are, rank 0 never decodes them
+                        for (int i = from; i < end; i++) {
+                            sendDraining(sendFrameFile(worker, imgPath, filenames[i]), collector, worker);
+                        }
+                    }
+                    next = end;
+                } else {
+                    transport.send(waiting.poll(), TAG_TASK, Transport.pack(0, 0));
+                    active--;
+                }
+            }
+        }
+
+        long elapsed = System.nanoTime() - farmStart;
+        for (int r = 1; r < size; r++) {
+            Logger.log("Rank " + r + ": " + batches[r] + " batches, " + pairs[r] + " pairs, busy " + busyNanos[r] / 1_000_000 + " ms ("
+                    + (elapsed > 0 ? busyNanos[r] * 100 / elapsed : 0) + "%), batch latency avg "
+                    + (batches[r] > 0 ? latencyNanos[r] / batches[r] / 1_000_000 : 0) + " ms, max " + maxLatencyNanos[r] / 1_000_000 + " ms", LogLevel.Info);
         }
-        return diffs;
+        collector.logStats();
     }
-    private void sendChunkedBytes(byte[] data, int dest, int tagBase) throws MPIException {
-        Logger.log("Entered sendChunckedBytes");
-        int totalLen = data.length;
-        int chunks = (totalLen + CHUNK_SIZE - 1) / CHUNK_SIZE;
-
-        // Send metadata (blocking)
-        MPI.COMM_WORLD.Send(new int[]{totalLen, chunks}, 0, 2, MPI.INT, dest, tagBase);
-
-        // Prepare request array
-        mpi.Request[] requests = new mpi.Request[chunks];
-        // Post all chunk sends non-blocking
-        for (int i = 0; i < chunks; i++) {
-            int start = i * CHUNK_SIZE;
-            int len = Math.min(CHUNK_SIZE, totalLen - start);
-            Logger.log("Sending chunk " + i + " of " + chunks, LogLevel.Debug);
-            requests[i] = MPI.COMM_WORLD.Isend(data, start, len, MPI.BYTE, dest, tagBase + 1 + i);
-        }
-
-        // Wait for all sends to complete
-        mpi.Request.Waitall(requests);
+
+    private void farmWorker(int rank, String imgPath, String[] filenames) throws IOException, InterruptedException {
+        long[] request = {rank, -1, -1, 0};
+        StreamingDiffSink diffs = newDiffSink();
+        //the two frames of the last batch are decoded into again
+        BufferedImage spare = null;
+        BufferedImage last = null;
+        int batches = 0;
+        long lastEnd = 0;
+
+        while (true) {
+            transport.send(0, TAG_REQUEST, Transport.pack(request));
+            long[] task = Transport.unpack(transport.receive(0, TAG_TASK));
+            if (task[0] >= task[1]) break;
+
+            long batchStart = System.nanoTime();
+            long[] waiting = new long[1]; //time spent receiving frames, not counted as busy
+            //a batch that doesn't continue the last one brings its background model up to date over the lead-in frames
+            if (task[0] != lastEnd) {
+                frameDiff.get().startBackground((int) task[0] - 1, (i, reuse) -> readFarmFrame(imgPath, filenames, i, reuse, waiting));
+            }
+            lastEnd = task[1];
+            if (threads > 1) {
+                int first = (int) task[0] - 1;
+                diffRangeParallel(rangeSource(first, (int) task[1], (i, reuse) -> readFarmFrame(imgPath, filenames, i, reuse, waiting)),
+                        first, (int) task[1], diffs);
+                batches++;
+                request[1] = task[0];
+                request[2] = task[1];
+                request[3] = System.nanoTime() - batchStart - waiting[0];
+                continue;
+            }
+            BufferedImage prev = readFarmFrame(imgPath, filenames, (int) task[0] - 1, spare, waiting);
+            spare = last;
+            for (int i = (int) task[0]; i < task[1]; i++) {
+                BufferedImage curr = readFarmFrame(imgPath, filenames, i, spare, waiting);
+                if (prev != null && curr != null) {
+                    writeDiff(diffs, i, prev, curr);
+                } else {
+                    diffs.skip(i);
+                }
+                spare = prev;
+                prev = curr;
+            }
+            last = prev;
+            batches++;
+            request[1] = task[0];
+            request[2] = task[1];
+            request[3] = System.nanoTime() - batchStart - waiting[0];
+        }
+        diffs.finish();
+        Logger.log("Rank " + rank + " done after " + batches + " batches", LogLevel.Info);
     }
 
-    private byte[] recvChunkedBytes(int source, int tagBase) throws MPIException {
-        Logger.log("Entered recvChunckedBytes");
-        int[] meta = new int[2];
-
-        // Receive metadata (blocking)
-        MPI.COMM_WORLD.Recv(meta, 0, 2, MPI.INT, source, tagBase);
-        int totalLen = meta[0], chunks = meta[1];
-        byte[] data = new byte[totalLen];
-
-        // Prepare request array
-        mpi.Request[] requests = new mpi.Request[chunks];
-        // Post all chunk receives non-blocking
-        int offset = 0;
-        for (int i = 0; i < chunks; i++) {
-            int len = Math.min(CHUNK_SIZE, totalLen - offset);
-            Logger.log("Receiving chunk " + i + " of " + chunks, LogLevel.Debug);
-            requests[i] = MPI.COMM_WORLD.Irecv(data, offset, len, MPI.BYTE, source, tagBase + 1 + i);
-            offset += len;
-        }
-        //wait for all receives to complete
-        mpi.Request.Waitall(requests);
-
-        return data;
+    private BufferedImage readFarmFrame(String imgPath, String[] filenames, int i, BufferedImage reuse, long[] waiting) throws IOException {
+        if (localRead) {
+            return loadSingleFrame(imgPath, filenames[i], reuse);
+        }
+        long t0 = System.nanoTime();
+        byte[] bytes = transport.receive(0, TAG_FRAME);
+        waiting[0] += System.nanoTime() - t0;
+        return bytes.length == 0 ? null : ImageDecoder.read(new ByteArrayInputStream(bytes), reuse);
     }
 
+    //the frame file goes out as it is, an empty payload tells the worker the frame is missing
+    private Transport.SendHandle sendFrameFile(int dest, String imgPath, String filename) throws IOException {
+        Path file = new File(imgPath, filename).toPath();
+        if (Files.isReadable(file)) {
+            try {
+                return transport.sendFile(dest, TAG_FRAME, file);
+            } catch (NoSuchFileException e) {
+                //gone since the check, nothing was sent yet
+            }
+        }
+        Logger.log("IO error reading image " + filename, LogLevel.Error);
+        return transport.sendAsync(dest, TAG_FRAME, new byte[0]);
+    }
 
+    //source holds frames range[0] until range[1], rank 0 writes to the sink and takes the other ranks' diffs as they come in
+    //lead loads the frames before the range that warm up a background model
+    private void processOwnRange(FrameSource source, int[] range, int totalFrames, FrameSink sink, long startTime, ResultCollector.FrameLoader originals,
+                                 FrameDiff.FrameLoader lead) throws IOException, InterruptedException {
+        int rank = transport.rank();
+        int size = transport.size();
+        Logger.log("Rank " + rank + " reading frames " + range[0] + " to " + range[1] + " itself", LogLevel.Debug);
+        frameDiff.get().startBackground(range[0], lead);
+
+        if (rank != 0) {
+            StreamingDiffSink diffs = newDiffSink();
+            if (threads > 1) {
+                diffRangeParallel(source, range[0], range[1], diffs);
+            } else {
+                diffRange(source, range[0], range[1], diffs, null);
+            }
+            diffs.finish();
+            Logger.log("Rank " + rank + " done sending " + diffs.bytes() / 1024 + " KB of diffs", LogLevel.Info);
+            return;
+        }
 
-        private int[] computeWorkRange(int rank, int size, int total) {
-            int base = total / size;
-            int extra = total % size;
+        ResultCollector collector = newCollector(sink, totalFrames, originals);
+        diffOwnRange(source, range[0], range[1], collector);
+        collector.logStats();
 
-            int start = rank * base + Math.min(rank, extra);
-            int end = start + base + (rank < extra ? 1 : 0);
-            int readStart = (rank == 0) ? start : start - 1; // include previous frame for diff except for rank 0
+        Logger.log("Finished processing frames in " + (System.currentTimeMillis() - startTime) + " ms", LogLevel.Info);
 
-            return new int[]{readStart, end, start};
-        }
+        sink.finish();
+        Logger.log("Distributed processing complete.", LogLevel.Status);
+    }
 
-        private BufferedImage loadSingleFrame(String path, String filename) {
-            File imgFile = new File(path, filename);
-            BufferedImage img = null;
-            try {
-                img = ImageIO.read(imgFile);
-                if (img == null) {
-                    Logger.log("Failed to read image: " + filename, LogLevel.Warn);
+    //reads frames first until end from source and writes the diffs for first + 1 until end
+    //a source leaves missing frames out and lastIndex says where the next one belongs, the pairs around a gap are skipped
+    //on rank 0 the collector takes waiting results after every frame
+    private void diffRange(FrameSource source, int first, int end, FrameSink sink, ResultCollector collector) throws IOException {
+        BufferedImage prev = null;
+        BufferedImage spare = null;
+        int prevIndex = first - 1;
+        BufferedImage curr;
+        while ((curr = source.read(spare)) != null) {
+            int i = first + source.lastIndex();
+            for (int missing = Math.max(prevIndex + 1, first + 1); missing < i; missing++) sink.skip(missing);
+            if (i > first) {
+                if (prev != null && prevIndex == i - 1) {
+                    writeDiff(sink, i, prev, curr);
+                } else {
+                    sink.skip(i);
                 }
-            } catch (IOException e) {
-                Logger.log("IO error reading image " + filename + ": " + e.getMessage(), LogLevel.Error);
-            } catch (OutOfMemoryError e) {
-                Logger.log("Out of memory loading image " + filename, LogLevel.Error);
-                System.gc();
             }
-            return img;
+            spare = prev;
+            prev = curr;
+            prevIndex = i;
+            if (collector != null) collector.poll();
         }
-    private BufferedImage computeDifference(BufferedImage prevFrame, BufferedImage currentFrame){
-        int width=prevFrame.getWidth();
-        int height=prevFrame.getHeight();
+        for (int missing = Math.max(prevIndex + 1, first + 1); missing < end; missing++) sink.skip(missing);
+    }
 
-        boolean [][] visited = new boolean[width][height];
-        Color[] colors=randomColors(10);
-        int colorIndex=0; //index of the color to use for coloring the contiguous area
+    //names is only read on rank 0, every rank gets the list back
+    private String[] broadcastNames(String[] names) throws IOException {
+        byte[] bytes = names == null ? null : String.join("\n", names).getBytes(StandardCharsets.UTF_8);
+        bytes = transport.broadcast(bytes, 0);
+        if (bytes.length == 0) {
+            return new String[0];
+        }
+        return new String(bytes, StandardCharsets.UTF_8).split("\n");
+    }
 
-        BufferedImage diffFrame=new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                if(!visited[i][j]) {
+    //count is only read on rank 0
+    private int broadcastCount(int count) throws IOException {
+        return (int) Transport.unpack(transport.broadcast(Transport.pack(count), 0))[0];
+    }
 
-                    int prevPixel = prevFrame.getRGB(i, j);
-                    int currPixel = currentFrame.getRGB(i, j);
-                    double diff = pixelDifference(prevPixel, currPixel);
+    //fixed ranges: every rank but 0 sends its results in about frame order, so an ordered sink on rank 0 keeps a few
+    //in-flight windows per rank waiting and takes the rest from each rank when its frames are due
+    private ResultCollector newCollector(FrameSink sink, int totalFrames, ResultCollector.FrameLoader originals) {
+        int size = transport.size();
+        int[] starts = new int[size];
+        for (int r = 0; r < size; r++) {
+            starts[r] = computeWorkRange(r, size, totalFrames)[2];
+        }
+        IntUnaryOperator owner = i -> {
+            int r = size - 1;
+            while (r > 0 && starts[r] > i) r--;
+            return r;
+        };
+        //a rank with --threads sends up to its pipeline's queue out of order
+        int window = reorderWindow > 0 ? reorderWindow : 2 * size * (inflight + 3 * threads);
+        return new ResultCollector(transport, sink, totalFrames, expectedResults(size, totalFrames), originals, window, owner);
+    }
 
+    //every rank but 0 sends one result per frame of its range after the first
+    private int expectedResults(int size, int totalFrames) {
+        int expected = 0;
+        for (int r = 1; r < size; r++) {
+            int[] range = computeWorkRange(r, size, totalFrames);
+            expected += Math.max(0, range[1] - range[0] - 1);
+        }
+        return expected;
+    }
 
-                    // check if the pixel has changed significantly
-                    //Logger.log("Pixel difference at " + i + ", " + j + ": " + pixelDifference(prevPixel, currPixel), LogLevel.Debug);
+    private void processAsWorker(int rank, int size) throws IOException, InterruptedException {
+        int totalFrames = broadcastCount(0);
+        if (totalFrames == 0) return;
+
+        int[] range = computeWorkRange(rank, size, totalFrames);
+        Logger.log("Rank " + rank + " processing frames from " + range[0] + " to " + range[1], LogLevel.Debug);
+        int start = range[0];
+        int end = range[1];
+        //with --background rank 0 sends the lead-in frames first, they only go to the model
+        frameDiff.get().startBackground(start, (i, reuse) -> {
+            byte[] imgBytes = transport.receive(0, TAG_FRAME);
+            return imgBytes.length == 0 ? null : ImageDecoder.read(new ByteArrayInputStream(imgBytes), reuse);
+        });
+        StreamingDiffSink diffs = newDiffSink();
+        if (threads > 1) {
+            diffRangeParallel(rangeSource(start, end, (i, reuse) -> {
+                byte[] imgBytes = transport.receive(0, TAG_FRAME);
+                return imgBytes.length == 0 ? null : ImageDecoder.read(new ByteArrayInputStream(imgBytes), reuse);
+            }), start, end, diffs);
+            diffs.finish();
+            Logger.log("Rank " + rank + " done sending " + diffs.bytes() / 1024 + " KB of diffs", LogLevel.Info);
+            return;
+        }
 
-                    if (diff > Constants.PIXEL_DIFF_THRESHOLD) {
+        BufferedImage prevFrame = null;
+        BufferedImage spare = null; //the frame before prevFrame, decoded into again so a rank only ever holds two frames
 
-                        // recolor pixel if difference
+        for (int i = start; i < end; i++) {
+            byte[] imgBytes = transport.receive(0, TAG_FRAME);
+            Logger.log("Rank " + rank + " received frame: " + (i + 1), LogLevel.Debug);
+            BufferedImage currFrame = imgBytes.length == 0 ? null : ImageDecoder.read(new ByteArrayInputStream(imgBytes), spare);
+            Logger.log("Rank " + rank + " processing frame: " + (i + 1), LogLevel.Debug);
 
-                        //diffFrame.setRGB(i, j, new Color(255, 0, 0, 40).getRGB());
-                        fillRegion(diffFrame, prevFrame, currentFrame, visited, i, j, colors[colorIndex]);
-                        colorIndex = (colorIndex + 1) % colors.length;//cycle through colors
-                        // Logger.log("Pixel changed at: "+i+" "+j, LogLevel.Debug);
-                    } else {
-                        //keep if no difference
-                        diffFrame.setRGB(i, j, currPixel);
-                    }
+            if (currFrame == null) {
+                Logger.log("ImageIO failed to decode image from rank " + rank, LogLevel.Error);
+            }
+
+            if (i > start) {
+                // every frame after the first gets an entry so the tags line up with what rank 0 expects
+                if (prevFrame != null && currFrame != null) {
+                    writeDiff(diffs, i, prevFrame, currFrame);  // store compressed image only
+                } else {
+                    diffs.skip(i);
                 }
             }
 
+            spare = prevFrame;
+            prevFrame = currFrame;
+        }
+
+        // diffs went out while the range was processed, wait for the last ones
+        diffs.finish();
+
+        Logger.log("Rank " + rank + " done sending " + diffs.bytes() / 1024 + " KB of diffs", LogLevel.Info);
+    }
+
+    //diffs prev and curr into diffBuffer and hands the diff and its region stats to sink
+    //every caller goes through its frames in order and decodes into the frame before prev, never into prev itself
+    private void writeDiff(FrameSink sink, int index, BufferedImage prev, BufferedImage curr) throws IOException {
+        FrameDiff diff = frameDiff.get();
+        diffBuffer = diff.computeNextDifference(prev, curr, diffBuffer);
+        sink.writeRegions(index, diff.lastRegions());
+        if (diff.lastUnchanged()) unchangedPairs.incrementAndGet();
+        sink.write(index, diffBuffer);
+    }
+
+    //with --skip-static every rank reports its own count, rank 0 only knows which frames came back
+    public void logUnchangedPairs() {
+        if (FrameDiff.skipsStaticPairs()) {
+            Logger.log("Rank " + transport.rank() + ": " + unchangedPairs.get() + " frames had no motion and skipped the pixel pass",
+                    transport.rank() == 0 ? LogLevel.Status : LogLevel.Info);
         }
-        return diffFrame;
     }
 
-    private void fillRegion(BufferedImage diffFrame, BufferedImage prevFrame, BufferedImage currentFrame, boolean[][] visited, int x, int y, Color color) {
-        int width = prevFrame.getWidth();
-        int height = prevFrame.getHeight();
+    private StreamingDiffSink newDiffSink() {
+        return new StreamingDiffSink(transport, sparse ? frameDiff::get : null, render, regions, inflight);
+    }
 
-        Stack<Point> stack = new Stack<>();
-        stack.push(new Point(x, y));
+    private interface FrameReader {
+        BufferedImage read(int index, BufferedImage reuse) throws IOException;
+    }
 
-        while (!stack.isEmpty()) {
-            Point point = stack.pop();
-            int px = point.x;
-            int py = point.y;
+    //frames first until end through reader, for the pipeline
+    //a missing frame is left out and lastIndex keeps the numbers of the rest, so the pipeline skips its two pairs
+    private static FrameSource rangeSource(int first, int end, FrameReader reader) {
+        return new FrameSource() {
+            private int next = first;
+
+            @Override
+            public BufferedImage read(BufferedImage reuse) throws IOException {
+                while (next < end) {
+                    int index = next++;
+                    BufferedImage frame = reader.read(index, reuse);
+                    if (frame != null) return frame;
+                    Logger.log("Frame " + index + " is missing, its pairs are skipped", LogLevel.Warn);
+                }
+                return null;
+            }
 
-            //chheck bounds and already visited
-            if (px < 0 || px >= width || py < 0 || py >= height || visited[px][py]) {
-                continue;
+            @Override
+            public int lastIndex() {
+                return next - 1 - first;
             }
 
-            int prevPixel = prevFrame.getRGB(px, py);
-            int currPixel = currentFrame.getRGB(px, py);
-            double diff = pixelDifference(prevPixel, currPixel);
+            @Override
+            public String frameName(int index) {
+                return String.valueOf(first + index);
+            }
 
-            // if pixel difference significant, color it and add neighbors to stack
-            if (diff > Constants.PIXEL_DIFF_THRESHOLD) {
-                visited[px][py] = true;
-                diffFrame.setRGB(px, py, color.getRGB());
+            @Override
+            public int frameCount() {
+                return end - first;
+            }
 
-                stack.push(new Point(px + 1, py)); //right
-                stack.push(new Point(px - 1, py)); // left
-                stack.push(new Point(px, py + 1)); //up
-                stack.push(new Point(px, py - 1)); //down
+            @Override
+            public void close() {
             }
-        }
+        };
     }
 
+    //--threads: source holds frames first until end and the parallel pipeline's diff threads write to sink themselves
+    private void diffRangeParallel(FrameSource source, int first, int end, FrameSink sink) throws IOException, InterruptedException {
+        BitSet written = new BitSet();
+        FrameSink shifted = new FrameSink() {
+            @Override
+            public void write(int index, BufferedImage frame) throws IOException {
+                sink.write(first + index, frame);
+                mark(index);
+            }
+
+            @Override
+            public void writeRegions(int index, RegionStats regions) throws IOException {
+                sink.writeRegions(first + index, regions);
+            }
 
-    private Color[] randomColors(int n) {
-        Color[] colors = new Color[n];
-        for (int i = 0; i < n; i++) {
-            int r = (int) (Math.random() * 256);
-            int g = (int) (Math.random() * 256);
-            int b = (int) (Math.random() * 256);
-            int alpha = (int) (Math.random() * 50);
+            @Override
+            public void skip(int index) throws IOException {
+                sink.skip(first + index);
+                mark(index);
+            }
+
+            private void mark(int index) {
+                synchronized (written) {
+                    written.set(index);
+                }
+            }
+
+            @Override
+            public boolean requiresOrder() {
+                return false;
+            }
 
-            colors[i] = new Color(r, g, b, alpha);
+            @Override
+            public void finish() {
+            }
+        };
+        FramePipeline pipeline = new FramePipeline(threads, 0, 2 * threads, frameDiff);
+        pipeline.run(source, shifted);
+        unchangedPairs.addAndGet(pipeline.unchangedPairs());
+        for (int i = 1; i < end - first; i++) {
+            if (!written.get(i)) sink.skip(first + i);
         }
-        return colors;
     }
 
+    //rank 0's own frames: single threaded it takes the workers' results between frames, with --threads
+    //the pipeline runs on its own threads and this one only takes results
+    private void diffOwnRange(FrameSource source, int first, int end, ResultCollector collector) throws IOException, InterruptedException {
+        if (threads <= 1) {
+            diffRange(source, first, end, collector.output(), collector);
+            collector.awaitAll();
+            return;
+        }
+        Exception[] failure = new Exception[1];
+        Thread own = new Thread(() -> {
+            try {
+                diffRangeParallel(source, first, end, collector.output());
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                failure[0] = e;
+            }
+        }, "rank-0-frames");
+        own.start();
+        collector.awaitAll();
+        own.join();
+        if (failure[0] != null) {
+            throw new IOException("Rank 0 failed on its own frames: " + failure[0].getMessage(), failure[0]);
+        }
+    }
 
+    //a frame that couldn't be loaded goes out empty, the worker skips its pairs
+    private byte[] frameToBytes(BufferedImage img) throws IOException {
+        if (img == null) return new byte[0];
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            VideoProcessing.frameCodec().write(img, baos);
+            return baos.toByteArray();
+        }
+    }
 
-    private double pixelDifference(int prevPixel, int currPixel) {
-        //rgb structure: AARRGGBB in bytes
-        int r1 = (prevPixel >> 16) & 0xff;//shift 16 bits to the right and mask with 0xff
-        int g1 = (prevPixel >> 8) & 0xff;
-        int b1 = prevPixel & 0xff;
+    private void processLocalChunk(String[] filenames, int start, int end, String path, FrameSink sink, ResultCollector collector) throws IOException {
+        BufferedImage prev = loadSingleFrame(path, filenames[start], null);
+        BufferedImage spare = null;
+        for (int i = start + 1; i < end; i++) {
+            BufferedImage curr = loadSingleFrame(path, filenames[i], spare);
+            if (prev != null && curr != null) {
+                writeDiff(sink, i, prev, curr);
+            } else {
+                sink.skip(i);
+            }
+            spare = prev;
+            prev = curr;
+            if (collector != null) collector.poll();
+        }
+    }
 
-        int r2 = (currPixel >> 16) & 0xff;
-        int g2 = (currPixel >> 8) & 0xff;
-        int b2 = currPixel & 0xff;
+    //rank 0 keeps taking results until the frame is sent, otherwise a worker waiting for its result window
+    //and rank 0 waiting for that worker to take the frame would block each other
+    private void sendDraining(Transport.SendHandle send, ResultCollector collector, int dest) throws IOException {
+        while (!send.isDone()) {
+            collector.drain(dest);
+            Thread.onSpinWait();
+        }
+    }
 
 
-        int diff = Math.abs(r1 - r2) + Math.abs(g1 - g2) + Math.abs(b1 - b2);
 
-        // 255 is the maximum value for a color channel
+        private int[] computeWorkRange(int rank, int size, int total) {
+            int base = total / size;
+            int extra = total % size;
 
-        return (diff / (3.0 * 255.0)) * 100.0; // Normalize and scale to percentage
-    }
-}
+            int start = rank * base + Math.min(rank, extra);
+            int end = start + base + (rank < extra ? 1 : 0);
+            int readStart = (rank == 0) ? start : start - 1; // include previous frame for diff except for rank 0
+
+            return new int[]{readStart, end, start};
+        }
 
+        private BufferedImage loadSingleFrame(String path, String filename, BufferedImage reuse) {
+            File imgFile = new File(path, filename);
+            if (!imgFile.isFile()) {
+                Logger.log("Frame file " + filename + " is missing, its pairs are skipped", LogLevel.Warn);
+                return null;
+            }
+            BufferedImage img = null;
+            try {
+                img = ImageDecoder.read(imgFile, reuse);
+                if (img == null) {
+                    Logger.log("Failed to read image: " + filename, LogLevel.Warn);
+                }
+            } catch (IOException e) {
+                Logger.log("IO error reading image " + filename + ": " + e.getMessage(), LogLevel.Error);
+            } catch (OutOfMemoryError e) {
+                Logger.log("Out of memory loading image " + filename, LogLevel.Error);
+                System.gc();
+            }
+            return img;
+        }
+}
@@ -0,0 +1,92 @@
+package distributed;
+
+import util.FrameCodec;
+import util.FrameDiff;
+import util.FrameSink;
+import util.MotionMask;
+import util.RegionStats;
+import util.VideoProcessing;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+//turns a worker's diffs into the payloads sent to rank 0, an empty payload marks a skipped frame
+//payloads are frames encoded with the --frame-format codec, or MotionMask runs when the sink is given the FrameDiff that produced the frames
+//frames are encoded on the writing thread, so with --threads sparseFrom hands each diff thread its own FrameDiff
+//with regions the stats of a frame go out with its payload, without frames (--no-render) the payload is always empty
+abstract class EncodedDiffSink implements FrameSink {
+    private static final byte[] NO_REGIONS = new byte[0];
+
+    private final Supplier<FrameDiff> sparseFrom;
+    private final boolean frames;
+    private final boolean regions;
+    private final FrameCodec codec = VideoProcessing.frameCodec();
+    //encoded stats waiting for the payload of their frame
+    private final Map<Integer, byte[]> pendingRegions = new HashMap<>();
+    private long bytes;
+
+    EncodedDiffSink(Supplier<FrameDiff> sparseFrom, boolean frames, boolean regions) {
+        this.sparseFrom = sparseFrom;
+        this.frames = frames;
+        this.regions = regions;
+    }
+
+    @Override
+    public void writeRegions(int index, RegionStats stats) throws IOException {
+        if (!regions) return;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream(); DataOutputStream out = new DataOutputStream(baos)) {
+            stats.writeTo(out);
+            out.flush();
+            synchronized (this) {
+                pendingRegions.put(index, baos.toByteArray());
+            }
+        }
+    }
+
+    @Override
+    public void write(int index, BufferedImage frame) throws IOException {
+        if (!frames) {
+            add(index, new byte[0]);
+            return;
+        }
+        if (sparseFrom != null) {
+            FrameDiff frameDiff = sparseFrom.get();
+            int[] pixels = FrameDiff.argbPixels(frame, null);
+            add(index, MotionMask.encode(frameDiff.lastMask(), pixels, frameDiff.lastColors(), frame.getWidth(), frame.getHeight()));
+            return;
+        }
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            codec.write(frame, baos);
+            add(index, baos.toByteArray());
+        }
+    }
+
+    @Override
+    public void writeEncoded(int index, byte[] encoded) throws IOException {
+        add(index, encoded);
+    }
+
+    @Override
+    public void skip(int index) throws IOException {
+        add(index, new byte[0]);
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    private synchronized void add(int index, byte[] payload) throws IOException {
+        byte[] stats = pendingRegions.remove(index);
+        if (stats == null) stats = NO_REGIONS;
+        bytes += payload.length + stats.length;
+        deliver(index, stats, payload);
+    }
+
+    //regions is empty when there are no stats for the frame
+    abstract void deliver(int index, byte[] regions, byte[] payload) throws IOException;
+}
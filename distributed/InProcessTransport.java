@@ -0,0 +1,66 @@
+package distributed;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+//every rank is a thread of the same JVM, a send copies the bytes straight into the receiver's mailbox
+//lets the distributed modes run and be tested on one machine without MPJ
+public class InProcessTransport implements Transport {
+    private final int rank;
+    private final Mailbox[] mailboxes;
+
+    private InProcessTransport(int rank, Mailbox[] mailboxes) {
+        this.rank = rank;
+        this.mailboxes = mailboxes;
+    }
+
+    //one endpoint per rank, hand endpoint r to the thread that plays rank r
+    public static Transport[] create(int size) {
+        Mailbox[] mailboxes = new Mailbox[size];
+        Transport[] endpoints = new Transport[size];
+        for (int r = 0; r < size; r++) {
+            mailboxes[r] = new Mailbox();
+        }
+        for (int r = 0; r < size; r++) {
+            endpoints[r] = new InProcessTransport(r, mailboxes);
+        }
+        return endpoints;
+    }
+
+    @Override
+    public int rank() {
+        return rank;
+    }
+
+    @Override
+    public int size() {
+        return mailboxes.length;
+    }
+
+    @Override
+    public void send(int dest, int tag, byte[] data) {
+        mailboxes[dest].deliver(rank, tag, Arrays.copyOf(data, data.length));
+    }
+
+    //mailboxes have no limit, so a send is done as soon as it is queued
+    @Override
+    public SendHandle sendAsync(int dest, int tag, byte[] data) {
+        send(dest, tag, data);
+        return Transport.completed();
+    }
+
+    @Override
+    public Envelope probe(int source, int tag) throws IOException {
+        return mailboxes[rank].probe(source, tag);
+    }
+
+    @Override
+    public Envelope poll(int source, int tag) throws IOException {
+        return mailboxes[rank].poll(source, tag);
+    }
+
+    @Override
+    public byte[] receive(int source, int tag) throws IOException {
+        return mailboxes[rank].receive(source, tag);
+    }
+}
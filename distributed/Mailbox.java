@@ -0,0 +1,67 @@
+package distributed;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+//incoming messages of one rank for the transports that queue them in the JVM
+//matching works like MPI: the oldest message with the right source and tag wins, so order per sender and tag is kept
+class Mailbox {
+    private record Message(int source, int tag, byte[] data) {
+    }
+
+    private final LinkedList<Message> messages = new LinkedList<>();
+    private IOException failure;
+
+    synchronized void deliver(int source, int tag, byte[] data) {
+        messages.add(new Message(source, tag, data));
+        notifyAll();
+    }
+
+    //a lost connection, everyone waiting gets the error once the queued messages are used up
+    synchronized void fail(IOException e) {
+        if (failure == null) failure = e;
+        notifyAll();
+    }
+
+    synchronized Transport.Envelope poll(int source, int tag) throws IOException {
+        Message message = find(source, tag, false);
+        if (message == null && failure != null) throw new IOException(failure.getMessage(), failure);
+        return message == null ? null : new Transport.Envelope(message.source(), message.tag());
+    }
+
+    synchronized Transport.Envelope probe(int source, int tag) throws IOException {
+        Message message = await(source, tag, false);
+        return new Transport.Envelope(message.source(), message.tag());
+    }
+
+    synchronized byte[] receive(int source, int tag) throws IOException {
+        return await(source, tag, true).data();
+    }
+
+    private Message await(int source, int tag, boolean remove) throws IOException {
+        Message message;
+        while ((message = find(source, tag, remove)) == null) {
+            if (failure != null) throw new IOException(failure.getMessage(), failure);
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a message", e);
+            }
+        }
+        return message;
+    }
+
+    private Message find(int source, int tag, boolean remove) {
+        Iterator<Message> it = messages.iterator();
+        while (it.hasNext()) {
+            Message message = it.next();
+            if ((source == Transport.ANY_SOURCE || message.source() == source) && (tag == Transport.ANY_TAG || message.tag() == tag)) {
+                if (remove) it.remove();
+                return message;
+            }
+        }
+        return null;
+    }
+}
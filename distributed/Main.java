@@ -1,37 +1,133 @@
 package distributed;
 
-import mpi.MPI;
 import util.Constants;
+import util.FrameDiff;
+import util.FrameSink;
+import util.FrameSource;
 import util.LogLevel;
 import util.Logger;
+import util.Options;
 import util.VideoProcessing;
 
 import java.io.File;
 
 public class Main {
+    private static final int DEFAULT_PORT = 5555;
+
     public static void main(String[] args) throws Exception {
-        MPI.Init(args);
-        int rank = MPI.COMM_WORLD.Rank();
-        int size = MPI.COMM_WORLD.Size();
+        // mpjrun.sh puts three arguments of its own before ours, the other transports are started with plain java:
+        // java distributed.Main <video> --transport=threads --ranks=4
+        String transport = "mpj";
+        for (String arg : args) {
+            if (arg.startsWith("--transport=")) transport = arg.substring("--transport=".length());
+        }
 
-        Logger.log("Main started with " + size + " processes", LogLevel.Success);
+        switch (transport) {
+            case "threads" -> runThreads(args[0], new Options(args, 1));
+            case "nio" -> {
+                Options options = new Options(args, 1);
+                String[] master = options.get("master", "localhost:" + DEFAULT_PORT).split(":");
+                int port = master.length > 1 ? Integer.parseInt(master[1]) : DEFAULT_PORT;
+                try (Transport nio = NioTransport.connect(options.getInt("rank", 0), options.getInt("ranks", 1), master[0], port)) {
+                    run(args[0], options, nio);
+                }
+            }
+            case "mpj" -> {
+                MpjTransport.init(args);
+                run(args[3], new Options(args, 4), new MpjTransport());
+                MpjTransport.finish();
+            }
+            default -> Logger.log("Unknown transport " + transport + ", use mpj, nio or threads", LogLevel.Error);
+        }
+    }
 
-        String inputPath = args[3];
+    //every rank is a thread of this JVM, a failing rank ends the run since the others would wait for it forever
+    private static void runThreads(String inputPath, Options options) throws InterruptedException {
+        Transport[] endpoints = InProcessTransport.create(Math.max(1, options.getInt("ranks", Runtime.getRuntime().availableProcessors())));
+        Thread[] ranks = new Thread[endpoints.length];
+        for (int r = 0; r < ranks.length; r++) {
+            Transport endpoint = endpoints[r];
+            ranks[r] = new Thread(() -> {
+                try {
+                    run(inputPath, options, endpoint);
+                } catch (Exception e) {
+                    Logger.log("Rank " + endpoint.rank() + " failed: " + e.getMessage(), LogLevel.Error);
+                    System.exit(1);
+                }
+            }, "rank-" + r);
+            ranks[r].start();
+        }
+        for (Thread rank : ranks) {
+            rank.join();
+        }
+    }
 
-        if (rank == 0) {
-            if (!inputPath.endsWith(".mp4") || !new File(inputPath).exists()) {
-                Logger.log("Invalid input video file. Exiting.", LogLevel.Error);
-                MPI.Finalize();
-                return;
-            }
-            Logger.log("Extracting frames from: " + inputPath, LogLevel.Info);
-            new VideoProcessing().extractFrames(inputPath, Constants.MIDWAY_POINT, Constants.FPS);
+    private static void run(String inputPath, Options options, Transport transport) throws Exception {
+        int rank = transport.rank();
+        int size = transport.size();
+
+        if (rank == 0) Logger.log("Main started with " + size + " processes", LogLevel.Success);
+
+        //rank 0 reads the background snapshot and hands it to the others, the ranks whose lead-in reaches frame 0 start from it
+        byte[] state = options.has("background")
+                ? transport.broadcast(rank == 0 ? orEmpty(FrameDiff.readBackgroundState(options.get("background-state", null))) : null, 0) : new byte[0];
+        FrameDiff.configure(options, state.length > 0 ? state : null, null);
+        VideoProcessing.configure(options);
+
+        // the other ranks learn from rank 0 whether there is anything to do
+        boolean valid = rank != 0 || (inputPath.endsWith(".mp4") && new File(inputPath).exists());
+        if (transport.broadcast(new byte[]{(byte) (valid ? 1 : 0)}, 0)[0] == 0) {
+            if (rank == 0) Logger.log("Invalid input video file. Exiting.", LogLevel.Error);
+            return;
         }
 
-        // All ranks process frames
-        new DistributedProcessor().processFramesD(Constants.MIDWAY_POINT, Constants.OUTPUT_VIDEO_PATH, Constants.FPS);
-        Logger.log("Processing complete", LogLevel.Success);
-        MPI.Finalize();
+        boolean localRead = options.has("local-read");
+        DistributedProcessor processor = new DistributedProcessor(options, transport);
+        if (options.has("stream") && rank == 0) {
+            // rank 0 has no copy of the other ranks' frames to paint the runs on
+            if (options.has("sparse")) Logger.log("--sparse needs the extracted frames, sending png diffs instead", LogLevel.Warn);
+            if (options.has("farm")) Logger.log("--farm needs the extracted frames, using fixed ranges instead", LogLevel.Warn);
+        }
+        if (options.has("stream") && localRead) {
+            // Every rank runs ffmpeg over its own part of the video
+            FrameSink sink = rank == 0 ? new VideoProcessing().openFrameSink(options, Constants.OUTPUT_VIDEO_PATH, Constants.FPS) : null;
+            processor.processFramesLocalStream(inputPath, Constants.FPS, sink);
+        } else if (options.has("stream")) {
+            // Only rank 0 talks to ffmpeg, the other ranks get their frames from it
+            FrameSource source = null;
+            FrameSink sink = null;
+            if (rank == 0) {
+                Logger.log("Streaming frames from: " + inputPath, LogLevel.Info);
+                source = new VideoProcessing().openFrameStream(inputPath, Constants.FPS);
+                sink = new VideoProcessing().openFrameSink(options, Constants.OUTPUT_VIDEO_PATH, Constants.FPS);
+            }
+            try {
+                processor.processFramesD(source, sink);
+            } finally {
+                if (source != null) source.close();
+            }
+        } else {
+            FrameSink sink = null;
+            if (rank == 0) {
+                Logger.log("Extracting frames from: " + inputPath, LogLevel.Info);
+                new VideoProcessing().extractFrames(inputPath, Constants.MIDWAY_POINT, Constants.FPS, options.getInt("segments", 1));
+                sink = new VideoProcessing().openFrameSink(options, Constants.OUTPUT_VIDEO_PATH, Constants.FPS);
+            }
+
+            // All ranks process frames, with --local-read they load their own frames from the folder
+            if (options.has("farm")) {
+                processor.processFramesFarm(Constants.MIDWAY_POINT, sink);
+            } else if (localRead) {
+                processor.processFramesLocal(Constants.MIDWAY_POINT, sink);
+            } else {
+                processor.processFramesD(Constants.MIDWAY_POINT, sink);
+            }
+        }
+        processor.logUnchangedPairs();
+        if (rank == 0) Logger.log("Processing complete", LogLevel.Success);
+    }
 
+    private static byte[] orEmpty(byte[] bytes) {
+        return bytes == null ? new byte[0] : bytes;
     }
 }
@@ -0,0 +1,183 @@
+package distributed;
+
+import mpi.MPI;
+import mpi.MPIException;
+import mpi.Request;
+import mpi.Status;
+
+import java.io.IOException;
+
+//MPJ Express underneath: a message is an int header with its length on the tag, then the bytes in CHUNK_SIZE pieces
+//on tag + DATA_TAG_OFFSET, so no single MPI buffer gets too big. MPI keeps both in order per sender and tag
+public class MpjTransport implements Transport {
+    private static final int DATA_TAG_OFFSET = 1000;
+    private final int rank;
+    private final int size;
+    //a header and its chunks must not interleave with another thread's message on the same tag, with --threads
+    //several diff threads send while the rank's main thread receives frames
+    private final Object sendLock = new Object();
+    private final Object receiveLock = new Object();
+
+    public MpjTransport() throws IOException {
+        try {
+            this.rank = MPI.COMM_WORLD.Rank();
+            this.size = MPI.COMM_WORLD.Size();
+        } catch (MPIException e) {
+            throw new IOException("MPI is not initialised", e);
+        }
+    }
+
+    //MPI.Init and Finalize live here so the other transports never load the MPJ classes
+    public static String[] init(String[] args) throws MPIException {
+        return MPI.Init(args);
+    }
+
+    public static void finish() throws MPIException {
+        MPI.Finalize();
+    }
+
+    @Override
+    public int rank() {
+        return rank;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void send(int dest, int tag, byte[] data) throws IOException {
+        sendAsync(dest, tag, data).await();
+    }
+
+    @Override
+    public SendHandle sendAsync(int dest, int tag, byte[] data) throws IOException {
+        int chunks = (data.length + DistributedProcessor.CHUNK_SIZE - 1) / DistributedProcessor.CHUNK_SIZE;
+        int[] header = {data.length};
+        Request[] requests = new Request[chunks + 1];
+        try {
+            synchronized (sendLock) {
+                requests[0] = MPI.COMM_WORLD.Isend(header, 0, 1, MPI.INT, dest, tag);
+                for (int i = 0; i < chunks; i++) {
+                    int start = i * DistributedProcessor.CHUNK_SIZE;
+                    int len = Math.min(DistributedProcessor.CHUNK_SIZE, data.length - start);
+                    requests[i + 1] = MPI.COMM_WORLD.Isend(data, start, len, MPI.BYTE, dest, tag + DATA_TAG_OFFSET);
+                }
+            }
+        } catch (MPIException e) {
+            throw new IOException("Failed to send to rank " + dest, e);
+        }
+        return new SendHandle() {
+            //the buffers are kept with their requests until the send is done
+            private final int[] headerBuffer = header;
+            private final byte[] dataBuffer = data;
+            private int pending = requests.length;
+
+            @Override
+            public boolean isDone() throws IOException {
+                try {
+                    for (int i = 0; i < requests.length; i++) {
+                        if (requests[i] != null && requests[i].Test() != null) {
+                            requests[i] = null;
+                            pending--;
+                        }
+                    }
+                } catch (MPIException e) {
+                    throw new IOException("Failed to send to rank " + dest, e);
+                }
+                return pending == 0;
+            }
+
+            @Override
+            public void await() throws IOException {
+                try {
+                    for (int i = 0; i < requests.length; i++) {
+                        if (requests[i] != null) {
+                            requests[i].Wait();
+                            requests[i] = null;
+                        }
+                    }
+                    pending = 0;
+                } catch (MPIException e) {
+                    throw new IOException("Failed to send to rank " + dest, e);
+                }
+            }
+        };
+    }
+
+    @Override
+    public Envelope probe(int source, int tag) throws IOException {
+        try {
+            return envelope(MPI.COMM_WORLD.Probe(mpiSource(source), mpiTag(tag)));
+        } catch (MPIException e) {
+            throw new IOException("Probe failed", e);
+        }
+    }
+
+    @Override
+    public Envelope poll(int source, int tag) throws IOException {
+        try {
+            Status status = MPI.COMM_WORLD.Iprobe(mpiSource(source), mpiTag(tag));
+            return status == null ? null : envelope(status);
+        } catch (MPIException e) {
+            throw new IOException("Probe failed", e);
+        }
+    }
+
+    //the chunks of a message are always taken together with its header, so a probe on any tag only ever sees headers
+    @Override
+    public byte[] receive(int source, int tag) throws IOException {
+        synchronized (receiveLock) {
+            return receiveMessage(source, tag);
+        }
+    }
+
+    private byte[] receiveMessage(int source, int tag) throws IOException {
+        try {
+            int[] header = new int[1];
+            Status status = MPI.COMM_WORLD.Recv(header, 0, 1, MPI.INT, mpiSource(source), mpiTag(tag));
+            int from = status.source;
+            int dataTag = status.tag + DATA_TAG_OFFSET;
+            byte[] data = new byte[header[0]];
+            int chunks = (data.length + DistributedProcessor.CHUNK_SIZE - 1) / DistributedProcessor.CHUNK_SIZE;
+            Request[] requests = new Request[chunks];
+            for (int i = 0; i < chunks; i++) {
+                int start = i * DistributedProcessor.CHUNK_SIZE;
+                int len = Math.min(DistributedProcessor.CHUNK_SIZE, data.length - start);
+                requests[i] = MPI.COMM_WORLD.Irecv(data, start, len, MPI.BYTE, from, dataTag);
+            }
+            Request.Waitall(requests);
+            return data;
+        } catch (MPIException e) {
+            throw new IOException("Failed to receive from rank " + source, e);
+        }
+    }
+
+    @Override
+    public byte[] broadcast(byte[] data, int root) throws IOException {
+        try {
+            int[] length = {data == null ? 0 : data.length};
+            MPI.COMM_WORLD.Bcast(length, 0, 1, MPI.INT, root);
+            if (rank != root) {
+                data = new byte[length[0]];
+            }
+            MPI.COMM_WORLD.Bcast(data, 0, length[0], MPI.BYTE, root);
+            return data;
+        } catch (MPIException e) {
+            throw new IOException("Broadcast failed", e);
+        }
+    }
+
+    private static Envelope envelope(Status status) {
+        return new Envelope(status.source, status.tag);
+    }
+
+    private static int mpiSource(int source) {
+        return source == ANY_SOURCE ? MPI.ANY_SOURCE : source;
+    }
+
+    private static int mpiTag(int tag) {
+        return tag == ANY_TAG ? MPI.ANY_TAG : tag;
+    }
+}
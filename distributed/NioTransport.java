@@ -0,0 +1,217 @@
+package distributed;
+
+import util.LogLevel;
+import util.Logger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+//ranks are separate processes on plain TCP, rank 0 listens and every other rank connects to it
+//only rank 0 and the workers talk to each other, which is all the distributed processor does
+//a message is an 8 byte header (tag, length) and the payload, one reader thread per connection queues them in a Mailbox
+public class NioTransport implements Transport {
+    private static final int HEADER_SIZE = 8;
+    private static final long CONNECT_TIMEOUT_MS = 30_000;
+
+    private final int rank;
+    private final int size;
+    private final SocketChannel[] channels; //by peer rank, a worker only has channels[0]
+    //own direct buffers instead of heap ones, the JDK would otherwise keep a temporary direct copy as big as the largest frame per thread
+    private final ByteBuffer[] sendBuffers;
+    private final Mailbox mailbox = new Mailbox();
+    private ServerSocketChannel server;
+    private volatile boolean closing;
+
+    private NioTransport(int rank, int size) {
+        this.rank = rank;
+        this.size = size;
+        this.channels = new SocketChannel[size];
+        this.sendBuffers = new ByteBuffer[size];
+    }
+
+    //blocks until all size - 1 workers are connected on rank 0, or until rank 0 accepts on a worker
+    public static NioTransport connect(int rank, int size, String host, int port) throws IOException {
+        NioTransport transport = new NioTransport(rank, size);
+        if (rank == 0) {
+            transport.server = ServerSocketChannel.open();
+            transport.server.bind(new InetSocketAddress(port));
+            ByteBuffer hello = ByteBuffer.allocate(Integer.BYTES);
+            for (int i = 1; i < size; i++) {
+                SocketChannel channel = transport.server.accept();
+                hello.clear();
+                readFully(channel, hello);
+                int peer = hello.flip().getInt();
+                if (peer <= 0 || peer >= size || transport.channels[peer] != null) {
+                    channel.close();
+                    throw new IOException("Unexpected rank " + peer + " connected");
+                }
+                transport.open(peer, channel);
+            }
+        } else {
+            SocketChannel channel = connectWithRetry(new InetSocketAddress(host, port));
+            ByteBuffer hello = ByteBuffer.allocate(Integer.BYTES).putInt(rank).flip();
+            while (hello.hasRemaining()) channel.write(hello);
+            transport.open(0, channel);
+        }
+        Logger.log("Rank " + rank + " connected over TCP", LogLevel.Debug);
+        return transport;
+    }
+
+    //workers may start before rank 0 is listening
+    private static SocketChannel connectWithRetry(InetSocketAddress address) throws IOException {
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+        while (true) {
+            try {
+                return SocketChannel.open(address);
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void open(int peer, SocketChannel channel) throws IOException {
+        channel.socket().setTcpNoDelay(true);
+        channels[peer] = channel;
+        sendBuffers[peer] = ByteBuffer.allocateDirect(DistributedProcessor.CHUNK_SIZE);
+        Thread reader = new Thread(() -> readLoop(peer, channel), "nio-reader-" + rank + "-" + peer);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    //payloads are read through a direct buffer too and copied out once into the message's array
+    private void readLoop(int peer, SocketChannel channel) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(DistributedProcessor.CHUNK_SIZE);
+        try {
+            while (true) {
+                buffer.clear().limit(HEADER_SIZE);
+                readFully(channel, buffer);
+                buffer.flip();
+                int tag = buffer.getInt();
+                byte[] data = new byte[buffer.getInt()];
+                for (int offset = 0; offset < data.length; ) {
+                    buffer.clear().limit(Math.min(buffer.capacity(), data.length - offset));
+                    readFully(channel, buffer);
+                    buffer.flip();
+                    int len = buffer.remaining();
+                    buffer.get(data, offset, len);
+                    offset += len;
+                }
+                mailbox.deliver(peer, tag, data);
+            }
+        } catch (IOException e) {
+            if (!closing) {
+                mailbox.fail(new IOException("Lost the connection to rank " + peer, e));
+            }
+        }
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) throw new EOFException("Connection closed");
+        }
+    }
+
+    private SocketChannel channel(int dest) throws IOException {
+        SocketChannel channel = dest >= 0 && dest < size ? channels[dest] : null;
+        if (channel == null) {
+            throw new IOException("Rank " + rank + " has no connection to rank " + dest);
+        }
+        return channel;
+    }
+
+    @Override
+    public int rank() {
+        return rank;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void send(int dest, int tag, byte[] data) throws IOException {
+        SocketChannel channel = channel(dest);
+        ByteBuffer buffer = sendBuffers[dest];
+        synchronized (channel) {
+            buffer.clear();
+            buffer.putInt(tag).putInt(data.length);
+            int offset = 0;
+            do {
+                int len = Math.min(buffer.remaining(), data.length - offset);
+                buffer.put(data, offset, len);
+                offset += len;
+                buffer.flip();
+                while (buffer.hasRemaining()) channel.write(buffer);
+                buffer.clear();
+            } while (offset < data.length);
+        }
+    }
+
+    //the receiver's reader thread always takes what arrives, so a blocking write can't wait on the other side's work
+    @Override
+    public SendHandle sendAsync(int dest, int tag, byte[] data) throws IOException {
+        send(dest, tag, data);
+        return Transport.completed();
+    }
+
+    //the file goes from the page cache to the socket with transferTo, it is never copied into the JVM
+    @Override
+    public SendHandle sendFile(int dest, int tag, Path file) throws IOException {
+        SocketChannel channel = channel(dest);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = in.size();
+            if (length > Integer.MAX_VALUE) throw new IOException(file + " is too big for one message");
+            ByteBuffer buffer = sendBuffers[dest];
+            synchronized (channel) {
+                buffer.clear();
+                buffer.putInt(tag).putInt((int) length).flip();
+                while (buffer.hasRemaining()) channel.write(buffer);
+                for (long position = 0; position < length; ) {
+                    long sent = in.transferTo(position, length - position, channel);
+                    if (sent <= 0 && in.size() < length) throw new IOException(file + " got shorter while sending");
+                    position += sent;
+                }
+            }
+        }
+        return Transport.completed();
+    }
+
+    @Override
+    public Envelope probe(int source, int tag) throws IOException {
+        return mailbox.probe(source, tag);
+    }
+
+    @Override
+    public Envelope poll(int source, int tag) throws IOException {
+        return mailbox.poll(source, tag);
+    }
+
+    @Override
+    public byte[] receive(int source, int tag) throws IOException {
+        return mailbox.receive(source, tag);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closing = true;
+        for (SocketChannel channel : channels) {
+            if (channel != null) channel.close();
+        }
+        if (server != null) server.close();
+    }
+}
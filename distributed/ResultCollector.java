@@ -0,0 +1,237 @@
+package distributed;
+
+import util.FrameSink;
+import util.LogLevel;
+import util.Logger;
+import util.MotionMask;
+import util.RegionStats;
+import util.ReorderingFrameSink;
+import util.VideoProcessing;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntUnaryOperator;
+
+//rank 0's side of the result stream: takes diffs from any worker in whatever order they finish and writes them straight away
+//poll is called between rank 0's own frames and while it waits for frame sends, so receiving overlaps the workers' compute
+//an ordered sink gets the results through a reorder window that keeps them encoded, a result too far ahead for the window
+//is parked and its rank isn't polled again until it fits, so the rank's in-flight window holds back the rest
+class ResultCollector {
+    interface FrameLoader {
+        //rank 0's copy of frame index, decoded into reuse when possible
+        BufferedImage load(int index, BufferedImage reuse);
+    }
+
+    static final int TAG_RESULT = 4; //the frame index, the length of the region stats, the stats and the payload
+
+    private record Parked(int source, boolean hadRegions, byte[] payload) {
+    }
+
+    private final Transport transport;
+    private final FrameSink out;
+    private final ReorderingFrameSink reorder; //null when the sink takes frames in any order
+    private final IntUnaryOperator owner;
+    private final FrameLoader originals;
+    private final int expected;
+    private final TreeMap<Integer, Parked> parked = new TreeMap<>();
+    private final int[] parkedFrom;
+    private int collected;
+    private BufferedImage originalBuffer;
+    private BufferedImage compositeBuffer;
+    private long receiveNanos;
+    private long compositeNanos;
+    private long receivedBytes;
+    private int receivedDiffs;
+    private int parkedResults;
+
+    //expected is how many results the workers will send, originals gives rank 0's copy of frame i for sparse payloads
+    //window is how many frames an ordered sink may have waiting, owner gives the rank that diffs frame i when ranges are
+    //fixed, so rank 0 waits on the one it needs next, null for the farm, which keeps its batches within the window itself
+    ResultCollector(Transport transport, FrameSink sink, int totalFrames, int expected, FrameLoader originals, int window, IntUnaryOperator owner) {
+        this.transport = transport;
+        this.originals = originals;
+        FrameSink target = originals == null ? sink : new FrameSink() {
+            @Override
+            public void write(int index, BufferedImage frame) throws IOException {
+                sink.write(index, frame);
+            }
+
+            //sparse payloads are painted when they are written, so a waiting one is only its runs
+            @Override
+            public void writeEncoded(int index, byte[] payload) throws IOException {
+                composite(sink, index, payload);
+            }
+
+            @Override
+            public void writeRegions(int index, RegionStats regions) throws IOException {
+                sink.writeRegions(index, regions);
+            }
+
+            @Override
+            public void skip(int index) throws IOException {
+                sink.skip(index);
+            }
+
+            @Override
+            public boolean requiresOrder() {
+                return sink.requiresOrder();
+            }
+
+            @Override
+            public void finish() throws IOException, InterruptedException {
+                sink.finish();
+            }
+        };
+        //results come in any order, an ordered sink gets them sorted first
+        this.reorder = sink.requiresOrder() ? new ReorderingFrameSink(target, 1, Math.min(Math.max(1, window), totalFrames)) : null;
+        this.out = reorder != null ? reorder : target;
+        this.expected = expected;
+        this.owner = owner;
+        this.parkedFrom = new int[transport.size()];
+    }
+
+    //rank 0 writes its own frames here too so they end up in the same order as the workers' ones
+    FrameSink output() {
+        return out;
+    }
+
+    //receives every result that is already waiting, never blocks on a worker that is still computing
+    void poll() throws IOException {
+        if (reorder == null) {
+            while (collected < expected) {
+                Transport.Envelope envelope = transport.poll(Transport.ANY_SOURCE, TAG_RESULT);
+                if (envelope == null) return;
+                receive(envelope.source());
+            }
+            return;
+        }
+        deliverParked();
+        for (int source = 1; source < parkedFrom.length && collected < expected; source++) {
+            while (parkedFrom[source] == 0 && collected < expected && transport.poll(source, TAG_RESULT) != null) {
+                receive(source);
+            }
+        }
+    }
+
+    //takes what source has already sent even if it is parked, rank 0 is waiting to send it a frame and the source
+    //may be waiting for its results to be taken before it takes the frame
+    void drain(int source) throws IOException {
+        while (collected < expected && transport.poll(source, TAG_RESULT) != null) {
+            receive(source);
+        }
+        poll();
+    }
+
+    //a result for frame index is written without parking it
+    boolean accepts(int index) {
+        return reorder == null || reorder.accepts(index);
+    }
+
+    boolean done() {
+        return collected >= expected;
+    }
+
+    void awaitAll() throws IOException {
+        while (collected < expected) {
+            if (reorder == null || owner == null) {
+                receive(transport.probe(Transport.ANY_SOURCE, TAG_RESULT).source());
+                continue;
+            }
+            deliverParked();
+            int next = reorder.next();
+            int source = owner.applyAsInt(next);
+            if (source > 0 && !parked.containsKey(next)) {
+                receive(source);
+                continue;
+            }
+            //rank 0's own threads still owe the next frame, the others are only taken when they fit
+            poll();
+            try {
+                reorder.awaitPast(next, 1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for frame " + next, e);
+            }
+        }
+        deliverParked();
+    }
+
+    //a result from source has to be waiting already
+    void receive(int source) throws IOException {
+        long t0 = System.nanoTime();
+        byte[] message = transport.receive(source, TAG_RESULT);
+        ByteBuffer header = ByteBuffer.wrap(message);
+        int index = header.getInt();
+        int regionsLength = header.getInt();
+        int payloadStart = 2 * Integer.BYTES + regionsLength;
+        byte[] payload = Arrays.copyOfRange(message, payloadStart, message.length);
+        receiveNanos += System.nanoTime() - t0;
+        collected++;
+        Logger.log("Received diff for frame " + (index + 1) + " from rank " + source, LogLevel.Debug);
+        RegionStats regions = null;
+        if (regionsLength > 0) {
+            regions = RegionStats.readFrom(new DataInputStream(new ByteArrayInputStream(message, 2 * Integer.BYTES, regionsLength)));
+            receivedBytes += regionsLength;
+            out.writeRegions(index, regions);
+        }
+        if (!accepts(index)) {
+            parked.put(index, new Parked(source, regions != null, payload));
+            parkedFrom[source]++;
+            parkedResults++;
+            return;
+        }
+        deliver(source, index, regions != null, payload);
+        deliverParked();
+    }
+
+    private void deliverParked() throws IOException {
+        while (!parked.isEmpty() && accepts(parked.firstKey())) {
+            Map.Entry<Integer, Parked> entry = parked.pollFirstEntry();
+            Parked result = entry.getValue();
+            parkedFrom[result.source()]--;
+            deliver(result.source(), entry.getKey(), result.hadRegions(), result.payload());
+        }
+    }
+
+    //an empty payload means the worker had no diff for this frame, or only sent its region stats with --no-render
+    void deliver(int source, int index, boolean hadRegions, byte[] payload) throws IOException {
+        receivedBytes += payload.length;
+        if (payload.length == 0) {
+            if (!hadRegions) Logger.log("Rank " + source + " had no diff for frame " + (index + 1), LogLevel.Warn);
+            out.skip(index);
+            return;
+        }
+        receivedDiffs++;
+        out.writeEncoded(index, payload);
+    }
+
+    //paints the runs of a sparse payload over rank 0's copy of the frame
+    private void composite(FrameSink sink, int index, byte[] payload) throws IOException {
+        long t0 = System.nanoTime();
+        originalBuffer = originals.load(index, originalBuffer);
+        if (originalBuffer == null) {
+            sink.skip(index);
+            return;
+        }
+        compositeBuffer = MotionMask.composite(payload, originalBuffer, compositeBuffer);
+        compositeNanos += System.nanoTime() - t0;
+        sink.write(index, compositeBuffer);
+    }
+
+    void logStats() {
+        if (receivedDiffs == 0) return;
+        boolean sparse = originals != null;
+        Logger.log("Received " + receivedDiffs + " " + (sparse ? "sparse" : VideoProcessing.frameCodec().toString()) + " diffs, " + receivedBytes / 1024 + " KB ("
+                + receivedBytes / receivedDiffs / 1024 + " KB per frame) in " + receiveNanos / 1_000_000 + " ms"
+                + (sparse ? ", compositing took " + compositeNanos / 1_000_000 + " ms" : ""), LogLevel.Info);
+        if (parkedResults > 0) {
+            Logger.log(parkedResults + " results arrived too far ahead of the output and were held back", LogLevel.Info);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package distributed;
+
+import util.FrameDiff;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.function.Supplier;
+
+//worker side of the result stream: every diff is sent to rank 0 as soon as it is encoded
+//at most window results are in flight, so a worker's memory no longer grows with the size of its range
+class StreamingDiffSink extends EncodedDiffSink {
+    private final Transport transport;
+    private final int window;
+    private final ArrayDeque<Transport.SendHandle> inFlight = new ArrayDeque<>();
+
+    StreamingDiffSink(Transport transport, Supplier<FrameDiff> sparseFrom, boolean frames, boolean regions, int window) {
+        super(sparseFrom, frames, regions);
+        this.transport = transport;
+        this.window = Math.max(1, window);
+    }
+
+    //the message is kept by its handle until the send is done
+    @Override
+    void deliver(int index, byte[] regions, byte[] payload) throws IOException {
+        while (inFlight.size() >= window) {
+            inFlight.poll().await();
+        }
+        byte[] message = ByteBuffer.allocate(2 * Integer.BYTES + regions.length + payload.length)
+                .putInt(index).putInt(regions.length).put(regions).put(payload).array();
+        inFlight.add(transport.sendAsync(0, ResultCollector.TAG_RESULT, message));
+    }
+
+    @Override
+    public synchronized void finish() throws IOException {
+        while (!inFlight.isEmpty()) {
+            inFlight.poll().await();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package distributed;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+//what the distributed processor needs from the network: whole messages with a tag, delivered in order per sender and tag
+//MpjTransport runs over MPJ Express, NioTransport over plain sockets and InProcessTransport between threads of one JVM
+public interface Transport extends Closeable {
+    int ANY_SOURCE = -1;
+    int ANY_TAG = -1;
+    int TAG_BROADCAST = 99; //used by the default broadcast, the other tags are the processor's
+
+    record Envelope(int source, int tag) {
+    }
+
+    interface SendHandle {
+        boolean isDone() throws IOException;
+
+        void await() throws IOException;
+    }
+
+    int rank();
+
+    int size();
+
+    //returns once data may be changed again
+    void send(int dest, int tag, byte[] data) throws IOException;
+
+    //data must not change until the handle is done
+    SendHandle sendAsync(int dest, int tag, byte[] data) throws IOException;
+
+    //waits for the next message matching source and tag, it stays queued for receive
+    Envelope probe(int source, int tag) throws IOException;
+
+    //same as probe but null when nothing matching has arrived yet
+    Envelope poll(int source, int tag) throws IOException;
+
+    //takes the next message matching source and tag
+    byte[] receive(int source, int tag) throws IOException;
+
+    //the file's bytes as one message, backends that can send a file without reading it first override this
+    default SendHandle sendFile(int dest, int tag, Path file) throws IOException {
+        return sendAsync(dest, tag, Files.readAllBytes(file));
+    }
+
+    //data is only read on root, every rank gets it back
+    default byte[] broadcast(byte[] data, int root) throws IOException {
+        if (rank() != root) {
+            return receive(root, TAG_BROADCAST);
+        }
+        for (int r = 0; r < size(); r++) {
+            if (r != root) send(r, TAG_BROADCAST, data);
+        }
+        return data;
+    }
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    static SendHandle completed() {
+        return new SendHandle() {
+            @Override
+            public boolean isDone() {
+                return true;
+            }
+
+            @Override
+            public void await() {
+            }
+        };
+    }
+
+    //small int messages like counts, requests and tasks travel as packed longs
+    static byte[] pack(long... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * Long.BYTES);
+        for (long value : values) buffer.putLong(value);
+        return buffer.array();
+    }
+
+    static long[] unpack(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long[] values = new long[data.length / Long.BYTES];
+        for (int i = 0; i < values.length; i++) values[i] = buffer.getLong();
+        return values;
+    }
+}
@@ -0,0 +1,266 @@
+package parallel;
+
+import util.FrameDiff;
+import util.FramePool;
+import util.FrameSink;
+import util.FrameSource;
+import util.LogLevel;
+import util.Logger;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//decode -> diff -> write stages connected by bounded queues
+//the calling thread decodes every frame once and hands adjacent pairs to the diff workers, writers drain the results
+//with no writers the diff workers write to the sink themselves, for unordered sinks that are safe to call from several
+//threads and need to run on the thread that computed the diff (the distributed ranks' encoders read its FrameDiff)
+//a background model (--background) has to see the frames in order, so the decoding thread's FrameDiff runs it and
+//the diff workers label each pair with the mask it made, any number of workers gives the single threaded result
+public class FramePipeline {
+    private static final Pair POISON_PAIR = new Pair(-1, null, null, null);
+    private static final Result POISON_RESULT = new Result(-1, null);
+
+    private final int workers;
+    private final int writers;
+    private final int queueCapacity;
+    private final ThreadLocal<FrameDiff> frameDiff;
+
+    private final AtomicLong decodeNanos = new AtomicLong();
+    private final AtomicLong modelNanos = new AtomicLong();
+    private final AtomicLong diffNanos = new AtomicLong();
+    private final AtomicLong writeNanos = new AtomicLong();
+    private final AtomicInteger unchangedPairs = new AtomicInteger();
+
+    public FramePipeline(int workers, int writers, int queueCapacity, ThreadLocal<FrameDiff> frameDiff) {
+        this.workers = workers;
+        this.writers = writers;
+        this.queueCapacity = queueCapacity;
+        this.frameDiff = frameDiff;
+    }
+
+    //pairs the diff workers copied without the pixel pass, with --skip-static
+    public int unchangedPairs() {
+        return unchangedPairs.get();
+    }
+
+    //mask is the background model's mask of the pair, null without a model or when the pair was unchanged
+    private record Pair(int index, SharedFrame prev, SharedFrame curr, long[] mask) {
+    }
+
+    //a decoded frame is used by two pairs, as curr of its own and as prev of the next one
+    //it goes back to the pool once both are done with it
+    private static final class SharedFrame {
+        private final BufferedImage image;
+        private final FramePool pool;
+        private final AtomicInteger users = new AtomicInteger(2);
+
+        SharedFrame(BufferedImage image, FramePool pool) {
+            this.image = image;
+            this.pool = pool;
+        }
+
+        void release() {
+            if (users.decrementAndGet() == 0) {
+                pool.release(image);
+            }
+        }
+    }
+
+    private record Result(int index, BufferedImage diff) {
+    }
+
+    //with a background model the calling thread's FrameDiff is the one that sees every frame, set it up with
+    //startBackground before when the source doesn't start at frame 0, the model is saved at the end
+    public void run(FrameSource source, FrameSink sink) throws IOException, InterruptedException {
+        FrameDiff model = FrameDiff.usesBackground() ? frameDiff.get() : null;
+        ConcurrentLinkedQueue<long[]> masks = new ConcurrentLinkedQueue<>(); //mask arrays the workers are done with
+        BlockingQueue<Pair> pairs = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Result> results = new ArrayBlockingQueue<>(queueCapacity);
+        //a permit per frame from decode until it is written, so fast workers can't run away from a slow frame
+        int permits = 2 * queueCapacity + workers + writers;
+        Semaphore inFlight = new Semaphore(permits);
+        //ordered sinks get a single writer that puts the frames back in order
+        boolean ordered = sink.requiresOrder();
+        int writerCount = ordered ? 1 : writers;
+        boolean inline = writerCount == 0;
+
+        //the pools are sized from the first frame, every in flight pair needs at most one more decoded frame and one diff
+        long start = System.nanoTime();
+        BufferedImage first = source.read(null);
+        decodeNanos.addAndGet(System.nanoTime() - start);
+        if (first == null) {
+            Logger.log("No frames received from the source", LogLevel.Error);
+            return;
+        }
+        FramePool decodedPool = new FramePool(first.getWidth(), first.getHeight(), first.getType(), permits + 2);
+        FramePool diffPool = new FramePool(first.getWidth(), first.getHeight(), BufferedImage.TYPE_INT_ARGB, permits);
+
+        Thread[] diffThreads = new Thread[workers];
+        for (int w = 0; w < workers; w++) {
+            diffThreads[w] = new Thread(() -> diffLoop(pairs, results, diffPool, sink, inline, inFlight, model != null, masks), "diff-" + w);
+            diffThreads[w].start();
+        }
+        Thread[] writerThreads = new Thread[writerCount];
+        for (int w = 0; w < writerCount; w++) {
+            writerThreads[w] = new Thread(() -> writeLoop(results, sink, inFlight, ordered, diffPool), "writer-" + w);
+            writerThreads[w].start();
+        }
+
+        //pairs are numbered by the source's index of their curr frame, a frame the source left out skips its pairs
+        int index = source.lastIndex();
+        int frames = 1;
+        SharedFrame prevFrame = new SharedFrame(first, decodedPool);
+        prevFrame.release(); //the first frame is never the curr of a pair
+        try {
+            for (int missing = 1; missing <= index; missing++) skip(missing, results, sink, inline, inFlight);
+            while (true) {
+                start = System.nanoTime();
+                //never waits on the pool, a source that decodes ahead may still be holding earlier buffers
+                BufferedImage reuse = decodedPool.poll();
+                BufferedImage currentFrame = source.read(reuse);
+                decodeNanos.addAndGet(System.nanoTime() - start);
+                if (currentFrame == null) {
+                    decodedPool.release(reuse);
+                    break;
+                }
+                //when the source returned another image it kept reuse for itself, so it is not released here
+                int currIndex = source.lastIndex();
+                for (int missing = index + 1; missing < currIndex; missing++) skip(missing, results, sink, inline, inFlight);
+                index = currIndex;
+                frames++;
+
+                long[] mask = null;
+                if (model != null) {
+                    start = System.nanoTime();
+                    long[] reuseMask = masks.poll();
+                    mask = model.backgroundMask(prevFrame.image, currentFrame, reuseMask);
+                    if (mask == null && reuseMask != null) masks.add(reuseMask);
+                    modelNanos.addAndGet(System.nanoTime() - start);
+                }
+
+                inFlight.acquire();
+                SharedFrame shared = new SharedFrame(currentFrame, decodedPool);
+                pairs.put(new Pair(index, prevFrame, shared, mask));
+                prevFrame = shared;
+            }
+            prevFrame.release(); //the last frame is never the prev of a pair
+            if (model != null) model.saveBackground();
+        } finally {
+            //shut the stages down in order even if decoding failed
+            for (int w = 0; w < workers; w++) pairs.put(POISON_PAIR);
+            for (Thread thread : diffThreads) thread.join();
+            for (int w = 0; w < writerCount; w++) results.put(POISON_RESULT);
+            for (Thread thread : writerThreads) thread.join();
+        }
+        Logger.log("Frame buffers: " + decodedPool.created() + " decoded and " + diffPool.created() + " diff images for "
+                + frames + " frames", LogLevel.Info);
+        Logger.log("Pipeline: " + frames + " frames, decode " + decodeNanos.get() / 1_000_000 + " ms"
+                + (model != null ? ", background model " + modelNanos.get() / 1_000_000 + " ms" : "") + ", diff "
+                + diffNanos.get() / 1_000_000 + " ms over " + workers + " workers, write "
+                + writeNanos.get() / 1_000_000 + " ms over " + (inline ? "the diff workers" : writerCount + " writers"), LogLevel.Info);
+    }
+
+    //inline workers write the diff themselves instead of queueing it for the writers
+    //the region stats always go to the sink from here, they belong to this thread's FrameDiff
+    private void diffLoop(BlockingQueue<Pair> pairs, BlockingQueue<Result> results, FramePool diffPool, FrameSink sink, boolean inline,
+                          Semaphore inFlight, boolean background, ConcurrentLinkedQueue<long[]> masks) {
+        try {
+            Pair pair;
+            while ((pair = pairs.take()) != POISON_PAIR) {
+                long start = System.nanoTime();
+                BufferedImage diff = diffPool.acquire();
+                try {
+                    //writes into the pooled image in place
+                    diff = background
+                            ? frameDiff.get().computeDifference(pair.prev().image, pair.curr().image, diff, pair.mask())
+                            : frameDiff.get().computeDifference(pair.prev().image, pair.curr().image, diff);
+                    sink.writeRegions(pair.index(), frameDiff.get().lastRegions());
+                    if (frameDiff.get().lastUnchanged()) unchangedPairs.incrementAndGet();
+                } catch (IOException e) {
+                    Logger.log("Error writing regions of frame " + pair.index() + ": " + e.getMessage(), LogLevel.Error);
+                } catch (RuntimeException e) {
+                    Logger.log("Error processing frame " + pair.index() + ": " + e.getMessage(), LogLevel.Error);
+                    diffPool.release(diff);
+                    diff = null;
+                } finally {
+                    pair.prev().release();
+                    pair.curr().release();
+                    if (pair.mask() != null) masks.add(pair.mask());
+                }
+                diffNanos.addAndGet(System.nanoTime() - start);
+                if (inline) {
+                    write(sink, pair.index(), diff);
+                    diffPool.release(diff);
+                    inFlight.release();
+                } else {
+                    results.put(new Result(pair.index(), diff));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop(BlockingQueue<Result> results, FrameSink sink, Semaphore inFlight, boolean ordered, FramePool diffPool) {
+        Map<Integer, BufferedImage> pending = new HashMap<>();
+        int next = 1;
+        try {
+            Result result;
+            while ((result = results.take()) != POISON_RESULT) {
+                if (!ordered) {
+                    write(sink, result.index(), result.diff());
+                    diffPool.release(result.diff());
+                    inFlight.release();
+                    continue;
+                }
+                //the permits guarantee frame next is somewhere in the pipeline, so this map stays small
+                pending.put(result.index(), result.diff()); //null marks a frame that failed and gets skipped
+                while (pending.containsKey(next)) {
+                    BufferedImage diff = pending.remove(next);
+                    write(sink, next, diff);
+                    diffPool.release(diff);
+                    inFlight.release();
+                    next++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!pending.isEmpty()) {
+            Logger.log(pending.size() + " frames were never written, frame " + next + " is missing", LogLevel.Warn);
+        }
+    }
+
+    //a pair the source left a frame of out goes to the sink like one whose diff failed
+    private void skip(int index, BlockingQueue<Result> results, FrameSink sink, boolean inline, Semaphore inFlight) throws InterruptedException {
+        inFlight.acquire();
+        if (inline) {
+            write(sink, index, null);
+            inFlight.release();
+        } else {
+            results.put(new Result(index, null));
+        }
+    }
+
+    private void write(FrameSink sink, int index, BufferedImage diff) {
+        long start = System.nanoTime();
+        try {
+            if (diff != null) {
+                sink.write(index, diff);
+            } else {
+                sink.skip(index);
+            }
+        } catch (IOException e) {
+            Logger.log("Error writing frame " + index + ": " + e.getMessage(), LogLevel.Error);
+        }
+        writeNanos.addAndGet(System.nanoTime() - start);
+    }
+}
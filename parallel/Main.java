@@ -1,8 +1,14 @@
 package parallel;
 
 import util.Constants;
+import util.FrameDiff;
+import util.FrameSource;
 import util.LogLevel;
 import util.Logger;
+import util.Options;
+import util.PngFrameSource;
+import util.SegmentedFrameExtractor;
+import util.VideoProcessing;
 
 import java.io.File;
 import java.io.IOException;
@@ -12,7 +18,7 @@ public class Main {
         Logger.log("parallel.Main class started", LogLevel.Success);
 
         if (args.length == 0) {
-            Logger.log("No video path provided. Usage: java parallel.Main <video_path>", LogLevel.Error);
+            Logger.log("No video path provided. Usage: java parallel.Main <video_path> [--option[=value] ...], the options are listed in the README", LogLevel.Error);
             return;
         }
 
@@ -25,7 +31,10 @@ public class Main {
             return;
         }
 
-        handleProcessing(inputPath, Constants.MIDWAY_POINT);
+        Options options = new Options(args, 1);
+        FrameDiff.configure(options);
+        VideoProcessing.configure(options);
+        handleProcessing(inputPath, Constants.MIDWAY_POINT, options);
         Logger.log("Processing complete", LogLevel.Success);
     }
 
@@ -44,16 +53,38 @@ public class Main {
         return false;
     }
 
-    private static void handleProcessing(String inputPath, String outputPath) {
+    private static void handleProcessing(String inputPath, String outputPath, Options options) {
         Logger.log("Processing in parallel mode", LogLevel.Status);
         util.VideoProcessing vp = new util.VideoProcessing();
 
         try {
-            vp.extractFrames(inputPath, outputPath, Constants.FPS);
-            Logger.log("Video split successfully", LogLevel.Info);
-
-            ParallelProcessor pp = new ParallelProcessor();
-            pp.processFramesP(outputPath, Constants.OUTPUT_VIDEO_PATH, Constants.FPS);
+            ParallelProcessor pp = new ParallelProcessor(options);
+            //tracks are followed frame by frame, so --track needs the ordered pipeline like --encode
+            boolean inOrder = options.has("encode") || options.has("pipeline") || (options.has("track") && !options.has("no-render"));
+            if (options.has("stream")) {
+                //frames go straight from ffmpeg into memory, nothing is written to the midway folder
+                try (FrameSource source = vp.openFrameStream(inputPath, Constants.FPS)) {
+                    pp.processFramesP(source, vp.openFrameSink(options, Constants.OUTPUT_VIDEO_PATH, Constants.FPS));
+                }
+            } else if (options.getInt("segments", 1) > 1 && inOrder) {
+                //the pipeline reads the frames in order, so it can start on the first segment while the others are extracted
+                try (SegmentedFrameExtractor extractor = vp.startExtraction(inputPath, outputPath, Constants.FPS, options.getInt("segments", 1))) {
+                    pp.processFramesP(extractor.frames(), vp.openFrameSink(options, Constants.OUTPUT_VIDEO_PATH, Constants.FPS));
+                    extractor.await();
+                }
+            } else {
+                //with --segments the chunked path still needs every frame on disk before it lists the folder
+                vp.extractFrames(inputPath, outputPath, Constants.FPS, options.getInt("segments", 1));
+                Logger.log("Video split successfully", LogLevel.Info);
+                if (inOrder) {
+                    //the encoder and the tracker need frames in order, so pairs go through the pipeline in order instead of in chunks
+                    try (FrameSource source = new PngFrameSource(outputPath, options.getInt("decoders", 2))) {
+                        pp.processFramesP(source, vp.openFrameSink(options, Constants.OUTPUT_VIDEO_PATH, Constants.FPS));
+                    }
+                } else {
+                    pp.processFramesP(outputPath, vp.openFrameSink(options, Constants.OUTPUT_VIDEO_PATH, Constants.FPS));
+                }
+            }
             Logger.log("Video processed successfully", LogLevel.Success);
 
         } catch (IOException | InterruptedException e) {
@@ -1,206 +1,197 @@
 package parallel;
 
-import util.Constants;
+import util.FrameDiff;
+import util.FrameSink;
+import util.FrameSource;
+import util.ImageDecoder;
 import util.LogLevel;
 import util.Logger;
-import util.VideoProcessing;
+import util.Options;
+import util.PngFrameSink;
+import util.PngFrameSource;
+import util.StripeFrameDiff;
 
-import javax.imageio.ImageIO;
-import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Comparator;
-import java.util.Stack;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class ParallelProcessor {
-    public void processFramesP(String imgPath, String outputPath, int fps) throws IOException, InterruptedException {
-        File inputDir = new File(imgPath);
-        File outputDir = new File(outputPath);
+    //FrameDiff keeps scratch buffers between frames, so every worker thread gets its own
+    private final ThreadLocal<FrameDiff> frameDiff;
+    //prev, curr and diff images each thread decodes and diffs into, the png sink is done with the diff once write returns
+    private final ThreadLocal<BufferedImage[]> pairBuffers = ThreadLocal.withInitial(() -> new BufferedImage[3]);
+    //pool sizes of the pipeline stages
+    private final int workers;
+    private final int writers;
+    private final int queueCapacity;
+    //how the png directory path splits pairs between threads
+    private final boolean dynamicSchedule;
+    private final int batchSize;
+
+    public ParallelProcessor() {
+        this(new Options(new String[0], 0));
+    }
+
+    public ParallelProcessor(Options options) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        workers = Math.max(1, options.getInt("workers", cores - 1));
+        writers = Math.max(1, options.getInt("writers", Math.max(1, cores / 4)));
+        queueCapacity = Math.max(1, options.getInt("queue", 2 * workers));
+        //--schedule=static keeps one contiguous chunk per thread, so does --background: every chunk warms its model up over
+        //the frames before it, which small dynamic batches would have to do over and over
+        dynamicSchedule = !options.get("schedule", "dynamic").equals("static") && !FrameDiff.usesBackground();
+        batchSize = Math.max(1, options.getInt("batch", 2));
+
+        //--stripes=N also splits every frame into N stripes labelled on the ForkJoin pool, for 4K/8K frames or clips with few frames
+        int stripes = options.getInt("stripes", 0);
+        if (stripes > 1) {
+            Logger.log("Labelling each frame in " + stripes + " stripes", LogLevel.Info);
+            frameDiff = ThreadLocal.withInitial(() -> new StripeFrameDiff(ForkJoinPool.commonPool(), stripes));
+        } else {
+            frameDiff = ThreadLocal.withInitial(FrameDiff::new);
+        }
+    }
 
+    public void processFramesP(String imgPath, String outputPath, int fps) throws IOException, InterruptedException {
+        //png files can be written in any order so threads can work on any part of the video
+        processFramesP(imgPath, new PngFrameSink(outputPath, fps));
+    }
 
-        File[] frames = inputDir.listFiles(((dir, name) -> name.endsWith(".png")));
-        if(frames==null||frames.length==0) {
+    //the sink has to take frames in any order from several threads
+    public void processFramesP(String imgPath, FrameSink sink) throws IOException, InterruptedException {
+        File[] frames = PngFrameSource.listFrames(imgPath);
+        if(frames.length==0) {
             Logger.log("No frames found in the input directory", LogLevel.Error);
             return;
         }
-        //sort frames numerically by filename
-        Arrays.sort(frames, Comparator.comparingInt(f -> Integer.parseInt(f.getName().replaceAll("\\D+", ""))));
 
-        //check if output directory exists and make sure its empty
-        if (outputDir.exists()) {
-            for (File file : outputDir.listFiles()) {
-                deleteRecursively(file);
-            }
-        } else {
-            outputDir.mkdirs();
-        }
-        //creatinf a threadpool with #threads=#cores-1 so that 1 still works if i mess up
-        int numThreads = Runtime.getRuntime().availableProcessors()-1;
-        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        WorkerStats[] stats = new WorkerStats[workers];
         long start = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
 
         int totalFrames = frames.length - 1;
-        int chunkSize = (int) Math.ceil((double) totalFrames / numThreads);
-
-        for (int t = 0; t < numThreads; t++) {
-            int startFrame = t * chunkSize;
-            int end = Math.min(startFrame + chunkSize, totalFrames); //wnsure we dont go out of bounds
-
-            executor.submit(() -> { // process frames in this chunk
-                for (int i = startFrame; i < end; i++) {
+        if (dynamicSchedule) {
+            //workers take small batches from a shared cursor, so frames with lots of motion don't hold up one thread's whole chunk
+            AtomicInteger cursor = new AtomicInteger();
+            for (int t = 0; t < workers; t++) {
+                WorkerStats workerStats = stats[t] = new WorkerStats();
+                executor.submit(() -> {
                     try {
-                        BufferedImage frame1 = ImageIO.read(frames[i]);
-                        BufferedImage frame2 = ImageIO.read(frames[i + 1]);
+                        int first;
+                        while ((first = cursor.getAndAdd(batchSize)) < totalFrames) {
+                            int end = Math.min(first + batchSize, totalFrames);
+                            for (int i = first; i < end; i++) {
+                                processPair(frames, i, sink, workerStats);
+                            }
+                        }
+                    } finally {
+                        workerStats.finish();
+                    }
+                });
+            }
+        } else {
+            int chunkSize = (int) Math.ceil((double) totalFrames / workers);
+            for (int t = 0; t < workers; t++) {
+                int startFrame = t * chunkSize;
+                int end = Math.min(startFrame + chunkSize, totalFrames); //wnsure we dont go out of bounds
+                WorkerStats workerStats = stats[t] = new WorkerStats();
+                if (startFrame >= end) {
+                    //more workers than pairs per chunk leaves the last ones without frames, they don't touch the model either
+                    workerStats.finish();
+                    continue;
+                }
 
-                        Logger.log("Thread " + Thread.currentThread().getName() + " processing frames: " + frames[i].getName() + " and " + frames[i + 1].getName(), LogLevel.Debug);
-                        BufferedImage diff = computeDifference(frame1, frame2);
-                        saveProccessedFrame(diff, outputPath, frames[i + 1].getName());
+                executor.submit(() -> { // process frames in this chunk
+                    try {
+                        warmUpBackground(frames, startFrame);
+                        for (int i = startFrame; i < end; i++) {
+                            processPair(frames, i, sink, workerStats);
+                        }
+                        //only the chunk that really ends the video has seen its last frames
+                        if (end == totalFrames) frameDiff.get().saveBackground();
                     } catch (IOException e) {
-                        Logger.log("Error processing frame pair: " + i, LogLevel.Error);
+                        Logger.log("Error saving the background model: " + e.getMessage(), LogLevel.Error);
+                    } finally {
+                        workerStats.finish();
                     }
-                }
-            });
+                });
+            }
         }
 
         executor.shutdown();
         executor.awaitTermination(1, TimeUnit.HOURS);
         Logger.log("Processing complete in parallel in "+ (System.currentTimeMillis()-start)+" ms", LogLevel.Status);
+        WorkerStats.report(stats, startNanos);
 
-        VideoProcessing vp=new VideoProcessing();
-        vp.makeVideo(outputPath, "output.mp4", fps);
+        sink.finish();
 
     }
 
-    private void deleteRecursively(File file) {
-        if (file.isDirectory()) {
-            for (File sub : file.listFiles()) {
-                deleteRecursively(sub);
-            }
-        }
-        if (!file.delete()) {
-            Logger.log("Failed to delete file: " + file.getAbsolutePath(), LogLevel.Error);
+    //the chunk's model is brought up to the frame before its first pair, a failed lead-in leaves it where it got to
+    private void warmUpBackground(File[] frames, int first) {
+        try {
+            frameDiff.get().startBackground(first, (i, reuse) -> frames[i].isFile() ? ImageDecoder.read(frames[i], reuse) : null);
+        } catch (IOException | RuntimeException e) {
+            Logger.log("Could not warm up the background model before frame " + first + ": " + e.getMessage(), LogLevel.Warn);
         }
     }
 
-
-
-    private void saveProccessedFrame(BufferedImage frame, String output, String frameName) throws IOException {
-        File outputFile = new File(output, frameName);
-        ImageIO.write(frame, "PNG", outputFile);
-
-    }
-
-    private BufferedImage computeDifference(BufferedImage prevFrame, BufferedImage currentFrame){
-        int width=prevFrame.getWidth();
-        int height=prevFrame.getHeight();
-
-        boolean [][] visited = new boolean[width][height];
-        Color[] colors=randomColors(10);
-        int colorIndex=0; //index of the color to use for coloring the contiguous area
-
-        BufferedImage diffFrame=new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                if(!visited[i][j]) {
-
-                    int prevPixel = prevFrame.getRGB(i, j);
-                    int currPixel = currentFrame.getRGB(i, j);
-                    double diff = pixelDifference(prevPixel, currPixel);
-
-
-                    // check if the pixel has changed significantly
-                    //Logger.log("Pixel difference at " + i + ", " + j + ": " + pixelDifference(prevPixel, currPixel), LogLevel.Debug);
-
-                    if (diff > Constants.PIXEL_DIFF_THRESHOLD) {
-
-                        // recolor pixel if difference
-
-                        //diffFrame.setRGB(i, j, new Color(255, 0, 0, 40).getRGB());
-                        fillRegion(diffFrame, prevFrame, currentFrame, visited, i, j, colors[colorIndex]);
-                        colorIndex = (colorIndex + 1) % colors.length;//cycle through colors
-                        // Logger.log("Pixel changed at: "+i+" "+j, LogLevel.Debug);
-                    } else {
-                        //keep if no difference
-                        diffFrame.setRGB(i, j, currPixel);
-                    }
-                }
+    private void processPair(File[] frames, int i, FrameSink sink, WorkerStats stats) {
+        long start = System.nanoTime();
+        boolean unchanged = false;
+        try {
+            BufferedImage[] buffers = pairBuffers.get();
+            //a frame file missing from the folder keeps its place in frames, so the pairs around it are skipped
+            BufferedImage frame1 = frames[i].isFile() ? ImageDecoder.read(frames[i], buffers[0]) : null;
+            BufferedImage frame2 = frames[i + 1].isFile() ? ImageDecoder.read(frames[i + 1], buffers[1]) : null;
+            if (frame1 == null || frame2 == null) {
+                Logger.log("Could not read " + (frame1 == null ? frames[i] : frames[i + 1]).getName() + ", frame " + (i + 1) + " is skipped", LogLevel.Error);
+                skip(sink, i + 1);
+            } else {
+                buffers[0] = frame1;
+                buffers[1] = frame2;
+                Logger.log("Thread " + Thread.currentThread().getName() + " processing frames: " + frames[i].getName() + " and " + frames[i + 1].getName(), LogLevel.Debug);
+                BufferedImage diff = buffers[2] = frameDiff.get().computeDifference(frame1, frame2, buffers[2]);
+                sink.writeRegions(i + 1, frameDiff.get().lastRegions());
+                unchanged = frameDiff.get().lastUnchanged();
+                sink.write(i + 1, diff);
             }
-
+        } catch (IOException | RuntimeException e) {
+            //the rest of the batch goes on, ordered sinks still need to hear about this frame
+            Logger.log("Error processing frame pair " + i + ": " + e, LogLevel.Error);
+            skip(sink, i + 1);
         }
-        return diffFrame;
+        stats.addPair(System.nanoTime() - start, unchanged);
     }
 
-    private void fillRegion(BufferedImage diffFrame, BufferedImage prevFrame, BufferedImage currentFrame, boolean[][] visited, int x, int y, Color color) {
-        int width = prevFrame.getWidth();
-        int height = prevFrame.getHeight();
-
-        Stack<Point> stack = new Stack<>();
-        stack.push(new Point(x, y));
-
-        while (!stack.isEmpty()) {
-            Point point = stack.pop();
-            int px = point.x;
-            int py = point.y;
-
-            //chheck bounds and already visited
-            if (px < 0 || px >= width || py < 0 || py >= height || visited[px][py]) {
-                continue;
-            }
-
-            int prevPixel = prevFrame.getRGB(px, py);
-            int currPixel = currentFrame.getRGB(px, py);
-            double diff = pixelDifference(prevPixel, currPixel);
-
-            // if pixel difference significant, color it and add neighbors to stack
-            if (diff > Constants.PIXEL_DIFF_THRESHOLD) {
-                visited[px][py] = true;
-                diffFrame.setRGB(px, py, color.getRGB());
-
-                stack.push(new Point(px + 1, py)); //right
-                stack.push(new Point(px - 1, py)); // left
-                stack.push(new Point(px, py + 1)); //up
-                stack.push(new Point(px, py - 1)); //down
-            }
+    private static void skip(FrameSink sink, int index) {
+        try {
+            sink.skip(index);
+        } catch (IOException e) {
+            Logger.log("Error skipping frame " + index + ": " + e.getMessage(), LogLevel.Error);
         }
     }
 
+    //decode -> diff -> write pipeline, frames are decoded once and the stages overlap
+    //used for streamed sources, for sinks that need the frames in order and with --pipeline
+    public void processFramesP(FrameSource source, FrameSink sink) throws IOException, InterruptedException {
+        Logger.log("Pipeline with " + workers + " diff workers, " + writers + " writers, queues of " + queueCapacity, LogLevel.Info);
+        long start = System.currentTimeMillis();
 
-    private Color[] randomColors(int n) {
-        Color[] colors = new Color[n];
-        for (int i = 0; i < n; i++) {
-            int r = (int) (Math.random() * 256);
-            int g = (int) (Math.random() * 256);
-            int b = (int) (Math.random() * 256);
-            int alpha = (int) (Math.random() * 50);
-
-            colors[i] = new Color(r, g, b, alpha);
+        FramePipeline pipeline = new FramePipeline(workers, writers, queueCapacity, frameDiff);
+        pipeline.run(source, sink);
+        Logger.log("Processing complete in parallel in "+ (System.currentTimeMillis()-start)+" ms", LogLevel.Status);
+        if (FrameDiff.skipsStaticPairs()) {
+            Logger.log(pipeline.unchangedPairs() + " frames had no motion and skipped the pixel pass", LogLevel.Status);
         }
-        return colors;
-    }
-
-
-
-    private double pixelDifference(int prevPixel, int currPixel) {
-        //rgb structure: AARRGGBB in bytes
-        int r1 = (prevPixel >> 16) & 0xff;//shift 16 bits to the right and mask with 0xff
-        int g1 = (prevPixel >> 8) & 0xff;
-        int b1 = prevPixel & 0xff;
-
-        int r2 = (currPixel >> 16) & 0xff;
-        int g2 = (currPixel >> 8) & 0xff;
-        int b2 = currPixel & 0xff;
-
-
-        int diff = Math.abs(r1 - r2) + Math.abs(g1 - g2) + Math.abs(b1 - b2);
-
-        // 255 is the maximum value for a color channel
 
-        return (diff / (3.0 * 255.0)) * 100.0; // Normalize and scale to percentage
+        sink.finish();
     }
 }
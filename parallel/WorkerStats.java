@@ -0,0 +1,43 @@
+package parallel;
+
+import util.FrameDiff;
+import util.LogLevel;
+import util.Logger;
+
+//per worker counters so uneven scheduling shows up as idle time at the end of a run
+class WorkerStats {
+    private int pairs = 0;
+    private int unchanged = 0; //pairs that matched on their fingerprints with --skip-static
+    private long busyNanos = 0;
+    private long finishedAt = 0;
+
+    void addPair(long nanos, boolean unchanged) {
+        pairs++;
+        if (unchanged) this.unchanged++;
+        busyNanos += nanos;
+    }
+
+    void finish() {
+        finishedAt = System.nanoTime();
+    }
+
+    //idle is the time between a worker running out of work and the last worker finishing
+    static void report(WorkerStats[] stats, long startNanos) {
+        long end = startNanos;
+        for (WorkerStats s : stats) end = Math.max(end, s.finishedAt);
+        long wall = end - startNanos;
+        long firstDone = end;
+        int unchanged = 0;
+        for (int w = 0; w < stats.length; w++) {
+            WorkerStats s = stats[w];
+            firstDone = Math.min(firstDone, s.finishedAt);
+            unchanged += s.unchanged;
+            Logger.log("Worker " + w + ": " + s.pairs + " pairs, busy " + s.busyNanos / 1_000_000 + " ms, idle "
+                    + (wall - s.busyNanos) / 1_000_000 + " ms", LogLevel.Info);
+        }
+        Logger.log("First worker ran out of work " + (end - firstDone) / 1_000_000 + " ms before the last one finished", LogLevel.Info);
+        if (FrameDiff.skipsStaticPairs()) {
+            Logger.log(unchanged + " frames had no motion and skipped the pixel pass", LogLevel.Status);
+        }
+    }
+}
@@ -1,8 +1,15 @@
 package sequential;
 
 import util.Constants;
+import util.FrameDiff;
+import util.FrameSink;
+import util.FrameSource;
 import util.LogLevel;
 import util.Logger;
+import util.Options;
+import util.PngFrameSource;
+import util.SegmentedFrameExtractor;
+import util.VideoProcessing;
 
 import java.io.File;
 import java.io.IOException;
@@ -12,7 +19,7 @@ public class Main {
         Logger.log("sequential.Main class started", LogLevel.Success);
 
         if (args.length == 0) {
-            Logger.log("No video path provided. Usage: java sequential.Main <video_path>", LogLevel.Error);
+            Logger.log("No video path provided. Usage: java sequential.Main <video_path> [--option[=value] ...], the options are listed in the README", LogLevel.Error);
             return;
         }
 
@@ -25,7 +32,10 @@ public class Main {
             return;
         }
 
-        handleProcessing(inputPath, Constants.MIDWAY_POINT);
+        Options options = new Options(args, 1);
+        FrameDiff.configure(options);
+        VideoProcessing.configure(options);
+        handleProcessing(inputPath, Constants.MIDWAY_POINT, options);
         Logger.log("Processing complete", LogLevel.Success);
     }
 
@@ -44,16 +54,29 @@ public class Main {
         return false;
     }
 
-    private static void handleProcessing(String inputPath, String outputPath) {
+    private static void handleProcessing(String inputPath, String outputPath, Options options) {
         Logger.log("Processing in sequential mode", LogLevel.Status);
         util.VideoProcessing vp = new util.VideoProcessing();
 
         try {
-            vp.extractFrames(inputPath, outputPath, Constants.FPS);
-            Logger.log("Video split successfully", LogLevel.Info);
-
             SequentialProcessor sp = new SequentialProcessor();
-            sp.processFramesS(outputPath, Constants.OUTPUT_VIDEO_PATH, Constants.FPS);
+            FrameSink sink = vp.openFrameSink(options, Constants.OUTPUT_VIDEO_PATH, Constants.FPS);
+            if (options.has("stream")) {
+                //frames go straight from ffmpeg into memory, nothing is written to the midway folder
+                try (FrameSource source = vp.openFrameStream(inputPath, Constants.FPS)) {
+                    sp.processFramesS(source, sink);
+                }
+            } else if (options.getInt("segments", 1) > 1) {
+                //processing starts on the first segment's frames while the other segments are still extracted
+                try (SegmentedFrameExtractor extractor = vp.startExtraction(inputPath, outputPath, Constants.FPS, options.getInt("segments", 1))) {
+                    sp.processFramesS(extractor.frames(), sink);
+                    extractor.await();
+                }
+            } else {
+                vp.extractFrames(inputPath, outputPath, Constants.FPS);
+                Logger.log("Video split successfully", LogLevel.Info);
+                sp.processFramesS(new PngFrameSource(outputPath), sink);
+            }
             Logger.log("Video processed successfully", LogLevel.Success);
 
         } catch (IOException | InterruptedException e) {
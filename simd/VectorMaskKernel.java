@@ -0,0 +1,57 @@
+package simd;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import util.FrameDiff;
+import util.MaskKernel;
+
+//same mask as ScalarMaskKernel, but SPECIES lanes at a time (8 ints with AVX2, 16 with AVX-512)
+//kept out of util/ so the rest compiles without the incubator module, build it on its own after util:
+//javac --add-modules jdk.incubator.vector -cp . -d . simd/VectorMaskKernel.java
+//it still needs --add-modules jdk.incubator.vector at run time, MaskKernel.select loads it by name and falls back to
+//scalar without it
+public class VectorMaskKernel implements MaskKernel {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    //a power of two up to 16 on x86 and arm, so a vector never spans two mask words
+    private static final int LANES = SPECIES.length();
+
+    static {
+        assert 64 % LANES == 0 : "unsupported vector length " + LANES;
+    }
+
+    @Override
+    public void computeMask(int[] prev, int[] curr, long[] mask, int from, int to, int threshold) {
+        for (int base = from; base < to; base += 64) {
+            int end = Math.min(base + 64, to);
+            long bits = 0;
+            int p = base;
+            for (; p + LANES <= end; p += LANES) {
+                IntVector a = IntVector.fromArray(SPECIES, prev, p);
+                IntVector b = IntVector.fromArray(SPECIES, curr, p);
+                IntVector sad = channelDiff(a, b, 16).add(channelDiff(a, b, 8)).add(channelDiff(a, b, 0));
+                VectorMask<Integer> changed = sad.compare(VectorOperators.GT, threshold);
+                bits |= changed.toLong() << (p - base);
+            }
+            //tail of the frame, only when the pixel count is not a multiple of the lane count
+            for (; p < end; p++) {
+                if (FrameDiff.pixelDifference(prev[p], curr[p]) > threshold) {
+                    bits |= 1L << p;
+                }
+            }
+            mask[base >>> 6] = bits;
+        }
+    }
+
+    private static IntVector channelDiff(IntVector a, IntVector b, int shift) {
+        IntVector ca = a.lanewise(VectorOperators.LSHR, shift).and(0xff);
+        IntVector cb = b.lanewise(VectorOperators.LSHR, shift).and(0xff);
+        return ca.sub(cb).abs();
+    }
+
+    @Override
+    public String toString() {
+        return "vector, " + LANES + " lanes";
+    }
+}
@@ -0,0 +1,81 @@
+package test;
+
+import util.FrameCodec;
+import util.ImageDecoder;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+//writes synthetic frames with every --frame-format and reads them back through ImageDecoder like the stages do,
+//every pixel has to come back unchanged, including translucent ones
+public class FrameCodecTest {
+
+    public static void main(String[] args) throws Exception {
+        FrameCodec[] codecs = {FrameCodec.select("png", -1), FrameCodec.select("png", 1), FrameCodec.select("qoi", -1),
+                FrameCodec.select("raw", -1)};
+        Random random = new Random(7);
+        BufferedImage opaque = FrameDiffTest.syntheticFrame(random, BufferedImage.TYPE_3BYTE_BGR, 20);
+        BufferedImage translucent = translucent(FrameDiffTest.syntheticFrame(random, BufferedImage.TYPE_INT_ARGB, 20), random);
+        //long runs, a color that only changes alpha and a flat frame where every pixel hits the qoi run limit
+        BufferedImage flat = new BufferedImage(200, 3, BufferedImage.TYPE_INT_ARGB);
+        for (int x = 0; x < 200; x++) flat.setRGB(x, 1, x < 100 ? 0x80ffffff : 0xffffffff);
+
+        boolean ok = true;
+        for (FrameCodec codec : codecs) {
+            for (BufferedImage frame : new BufferedImage[]{opaque, translucent, flat}) {
+                ok &= roundTrip(codec, frame, false);
+                ok &= roundTrip(codec, frame, true);
+            }
+        }
+        System.out.println(ok ? "All codecs lossless" : "Codecs differ");
+        if (!ok) System.exit(1);
+    }
+
+    //through a stream like the frames sent between ranks, or through a file named like VideoProcessing.frameName
+    private static boolean roundTrip(FrameCodec codec, BufferedImage frame, boolean file) throws Exception {
+        BufferedImage decoded;
+        String name = codec + (file ? " file" : " stream") + " type " + frame.getType() + " " + frame.getWidth() + "x" + frame.getHeight();
+        if (file) {
+            File temp = File.createTempFile("frame-codec-test", "." + codec.extension());
+            try (OutputStream out = new FileOutputStream(temp)) {
+                codec.write(frame, out);
+            }
+            //a wrong sized image to reuse, it must not end up in the result
+            decoded = ImageDecoder.read(temp, new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB));
+            temp.delete();
+        } else {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            codec.write(frame, out);
+            decoded = ImageDecoder.read(new ByteArrayInputStream(out.toByteArray()), null);
+        }
+        if (decoded == null || decoded.getWidth() != frame.getWidth() || decoded.getHeight() != frame.getHeight()) {
+            System.out.println("FAIL " + name + " wrong size");
+            return false;
+        }
+        for (int y = 0; y < frame.getHeight(); y++) {
+            for (int x = 0; x < frame.getWidth(); x++) {
+                if (frame.getRGB(x, y) != decoded.getRGB(x, y)) {
+                    System.out.println("FAIL " + name + " at " + x + "," + y + ": " + Integer.toHexString(frame.getRGB(x, y))
+                            + " became " + Integer.toHexString(decoded.getRGB(x, y)));
+                    return false;
+                }
+            }
+        }
+        System.out.println("OK   " + name);
+        return true;
+    }
+
+    //region colors are drawn with alpha, this gives a quarter of the pixels a random one
+    private static BufferedImage translucent(BufferedImage frame, Random random) {
+        for (int i = 0; i < frame.getWidth() * frame.getHeight() / 4; i++) {
+            int x = random.nextInt(frame.getWidth()), y = random.nextInt(frame.getHeight());
+            frame.setRGB(x, y, (frame.getRGB(x, y) & 0xffffff) | random.nextInt(256) << 24);
+        }
+        return frame;
+    }
+}
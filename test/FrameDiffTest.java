@@ -0,0 +1,475 @@
+package test;
+
+import parallel.FramePipeline;
+import util.Constants;
+import util.FrameDiff;
+import util.FrameSink;
+import util.FrameSource;
+import util.MaskKernel;
+import util.RegionStats;
+import util.StripeFrameDiff;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.Stack;
+import java.util.concurrent.ForkJoinPool;
+
+//checks util.FrameDiff against the getRGB/setRGB version the processors used before
+public class FrameDiffTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 360;
+    //shared so the scratch buffers get reused between frames like in the processors
+    private static final FrameDiff FRAME_DIFF = new FrameDiff();
+
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        boolean ok = true;
+        for (int type : new int[]{BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB}) {
+            for (int blobs : new int[]{0, 5, 50}) {
+                BufferedImage prev = syntheticFrame(random, type, 0);
+                BufferedImage curr = syntheticFrame(random, type, blobs);
+                ok &= compare("type " + type + ", " + blobs + " blobs", prev, curr);
+            }
+        }
+
+        for (int stripes : new int[]{1, 3, 8, 22}) {
+            for (int blobs : new int[]{5, 200}) {
+                BufferedImage prev = syntheticFrame(random, BufferedImage.TYPE_INT_ARGB, 0);
+                BufferedImage curr = syntheticFrame(random, BufferedImage.TYPE_INT_ARGB, blobs);
+                ok &= compareStripes(stripes, blobs, prev, curr);
+            }
+        }
+
+        ok &= compareTiles(random);
+        ok &= comparePyramid(random);
+        ok &= compareStatic(random);
+        ok &= compareBackground(random);
+        ok &= compareBackgroundChunks(random);
+
+        BufferedImage prev = syntheticFrame(random, BufferedImage.TYPE_3BYTE_BGR, 0);
+        BufferedImage curr = syntheticFrame(random, BufferedImage.TYPE_3BYTE_BGR, 50);
+        FrameDiff frameDiff = new FrameDiff();
+        long oldTime = time(() -> referenceDifference(prev, curr));
+        long newTime = time(() -> frameDiff.computeDifference(prev, curr));
+        FrameDiff stripeDiff = new StripeFrameDiff(ForkJoinPool.commonPool(), ForkJoinPool.getCommonPoolParallelism());
+        long stripeTime = time(() -> stripeDiff.computeDifference(prev, curr));
+        System.out.println("getRGB version: " + oldTime + " ms, FrameDiff: " + newTime + " ms, StripeFrameDiff: " + stripeTime + " ms per frame");
+
+        System.out.println(ok ? "All masks identical" : "Masks differ");
+        if (!ok) System.exit(1);
+    }
+
+    private static boolean compare(String name, BufferedImage prev, BufferedImage curr) {
+        BufferedImage expected = referenceDifference(prev, curr);
+        BufferedImage actual = FRAME_DIFF.computeDifference(prev, curr);
+        int changed = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int c = curr.getRGB(x, y);
+                int e = expected.getRGB(x, y);
+                int a = actual.getRGB(x, y);
+                //region colors are random but always translucent, unchanged pixels are copied as they are
+                boolean expectedChanged = e != c;
+                boolean actualChanged = a != c;
+                if (expectedChanged != actualChanged || (!expectedChanged && e != a)) {
+                    System.out.println("FAIL " + name + " at " + x + "," + y);
+                    return false;
+                }
+                if (actualChanged) changed++;
+                //neighbouring changed pixels belong to the same region and must share its color
+                if (actualChanged && x > 0 && actual.getRGB(x - 1, y) != curr.getRGB(x - 1, y) && actual.getRGB(x - 1, y) != a
+                        || actualChanged && y > 0 && actual.getRGB(x, y - 1) != curr.getRGB(x, y - 1) && actual.getRGB(x, y - 1) != a) {
+                    System.out.println("FAIL " + name + " region split at " + x + "," + y);
+                    return false;
+                }
+            }
+        }
+        System.out.println("OK   " + name + " (" + changed + " changed pixels)");
+        return true;
+    }
+
+    //with the same seed both must pick the same colors for the same regions, so the images have to match exactly
+    private static boolean compareStripes(int stripes, int blobs, BufferedImage prev, BufferedImage curr) {
+        BufferedImage expected = new FrameDiff(new Random(7)).computeDifference(prev, curr);
+        BufferedImage actual = new StripeFrameDiff(ForkJoinPool.commonPool(), stripes, new Random(7)).computeDifference(prev, curr);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                if (expected.getRGB(x, y) != actual.getRGB(x, y)) {
+                    System.out.println("FAIL " + stripes + " stripes, " + blobs + " blobs at " + x + "," + y);
+                    return false;
+                }
+            }
+        }
+        System.out.println("OK   " + stripes + " stripes, " + blobs + " blobs");
+        return true;
+    }
+
+    //--tiles=1 samples every pixel so the output has to be identical, --tiles=2 may only miss changes no sample touched,
+    //which on frames without sensor noise means none; the timing is for a static frame, a few blobs and a busy frame
+    private static boolean compareTiles(Random random) {
+        boolean ok = true;
+        for (int blobs : new int[]{0, 5, 200}) {
+            BufferedImage prev = syntheticFrame(random, BufferedImage.TYPE_INT_ARGB, 0);
+            BufferedImage curr = syntheticFrame(random, BufferedImage.TYPE_INT_ARGB, blobs);
+            BufferedImage still = syntheticFrame(random, BufferedImage.TYPE_INT_ARGB, 0, false);
+            BufferedImage moved = syntheticFrame(random, BufferedImage.TYPE_INT_ARGB, blobs, false);
+            FrameDiff.setDefaultTileStep(1);
+            FrameDiff exactTiles = new FrameDiff(new Random(7));
+            FrameDiff.setDefaultTileStep(2);
+            FrameDiff sampled = new FrameDiff(new Random(7));
+            FrameDiff.setDefaultTileStep(0);
+            FrameDiff full = new FrameDiff(new Random(7));
+            boolean same = sameImage(full.computeDifference(prev, curr), exactTiles.computeDifference(prev, curr));
+            //the random colors move on with every frame, so each diff gets its own twin
+            boolean sameSampled = sameImage(new FrameDiff(new Random(9)).computeDifference(still, moved),
+                    sampledTwin().computeDifference(still, moved));
+            long fullTime = time(() -> full.computeDifference(still, moved));
+            long tileTime = time(() -> sampled.computeDifference(still, moved));
+            if (!same || !sameSampled) {
+                System.out.println("FAIL tiles, " + blobs + " blobs: " + (!same ? "--tiles=1" : "--tiles=2") + " differs");
+                ok = false;
+            } else {
+                System.out.println("OK   tiles, " + blobs + " blobs: " + sampled.lastComparedTiles() + " of " + sampled.lastTileCount()
+                        + " tiles compared, full " + fullTime + " ms, tiles " + tileTime + " ms per frame");
+            }
+        }
+        return ok;
+    }
+
+    //the pyramid may miss faint or tiny changes but never reports a pixel the exact path doesn't,
+    //every region it finds is followed to its full size, and no blob is missed, only sensor noise
+    private static boolean comparePyramid(Random random) {
+        boolean ok = true;
+        int words = (WIDTH * HEIGHT + 63) >>> 6;
+        for (int blobs : new int[]{5, 50}) {
+            BufferedImage prev = syntheticFrame(random, BufferedImage.TYPE_INT_ARGB, 0);
+            BufferedImage curr = syntheticFrame(random, BufferedImage.TYPE_INT_ARGB, blobs);
+            FrameDiff exact = new FrameDiff(new Random(7), MaskKernel.select(false), 0);
+            exact.computeDifference(prev, curr);
+            for (int levels = 1; levels <= 3; levels++) {
+                FrameDiff pyramid = new FrameDiff(new Random(7), MaskKernel.select(false), levels);
+                pyramid.computeDifference(prev, curr);
+                long[] e = exact.lastMask(), p = pyramid.lastMask();
+                long found = 0, all = 0;
+                boolean subset = true;
+                for (int w = 0; w < words; w++) {
+                    subset &= (p[w] & ~e[w]) == 0;
+                    found += Long.bitCount(p[w]);
+                    all += Long.bitCount(e[w]);
+                }
+                boolean whole = sameRegionsFound(exact.lastRegions(), pyramid.lastRegions());
+                int missed = missedBlobs(exact.lastRegions(), pyramid.lastRegions());
+                if (!subset || !whole || missed > 0) {
+                    System.out.println("FAIL pyramid " + levels + " levels, " + blobs + " blobs: " + (!subset ? "pixels outside the exact mask"
+                            : !whole ? "region cut short" : missed + " blobs missed"));
+                    ok = false;
+                } else {
+                    System.out.println(String.format(Locale.ROOT, "OK   pyramid %d levels, %d blobs: %.1f%% of changed pixels, %d of %d regions",
+                            levels, blobs, 100.0 * found / all, pyramid.lastRegions().count(), exact.lastRegions().count()));
+                }
+            }
+        }
+        return ok;
+    }
+
+    //a repeated frame is copied without the pixel pass, a frame with motion still gets the full diff
+    private static boolean compareStatic(Random random) {
+        BufferedImage still = syntheticFrame(random, BufferedImage.TYPE_INT_ARGB, 0, false);
+        BufferedImage repeat = new BufferedImage(still.getColorModel(), still.copyData(null), false, null);
+        BufferedImage moved = syntheticFrame(random, BufferedImage.TYPE_INT_ARGB, 5, false);
+        FrameDiff.setDefaultStaticTolerance(FrameDiff.DEFAULT_STATIC_TOLERANCE);
+        FrameDiff skipping = new FrameDiff(new Random(7));
+        FrameDiff.setDefaultStaticTolerance(-1);
+        FrameDiff full = new FrameDiff(new Random(7));
+
+        BufferedImage copy = skipping.computeDifference(still, repeat);
+        boolean skipped = skipping.lastUnchanged() && skipping.lastRegions().count() == 0 && sameImage(copy, repeat);
+        full.computeDifference(still, repeat);
+        boolean moving = sameImage(full.computeDifference(still, moved), skipping.computeDifference(still, moved)) && !skipping.lastUnchanged();
+        if (!skipped || !moving) {
+            System.out.println("FAIL skip static: " + (!skipped ? "repeated frame was not copied" : "frame with motion differs"));
+            return false;
+        }
+        //in order pairs keep the curr fingerprint for the next pair and have to find the same unchanged pairs
+        BufferedImage[] run = {still, repeat, moved, new BufferedImage(moved.getColorModel(), moved.copyData(null), false, null), still};
+        FrameDiff.setDefaultStaticTolerance(FrameDiff.DEFAULT_STATIC_TOLERANCE);
+        FrameDiff inOrder = new FrameDiff(new Random(7));
+        FrameDiff separate = new FrameDiff(new Random(7));
+        FrameDiff.setDefaultStaticTolerance(-1);
+        for (int i = 1; i < run.length; i++) {
+            BufferedImage expected = separate.computeDifference(run[i - 1], run[i]);
+            boolean expectedUnchanged = separate.lastUnchanged();
+            if (!sameImage(expected, inOrder.computeNextDifference(run[i - 1], run[i], null)) || inOrder.lastUnchanged() != expectedUnchanged) {
+                System.out.println("FAIL skip static: in order pair " + i + " differs from a separate pair");
+                return false;
+            }
+        }
+        long fullTime = time(() -> full.computeDifference(still, repeat));
+        long skipTime = time(() -> skipping.computeDifference(still, repeat));
+        System.out.println("OK   skip static: repeated frame full " + fullTime + " ms, skipped " + skipTime + " ms per frame");
+        return true;
+    }
+
+    //a freshly seeded model gives the pairwise diff, stripes update it like one thread does,
+    //and a model restored from a snapshot carries on exactly like the one that wrote it
+    //a fast model (shift 1) so the frames before the snapshot still show in it
+    private static boolean compareBackground(Random random) {
+        BufferedImage[] frames = new BufferedImage[5];
+        for (int i = 0; i < frames.length; i++) frames[i] = syntheticFrame(random, BufferedImage.TYPE_INT_ARGB, 5 * i, false);
+        try {
+            Path state = Files.createTempFile("background", ".bin");
+            FrameDiff.setDefaultBackground(1, null, state.toString());
+            FrameDiff model = new FrameDiff(new Random(7));
+            FrameDiff stripes = new StripeFrameDiff(ForkJoinPool.commonPool(), 5, new Random(7));
+            FrameDiff.setDefaultBackground(0, null, null);
+            FrameDiff pairwise = new FrameDiff(new Random(7));
+            boolean seeded = sameImage(pairwise.computeDifference(frames[0], frames[1]), model.computeDifference(frames[0], frames[1]));
+            stripes.computeDifference(frames[0], frames[1]);
+            boolean striped = true;
+            for (int i = 2; i < 4; i++) {
+                striped &= sameImage(model.computeDifference(frames[i - 1], frames[i]), stripes.computeDifference(frames[i - 1], frames[i]));
+            }
+            model.saveBackground();
+
+            FrameDiff.setDefaultBackground(1, Files.readAllBytes(state), null);
+            FrameDiff restored = new FrameDiff(new Random(7));
+            FrameDiff.setDefaultBackground(0, null, null);
+            //three frames to get to the same colors as model, then back to the snapshot
+            for (int i = 0; i < 3; i++) restored.computeDifference(frames[0], frames[0]);
+            restored.restartBackground();
+            //prev is ignored once the model is seeded
+            boolean same = sameImage(model.computeDifference(frames[3], frames[4]), restored.computeDifference(frames[0], frames[4]));
+            Files.delete(state);
+            if (!seeded || !striped || !same) {
+                System.out.println("FAIL background: " + (!seeded ? "seeded model differs from the pair diff"
+                        : !striped ? "stripes differ" : "restored snapshot differs"));
+                return false;
+            }
+            System.out.println("OK   background: seeded, striped and restored models agree");
+            return true;
+        } catch (IOException e) {
+            System.out.println("FAIL background: " + e.getMessage());
+            return false;
+        }
+    }
+
+    //a pipeline with several diff workers and a chunk warmed up over its lead-in find the regions one thread does
+    private static boolean compareBackgroundChunks(Random random) {
+        BufferedImage[] frames = new BufferedImage[10];
+        for (int i = 0; i < frames.length; i++) frames[i] = syntheticFrame(random, BufferedImage.TYPE_INT_ARGB, 5 + i, false);
+        FrameDiff.setDefaultBackground(1, null, null);
+        try {
+            String[] sequential = new String[frames.length];
+            FrameDiff single = new FrameDiff();
+            for (int i = 1; i < frames.length; i++) {
+                single.computeDifference(frames[i - 1], frames[i]);
+                sequential[i] = regionBoxes(single.lastRegions());
+            }
+
+            String[] piped = new String[frames.length];
+            FrameSource source = new FrameSource() {
+                private int next;
+
+                public BufferedImage read(BufferedImage reuse) {
+                    return next < frames.length ? frames[next++] : null;
+                }
+
+                public int lastIndex() {
+                    return next - 1;
+                }
+
+                public String frameName(int index) {
+                    return "frame_" + index;
+                }
+
+                public int frameCount() {
+                    return frames.length;
+                }
+
+                public void close() {
+                }
+            };
+            FrameSink sink = new FrameSink() {
+                public void write(int index, BufferedImage frame) {
+                }
+
+                public void writeRegions(int index, RegionStats regions) {
+                    piped[index] = regionBoxes(regions);
+                }
+
+                public boolean requiresOrder() {
+                    return false;
+                }
+
+                public void finish() {
+                }
+            };
+            new FramePipeline(3, 0, 6, ThreadLocal.withInitial(FrameDiff::new)).run(source, sink);
+
+            //the lead-in of frame 5 reaches back to frame 0, so the chunk's model is the single thread's one
+            FrameDiff chunk = new FrameDiff();
+            chunk.startBackground(5, (i, reuse) -> frames[i]);
+            boolean chunked = true;
+            for (int i = 6; i < frames.length; i++) {
+                chunk.computeDifference(frames[i - 1], frames[i]);
+                chunked &= sequential[i].equals(regionBoxes(chunk.lastRegions()));
+            }
+            if (!Arrays.equals(sequential, piped) || !chunked) {
+                System.out.println("FAIL background chunks: " + (!chunked ? "warmed up chunk differs" : "pipeline differs"));
+                return false;
+            }
+            System.out.println("OK   background chunks: 3 pipeline workers and a warmed up chunk agree with one thread");
+            return true;
+        } catch (IOException | InterruptedException e) {
+            System.out.println("FAIL background chunks: " + e.getMessage());
+            return false;
+        } finally {
+            FrameDiff.setDefaultBackground(0, null, null);
+        }
+    }
+
+    private static String regionBoxes(RegionStats regions) {
+        StringBuilder boxes = new StringBuilder();
+        for (int i = 0; i < regions.count(); i++) {
+            boxes.append(regions.minX(i)).append(',').append(regions.minY(i)).append(',').append(regions.maxX(i)).append(',')
+                    .append(regions.maxY(i)).append(',').append(regions.area(i)).append(' ');
+        }
+        return boxes.toString();
+    }
+
+    //regions of all with at least 20 pixels that found doesn't have, the smaller ones are the sensor noise
+    private static int missedBlobs(RegionStats all, RegionStats found) {
+        Set<String> boxes = new HashSet<>();
+        for (int i = 0; i < found.count(); i++) boxes.add(found.minX(i) + "," + found.minY(i) + "," + found.maxX(i) + "," + found.maxY(i));
+        int missed = 0;
+        for (int i = 0; i < all.count(); i++) {
+            if (all.area(i) >= 20 && !boxes.contains(all.minX(i) + "," + all.minY(i) + "," + all.maxX(i) + "," + all.maxY(i))) missed++;
+        }
+        return missed;
+    }
+
+    //every region of found has a region of the same size and box in all
+    private static boolean sameRegionsFound(RegionStats all, RegionStats found) {
+        Set<String> boxes = new HashSet<>();
+        for (int i = 0; i < all.count(); i++) boxes.add(all.minX(i) + "," + all.minY(i) + "," + all.maxX(i) + "," + all.maxY(i) + "," + all.area(i));
+        for (int i = 0; i < found.count(); i++) {
+            if (!boxes.contains(found.minX(i) + "," + found.minY(i) + "," + found.maxX(i) + "," + found.maxY(i) + "," + found.area(i))) return false;
+        }
+        return true;
+    }
+
+    private static FrameDiff sampledTwin() {
+        FrameDiff.setDefaultTileStep(2);
+        FrameDiff frameDiff = new FrameDiff(new Random(9));
+        FrameDiff.setDefaultTileStep(0);
+        return frameDiff;
+    }
+
+    private static boolean sameImage(BufferedImage a, BufferedImage b) {
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                if (a.getRGB(x, y) != b.getRGB(x, y)) return false;
+            }
+        }
+        return true;
+    }
+
+    static BufferedImage syntheticFrame(Random random, int type, int blobs) {
+        return syntheticFrame(random, type, blobs, true);
+    }
+
+    static BufferedImage syntheticFrame(Random random, int type, int blobs, boolean noise) {
+        BufferedImage frame = new BufferedImage(WIDTH, HEIGHT, type);
+        Graphics2D g = frame.createGraphics();
+        g.setColor(new Color(90, 120, 150));
+        g.fillRect(0, 0, WIDTH, HEIGHT);
+        for (int i = 0; i < blobs; i++) {
+            g.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            g.fillOval(random.nextInt(WIDTH), random.nextInt(HEIGHT), 5 + random.nextInt(80), 5 + random.nextInt(80));
+        }
+        g.dispose();
+        if (!noise) return frame;
+        //sensor noise around the threshold so single pixels and ragged edges get tested too
+        for (int i = 0; i < WIDTH * HEIGHT / 20; i++) {
+            int x = random.nextInt(WIDTH), y = random.nextInt(HEIGHT);
+            int rgb = frame.getRGB(x, y);
+            int shift = random.nextInt(40) - 20;
+            int r = Math.max(0, Math.min(255, ((rgb >> 16) & 0xff) + shift));
+            frame.setRGB(x, y, (rgb & 0xff00ffff) | (r << 16));
+        }
+        return frame;
+    }
+
+    private static long time(Runnable run) {
+        for (int i = 0; i < 3; i++) run.run(); //warm up
+        int runs = 10;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < runs; i++) run.run();
+        return (System.currentTimeMillis() - start) / runs;
+    }
+
+    //the original per pixel implementation, kept here as the reference
+    static BufferedImage referenceDifference(BufferedImage prevFrame, BufferedImage currentFrame) {
+        int width = prevFrame.getWidth();
+        int height = prevFrame.getHeight();
+        boolean[][] visited = new boolean[width][height];
+        Color color = new Color(255, 0, 0, 40);
+
+        BufferedImage diffFrame = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        for (int i = 0; i < width; i++) {
+            for (int j = 0; j < height; j++) {
+                if (!visited[i][j]) {
+                    int currPixel = currentFrame.getRGB(i, j);
+                    if (pixelDifference(prevFrame.getRGB(i, j), currPixel) > Constants.PIXEL_DIFF_THRESHOLD) {
+                        referenceFill(diffFrame, prevFrame, currentFrame, visited, i, j, color);
+                    } else {
+                        diffFrame.setRGB(i, j, currPixel);
+                    }
+                }
+            }
+        }
+        return diffFrame;
+    }
+
+    private static void referenceFill(BufferedImage diffFrame, BufferedImage prevFrame, BufferedImage currentFrame, boolean[][] visited, int x, int y, Color color) {
+        int width = prevFrame.getWidth();
+        int height = prevFrame.getHeight();
+        Stack<Point> stack = new Stack<>();
+        stack.push(new Point(x, y));
+        while (!stack.isEmpty()) {
+            Point point = stack.pop();
+            int px = point.x;
+            int py = point.y;
+            if (px < 0 || px >= width || py < 0 || py >= height || visited[px][py]) {
+                continue;
+            }
+            if (pixelDifference(prevFrame.getRGB(px, py), currentFrame.getRGB(px, py)) > Constants.PIXEL_DIFF_THRESHOLD) {
+                visited[px][py] = true;
+                diffFrame.setRGB(px, py, color.getRGB());
+                stack.push(new Point(px + 1, py));
+                stack.push(new Point(px - 1, py));
+                stack.push(new Point(px, py + 1));
+                stack.push(new Point(px, py - 1));
+            }
+        }
+    }
+
+    private static double pixelDifference(int prevPixel, int currPixel) {
+        int r1 = (prevPixel >> 16) & 0xff;
+        int g1 = (prevPixel >> 8) & 0xff;
+        int b1 = prevPixel & 0xff;
+        int r2 = (currPixel >> 16) & 0xff;
+        int g2 = (currPixel >> 8) & 0xff;
+        int b2 = currPixel & 0xff;
+        int diff = Math.abs(r1 - r2) + Math.abs(g1 - g2) + Math.abs(b1 - b2);
+        return (diff / (3.0 * 255.0)) * 100.0;
+    }
+}
@@ -0,0 +1,85 @@
+package test;
+
+import util.FrameDiff;
+import util.MaskKernel;
+import util.ScalarMaskKernel;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Random;
+
+//checks the vector mask kernel against the scalar one, run with --add-modules jdk.incubator.vector
+public class MaskKernelTest {
+    public static void main(String[] args) {
+        MaskKernel scalar = new ScalarMaskKernel();
+        MaskKernel vector = MaskKernel.select(true);
+        if (vector instanceof ScalarMaskKernel) {
+            System.out.println("Vector API not available, nothing to compare");
+            return;
+        }
+
+        Random random = new Random(42);
+        boolean ok = true;
+        //lengths around the word and lane sizes so the tail loop gets tested too
+        for (int n : new int[]{1, 7, 63, 64, 65, 129, 1000, 640 * 360, 640 * 360 + 13}) {
+            for (int threshold : new int[]{0, FrameDiff.SAD_THRESHOLD, 3 * 255}) {
+                int[] prev = new int[n];
+                int[] curr = new int[n];
+                for (int p = 0; p < n; p++) {
+                    prev[p] = random.nextInt();
+                    //mostly small changes so pixels land on both sides of the threshold
+                    curr[p] = random.nextInt(4) == 0 ? random.nextInt() : nudge(random, prev[p]);
+                }
+                long[] expected = new long[(n + 63) >>> 6];
+                long[] actual = new long[expected.length];
+                scalar.computeMask(prev, curr, expected, 0, n, threshold);
+                vector.computeMask(prev, curr, actual, 0, n, threshold);
+                if (!Arrays.equals(expected, actual)) {
+                    System.out.println("FAIL " + n + " pixels, threshold " + threshold);
+                    ok = false;
+                }
+            }
+        }
+
+        BufferedImage prev = FrameDiffTest.syntheticFrame(random, BufferedImage.TYPE_INT_ARGB, 0);
+        BufferedImage curr = FrameDiffTest.syntheticFrame(random, BufferedImage.TYPE_INT_ARGB, 50);
+        FrameDiff scalarDiff = new FrameDiff(new Random(7), scalar);
+        FrameDiff vectorDiff = new FrameDiff(new Random(7), vector);
+        int[] expected = FrameDiff.argbPixels(scalarDiff.computeDifference(prev, curr), null);
+        int[] actual = FrameDiff.argbPixels(vectorDiff.computeDifference(prev, curr), null);
+        if (!Arrays.equals(expected, actual)) {
+            System.out.println("FAIL diff frame differs between kernels");
+            ok = false;
+        }
+
+        int n = 640 * 360;
+        int[] a = FrameDiff.argbPixels(prev, null);
+        int[] b = FrameDiff.argbPixels(curr, null);
+        long[] mask = new long[(n + 63) >>> 6];
+        long scalarTime = time(() -> scalar.computeMask(a, b, mask, 0, n, FrameDiff.SAD_THRESHOLD));
+        long vectorTime = time(() -> vector.computeMask(a, b, mask, 0, n, FrameDiff.SAD_THRESHOLD));
+        System.out.println("Mask of " + n + " pixels: scalar " + scalarTime + " us, " + vector + " " + vectorTime + " us");
+
+        System.out.println(ok ? "Scalar and vector masks identical" : "Masks differ");
+        if (!ok) System.exit(1);
+    }
+
+    private static int nudge(Random random, int pixel) {
+        int r = clamp(((pixel >> 16) & 0xff) + random.nextInt(31) - 15);
+        int g = clamp(((pixel >> 8) & 0xff) + random.nextInt(31) - 15);
+        int b = clamp((pixel & 0xff) + random.nextInt(31) - 15);
+        return (random.nextInt(256) << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    private static long time(Runnable run) {
+        for (int i = 0; i < 200; i++) run.run(); //warm up, the vector code only gets fast once it is compiled
+        int runs = 200;
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) run.run();
+        return (System.nanoTime() - start) / runs / 1000;
+    }
+}
@@ -0,0 +1,36 @@
+package test;
+
+import util.FrameDiff;
+import util.MotionMask;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+//checks that painting a MotionMask over the current frame gives back the diff frame, and compares the payload with a png
+public class MotionMaskTest {
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(42);
+        FrameDiff frameDiff = new FrameDiff();
+        boolean ok = true;
+        for (int blobs : new int[]{0, 5, 50, 200}) {
+            BufferedImage prev = FrameDiffTest.syntheticFrame(random, BufferedImage.TYPE_3BYTE_BGR, 0);
+            BufferedImage curr = FrameDiffTest.syntheticFrame(random, BufferedImage.TYPE_3BYTE_BGR, blobs);
+            BufferedImage diff = frameDiff.computeDifference(prev, curr);
+            int[] expected = FrameDiff.argbPixels(diff, null);
+
+            byte[] payload = MotionMask.encode(frameDiff.lastMask(), expected, frameDiff.lastColors(), diff.getWidth(), diff.getHeight());
+            int[] actual = FrameDiff.argbPixels(MotionMask.composite(payload, curr, null), null);
+
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            ImageIO.write(diff, "png", png);
+            boolean same = Arrays.equals(expected, actual);
+            ok &= same;
+            System.out.println((same ? "OK   " : "FAIL ") + blobs + " blobs: mask " + payload.length / 1024 + " KB, png " + png.size() / 1024 + " KB");
+        }
+        System.out.println(ok ? "Composited frames identical" : "Composited frames differ");
+        if (!ok) System.exit(1);
+    }
+}
@@ -0,0 +1,144 @@
+package test;
+
+import util.FrameDiff;
+import util.RegionMetadataSink;
+import util.RegionStats;
+import util.StripeFrameDiff;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+//checks the region stats of FrameDiff and StripeFrameDiff against a plain breadth first labelling,
+//that --no-render leaves the output alone, and that the metadata file reads back the same
+public class RegionStatsTest {
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(42);
+        boolean ok = true;
+        RegionStats[] frames = new RegionStats[4];
+        int frame = 0;
+        for (int blobs : new int[]{0, 5, 50, 200}) {
+            BufferedImage prev = FrameDiffTest.syntheticFrame(random, BufferedImage.TYPE_INT_ARGB, 0);
+            BufferedImage curr = FrameDiffTest.syntheticFrame(random, BufferedImage.TYPE_INT_ARGB, blobs);
+            RegionStats expected = referenceRegions(prev, curr);
+
+            FrameDiff frameDiff = new FrameDiff();
+            frameDiff.computeDifference(prev, curr);
+            ok &= check(blobs + " blobs, flood fill", expected, frameDiff.lastRegions());
+            for (int stripes : new int[]{1, 3, 8}) {
+                FrameDiff stripeDiff = new StripeFrameDiff(ForkJoinPool.commonPool(), stripes);
+                stripeDiff.computeDifference(prev, curr);
+                ok &= check(blobs + " blobs, " + stripes + " stripes", expected, stripeDiff.lastRegions());
+            }
+
+            FrameDiff.setDefaultRender(false);
+            FrameDiff plain = new FrameDiff();
+            FrameDiff stripes = new StripeFrameDiff(ForkJoinPool.commonPool(), 3);
+            FrameDiff.setDefaultRender(true);
+            for (FrameDiff unrendered : List.of(plain, stripes)) {
+                BufferedImage out = new BufferedImage(prev.getWidth(), prev.getHeight(), BufferedImage.TYPE_INT_ARGB);
+                int[] pixels = ((DataBufferInt) out.getRaster().getDataBuffer()).getData();
+                Arrays.fill(pixels, 0x12345678);
+                unrendered.computeDifference(prev, curr, out);
+                boolean untouched = Arrays.stream(pixels).allMatch(p -> p == 0x12345678);
+                if (!untouched) System.out.println("FAIL " + blobs + " blobs, " + unrendered.getClass().getSimpleName() + " rendered with --no-render");
+                ok &= untouched && check(blobs + " blobs, " + unrendered.getClass().getSimpleName() + " without rendering", expected, unrendered.lastRegions());
+            }
+            frames[frame++] = expected;
+        }
+        ok &= roundTrip(frames);
+
+        System.out.println(ok ? "All region stats match" : "Region stats differ");
+        if (!ok) System.exit(1);
+    }
+
+    //frames are written out of order like the unordered sinks do, they have to come back sorted and unchanged
+    private static boolean roundTrip(RegionStats[] frames) throws Exception {
+        File file = File.createTempFile("regions", ".bin");
+        RegionMetadataSink sink = new RegionMetadataSink(null, file.getPath(), "csv");
+        for (int i = frames.length - 1; i >= 0; i--) {
+            if (frames[i] != null) sink.writeRegions(i + 1, frames[i]);
+        }
+        sink.finish();
+        Map<Integer, RegionStats> read = RegionMetadataSink.read(file.getPath());
+        boolean ok = true;
+        int regions = 0;
+        int index = 0;
+        for (Map.Entry<Integer, RegionStats> frame : read.entrySet()) {
+            ok &= frame.getKey() > index && check("file frame " + frame.getKey(), frames[frame.getKey() - 1], frame.getValue());
+            index = frame.getKey();
+            regions += frame.getValue().count();
+        }
+        File csv = new File(file.getPath().replace(".bin", ".csv"));
+        int lines = Files.readAllLines(csv.toPath()).size();
+        if (lines != regions + 1) {
+            System.out.println("FAIL csv export has " + lines + " lines for " + regions + " regions");
+            ok = false;
+        }
+        System.out.println("OK   metadata file: " + file.length() / 1024 + " KB for " + regions + " regions, csv " + csv.length() / 1024 + " KB");
+        file.delete();
+        csv.delete();
+        return ok;
+    }
+
+    static boolean check(String name, RegionStats expected, RegionStats actual) {
+        if (!sameRegions(expected, actual)) {
+            System.out.println("FAIL " + name + ": " + actual.count() + " regions, expected " + expected.count());
+            return false;
+        }
+        System.out.println("OK   " + name + " (" + actual.count() + " regions)");
+        return true;
+    }
+
+    static boolean sameRegions(RegionStats a, RegionStats b) {
+        if (a.count() != b.count()) return false;
+        for (int i = 0; i < a.count(); i++) {
+            if (a.minX(i) != b.minX(i) || a.minY(i) != b.minY(i) || a.maxX(i) != b.maxX(i) || a.maxY(i) != b.maxY(i) || a.topX(i) != b.topX(i)
+                    || a.area(i) != b.area(i) || a.centroidX(i) != b.centroidX(i) || a.centroidY(i) != b.centroidY(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //breadth first over the changed pixels, regions numbered by their first pixel in row major order like FrameDiff does
+    private static RegionStats referenceRegions(BufferedImage prev, BufferedImage curr) {
+        int width = prev.getWidth();
+        int height = prev.getHeight();
+        boolean[] changed = new boolean[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                changed[y * width + x] = FrameDiff.pixelDifference(prev.getRGB(x, y), curr.getRGB(x, y)) > FrameDiff.SAD_THRESHOLD;
+            }
+        }
+        RegionStats stats = new RegionStats();
+        boolean[] seen = new boolean[width * height];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int p = 0; p < changed.length; p++) {
+            if (!changed[p] || seen[p]) continue;
+            int region = stats.add();
+            seen[p] = true;
+            queue.add(p);
+            while (!queue.isEmpty()) {
+                int q = queue.poll();
+                int x = q % width, y = q / width;
+                stats.addRun(region, y, x, x);
+                int[] neighbours = {x > 0 ? q - 1 : -1, x < width - 1 ? q + 1 : -1, y > 0 ? q - width : -1, y < height - 1 ? q + width : -1};
+                for (int n : neighbours) {
+                    if (n >= 0 && changed[n] && !seen[n]) {
+                        seen[n] = true;
+                        queue.add(n);
+                    }
+                }
+            }
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,131 @@
+package test;
+
+import util.FrameSource;
+import util.ImageDecoder;
+import util.SegmentedFrameExtractor;
+import util.VideoProcessing;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//extracts a generated clip once with a single ffmpeg and again with --segments, every frame has to come out the same
+//and frames() has to number each one like its file. The ranged streams every rank decodes with --stream --local-read
+//have to add up to the single stream the same way. Needs ffmpeg on the PATH, without it the test only says so
+public class SegmentedExtractionTest {
+
+    public static void main(String[] args) throws Exception {
+        if (!hasFfmpeg()) {
+            System.out.println("ffmpeg not found, segmented extraction not tested");
+            return;
+        }
+        Path dir = Files.createTempDirectory("segmented-test");
+        String video = dir.resolve("clip.mp4").toString();
+        //25 fps with a keyframe every 12 frames, so the segments start between keyframes and fps has to drop frames
+        Process generate = new ProcessBuilder("ffmpeg", "-v", "error", "-f", "lavfi", "-i", "testsrc=duration=4:size=160x120:rate=25",
+                "-pix_fmt", "yuv420p", "-g", "12", video).inheritIO().start();
+        if (generate.waitFor() != 0) throw new IOException("ffmpeg could not generate " + video);
+
+        boolean ok = true;
+        VideoProcessing vp = new VideoProcessing();
+        for (int fps : new int[]{10, 7}) {
+            String single = dir.resolve("single").toString();
+            vp.extractFrames(video, single, fps);
+            int count = new File(single).list().length;
+            for (int segments : new int[]{2, 3, 5}) {
+                ok &= compare(vp, video, single, count, dir.resolve("segments").toString(), fps, segments);
+            }
+            for (int ranks : new int[]{2, 3}) {
+                ok &= compareStreams(vp, video, fps, ranks);
+            }
+        }
+
+        deleteRecursively(dir.toFile());
+        System.out.println(ok ? "All segments match" : "Segments differ");
+        if (!ok) System.exit(1);
+    }
+
+    private static boolean compare(VideoProcessing vp, String video, String single, int count, String folder, int fps, int segments) throws Exception {
+        String name = fps + " fps, " + segments + " segments";
+        int read = 0;
+        try (SegmentedFrameExtractor extractor = vp.startExtraction(video, folder, fps, segments)) {
+            FrameSource frames = extractor.frames();
+            BufferedImage frame;
+            while ((frame = frames.read(null)) != null) {
+                int index = frames.lastIndex();
+                File expected = new File(single, VideoProcessing.frameName(index));
+                if (index != read || !expected.isFile() || !samePixels(ImageDecoder.read(expected, null), frame)) {
+                    System.out.println("FAIL " + name + ": frame " + read + " came back as " + index
+                            + (expected.isFile() ? " and differs from the single extraction" : ", which the single extraction doesn't have"));
+                    return false;
+                }
+                read++;
+            }
+            extractor.await();
+        }
+        if (read != count) {
+            System.out.println("FAIL " + name + ": " + read + " frames instead of " + count);
+            return false;
+        }
+        System.out.println("OK   " + name + ": " + read + " frames");
+        return true;
+    }
+
+    //ranks split the frames like the distributed ranges, each one streams its own part
+    private static boolean compareStreams(VideoProcessing vp, String video, int fps, int ranks) throws Exception {
+        String name = fps + " fps, " + ranks + " rank streams";
+        List<BufferedImage> whole = new ArrayList<>();
+        try (FrameSource stream = vp.openFrameStream(video, fps)) {
+            BufferedImage frame;
+            while ((frame = stream.read(null)) != null) whole.add(frame);
+        }
+        int next = 0;
+        for (int r = 0; r < ranks; r++) {
+            int first = whole.size() * r / ranks, end = whole.size() * (r + 1) / ranks;
+            try (FrameSource stream = vp.openFrameStream(video, fps, first, end - first)) {
+                BufferedImage frame;
+                while ((frame = stream.read(null)) != null) {
+                    if (next >= end || !samePixels(whole.get(next), frame)) {
+                        System.out.println("FAIL " + name + ": frame " + next + " of rank " + r + (next >= end ? " is past its range" : " differs from the single stream"));
+                        return false;
+                    }
+                    next++;
+                }
+            }
+            if (next != end) {
+                System.out.println("FAIL " + name + ": rank " + r + " stopped at frame " + next + " instead of " + end);
+                return false;
+            }
+        }
+        System.out.println("OK   " + name + ": " + whole.size() + " frames");
+        return true;
+    }
+
+    private static boolean samePixels(BufferedImage a, BufferedImage b) {
+        int width = a.getWidth(), height = a.getHeight();
+        if (b.getWidth() != width || b.getHeight() != height) return false;
+        return Arrays.equals(a.getRGB(0, 0, width, height, null, 0, width), b.getRGB(0, 0, width, height, null, 0, width));
+    }
+
+    private static boolean hasFfmpeg() {
+        try {
+            return new ProcessBuilder("ffmpeg", "-version").redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start().waitFor() == 0;
+        } catch (IOException | InterruptedException e) {
+            return false;
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,139 @@
+package test;
+
+import util.FrameDiff;
+import util.FrameSink;
+import util.RegionTracker;
+import util.TrackingFrameSink;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+//moves textured blocks across a still background and checks that every block keeps one track and one color
+//over the whole clip, also when they stop for a few frames that have no regions at all,
+//then times the tracker on frames with thousands of regions
+public class TrackingTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 360;
+    private static final int FRAMES = 20;
+    private static final int BLOCKS = 6;
+    private static final int SIZE = 30;
+    private static final int PAUSE_FROM = 8; //with a pause the blocks stay where they were in this frame for PAUSE frames
+    private static final int PAUSE = 2;
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(42);
+        boolean ok = true;
+        for (boolean pause : new boolean[]{false, true}) {
+            ok &= followBlocks(new Random(42), pause);
+        }
+        ok &= timeTracker(random);
+        System.out.println(ok ? "All tracks stable" : "Tracks broken");
+        if (!ok) System.exit(1);
+    }
+
+    private static boolean followBlocks(Random random, boolean pause) throws Exception {
+        int[][] textures = new int[BLOCKS][SIZE * SIZE];
+        int[][] start = new int[BLOCKS][2];
+        int[][] velocity = new int[BLOCKS][2];
+        for (int b = 0; b < BLOCKS; b++) {
+            for (int i = 0; i < SIZE * SIZE; i++) textures[b][i] = 0xff000000 | random.nextInt(0x1000000);
+            //one block per lane, drifting down at most a pixel a frame, so their paths never touch
+            start[b] = new int[]{20 + random.nextInt(100), 10 + b * 58};
+            velocity[b] = new int[]{3 + random.nextInt(5), random.nextInt(2)};
+        }
+
+        Map<Integer, BufferedImage> written = new HashMap<>();
+        FrameSink out = new FrameSink() {
+            @Override
+            public void write(int index, BufferedImage frame) {
+                BufferedImage copy = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+                copy.getGraphics().drawImage(frame, 0, 0, null);
+                written.put(index, copy);
+            }
+
+            @Override
+            public void finish() {
+            }
+        };
+        TrackingFrameSink sink = new TrackingFrameSink(out, 48, 16);
+        FrameDiff frameDiff = new FrameDiff();
+        BufferedImage prev = frame(time(0, pause), textures, start, velocity);
+        for (int i = 1; i < FRAMES; i++) {
+            BufferedImage curr = frame(time(i, pause), textures, start, velocity);
+            BufferedImage diff = frameDiff.computeDifference(prev, curr);
+            sink.writeRegions(i, frameDiff.lastRegions());
+            sink.write(i, diff);
+            prev = curr;
+        }
+        sink.finish();
+
+        boolean ok = true;
+        for (int b = 0; b < BLOCKS; b++) {
+            Integer color = null;
+            for (int i = 1; i < FRAMES; i++) {
+                if (time(i, pause) == time(i - 1, pause)) continue; //nothing moved, the frame is copied
+                //the middle of the block is changed in every frame since the texture moved under it
+                int t = time(i, pause);
+                int x = start[b][0] + velocity[b][0] * t + SIZE / 2;
+                int y = start[b][1] + velocity[b][1] * t + SIZE / 2;
+                int c = written.get(i).getRGB(x, y);
+                if (color == null) color = c;
+                if (c != color || (c >>> 24) == 0xff) {
+                    System.out.println("FAIL block " + b + " changed color in frame " + i);
+                    ok = false;
+                    break;
+                }
+            }
+        }
+        if (ok) System.out.println("OK   " + BLOCKS + " blocks kept their color over " + (FRAMES - 1) + " frames" + (pause ? " with a pause" : ""));
+        return ok;
+    }
+
+    //where the blocks are in frame i
+    private static int time(int i, boolean pause) {
+        if (!pause || i <= PAUSE_FROM) return i;
+        return Math.max(PAUSE_FROM, i - PAUSE);
+    }
+
+    private static BufferedImage frame(int i, int[][] textures, int[][] start, int[][] velocity) {
+        BufferedImage frame = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) frame.setRGB(x, y, 0xff5a7896);
+        }
+        for (int b = 0; b < textures.length; b++) {
+            int left = start[b][0] + velocity[b][0] * i;
+            int top = start[b][1] + velocity[b][1] * i;
+            frame.setRGB(left, top, SIZE, SIZE, textures[b], 0, SIZE);
+        }
+        return frame;
+    }
+
+    //noise like frames: every region jitters a little, the grid keeps the cost per frame near linear in regions
+    private static boolean timeTracker(Random random) {
+        boolean ok = true;
+        for (int regions : new int[]{1000, 4000, 16000}) {
+            RegionTracker tracker = new RegionTracker(48, 1);
+            int[][] boxes = new int[regions][2];
+            for (int r = 0; r < regions; r++) boxes[r] = new int[]{random.nextInt(3840 - 8), random.nextInt(2160 - 8)};
+            long start = System.nanoTime();
+            for (int f = 0; f < 10; f++) {
+                util.RegionStats stats = new util.RegionStats();
+                for (int[] box : boxes) {
+                    box[0] = Math.max(0, Math.min(3840 - 8, box[0] + random.nextInt(5) - 2));
+                    box[1] = Math.max(0, Math.min(2160 - 8, box[1] + random.nextInt(5) - 2));
+                    int region = stats.add();
+                    for (int y = box[1]; y < box[1] + 4; y++) stats.addRun(region, y, box[0], box[0] + 3);
+                }
+                tracker.track(stats);
+            }
+            long us = (System.nanoTime() - start) / 10_000;
+            //crowded frames swap some neighbours, but most regions have to keep their track
+            boolean kept = tracker.trackCount() < regions * 2;
+            ok &= kept;
+            System.out.println((kept ? "OK   " : "FAIL ") + regions + " regions: " + us + " us per frame, " + tracker.trackCount() + " tracks");
+        }
+        return ok;
+    }
+}
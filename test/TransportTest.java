@@ -0,0 +1,305 @@
+package test;
+
+import distributed.DistributedProcessor;
+import distributed.InProcessTransport;
+import distributed.NioTransport;
+import distributed.Transport;
+import util.FrameCodec;
+import util.FrameDiff;
+import util.FrameSink;
+import util.Options;
+import util.RegionStats;
+import util.ReorderingFrameSink;
+import util.TrackingFrameSink;
+import util.VideoProcessing;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+//checks the message order and matching of the in-process and socket transports, then runs the distributed modes
+//with ranks as threads and compares their output with a plain FrameDiff over the same frames
+//--ordered is only read here, it gives the modes a sink that needs its frames in order like the encoder
+//--background=2 has a lead-in longer than the video, so every rank's and batch's model must match the single one exactly
+public class TransportTest {
+    private static final int RANKS = 3;
+    private static final int FRAMES = 14;
+
+    interface RankBody {
+        void run(Transport transport) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean ok = true;
+        ok &= messaging("threads", InProcessTransport.create(RANKS));
+        ok &= messaging("nio", nioEndpoints());
+        ok &= reordering();
+
+        Path frames = Files.createTempDirectory("transport-test");
+        Random random = new Random(42);
+        BufferedImage[] originals = new BufferedImage[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            originals[i] = FrameDiffTest.syntheticFrame(random, BufferedImage.TYPE_3BYTE_BGR, i % 4 == 3 ? 0 : 20);
+            ImageIO.write(originals[i], "png", frames.resolve(String.format("frame_%04d.png", i + 1)).toFile());
+        }
+        String[][] modes = {{}, {"--local-read"}, {"--sparse"}, {"--farm", "--batch=3"}, {"--farm", "--sparse", "--batch=2"},
+                {"--farm", "--local-read"}, {"--inflight=1"}, {"--threads=3"}, {"--threads=2", "--ordered"},
+                {"--local-read", "--sparse", "--threads=2", "--ordered"}, {"--farm", "--sparse", "--threads=2", "--batch=4"},
+                {"--regions"}, {"--regions", "--sparse", "--threads=2"}, {"--no-render", "--farm", "--batch=3"},
+                {"--track", "--track-min-area=1"}, {"--track", "--track-min-area=1", "--farm", "--sparse", "--threads=2"},
+                {"--frame-format=qoi"}, {"--frame-format=qoi", "--farm", "--batch=3"}, {"--frame-format=raw", "--local-read", "--threads=2"},
+                {"--frame-format=raw", "--track", "--track-min-area=1", "--sparse"}, {"--png-level=1", "--farm", "--local-read"},
+                {"--ordered", "--reorder-window=1"}, {"--ordered", "--reorder-window=2", "--local-read", "--threads=2"},
+                {"--track", "--track-min-area=1", "--reorder-window=2", "--sparse", "--inflight=1"},
+                {"--farm", "--ordered", "--batch=2", "--reorder-window=2"}, {"--farm", "--ordered", "--batch=1", "--threads=2", "--sparse"},
+                {"--background=2"}, {"--background=2", "--local-read", "--threads=2"}, {"--background=2", "--farm", "--batch=2"},
+                {"--background=2", "--farm", "--sparse", "--threads=2", "--batch=3"}};
+        for (String[] mode : modes) {
+            ok &= distributed(String.join(" ", mode), new Options(mode, 0), frames.toString(), originals);
+        }
+
+        for (File file : frames.toFile().listFiles()) file.delete();
+        frames.toFile().delete();
+        System.out.println(ok ? "All transports agree" : "Transports differ");
+        if (!ok) System.exit(1);
+    }
+
+    //rank 0 renders every diff into the same image, a frame that waits for an earlier one must not change with it
+    private static boolean reordering() throws Exception {
+        Map<Integer, Integer> written = new HashMap<>();
+        ReorderingFrameSink reorder = new ReorderingFrameSink(new FrameSink() {
+            @Override
+            public void write(int index, BufferedImage frame) {
+                written.put(index, frame.getRGB(0, 0));
+            }
+
+            @Override
+            public void finish() {
+            }
+        }, 1, 4);
+        BufferedImage shared = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+        for (int index : new int[]{3, 2, 1}) {
+            shared.setRGB(0, 0, 0xff000000 | index);
+            reorder.write(index, shared);
+        }
+        boolean ok = written.equals(Map.of(1, 0xff000001, 2, 0xff000002, 3, 0xff000003));
+        System.out.println((ok ? "OK   " : "FAIL ") + "reordering: waiting frames " + (ok ? "kept their pixels" : "were overwritten " + written));
+        return ok;
+    }
+
+    private static Transport[] nioEndpoints() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Transport[] endpoints = new Transport[RANKS];
+        Thread[] connecting = new Thread[RANKS];
+        Exception[] failure = new Exception[1];
+        for (int r = 0; r < RANKS; r++) {
+            int rank = r;
+            connecting[r] = new Thread(() -> {
+                try {
+                    endpoints[rank] = NioTransport.connect(rank, RANKS, "localhost", port);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            });
+            connecting[r].start();
+        }
+        for (Thread thread : connecting) thread.join();
+        if (failure[0] != null) throw failure[0];
+        return endpoints;
+    }
+
+    private static boolean messaging(String name, Transport[] endpoints) throws Exception {
+        byte[] big = new byte[DistributedProcessor.CHUNK_SIZE * 2 + 123];
+        new Random(1).nextBytes(big);
+        Path file = Files.createTempFile("transport-test", ".bin");
+        Files.write(file, big);
+        boolean[] ok = {true};
+        runRanks(endpoints, transport -> {
+            int rank = transport.rank();
+            byte[] shared = transport.broadcast(rank == 0 ? "hello".getBytes() : null, 0);
+            check(ok, name + " broadcast", new String(shared).equals("hello"));
+            if (rank != 0) {
+                //a later tag first, rank 0 has to take tag 1 in order regardless
+                transport.send(0, 2, new byte[]{(byte) rank});
+                for (int i = 0; i < 5; i++) transport.sendAsync(0, 1, new byte[]{(byte) rank, (byte) i}).await();
+                transport.sendFile(0, 3, file).await();
+                check(ok, name + " reply", Arrays.equals(transport.receive(0, 4), big));
+                return;
+            }
+            check(ok, name + " poll on an unused tag", transport.poll(Transport.ANY_SOURCE, 9) == null);
+            for (int r = 1; r < transport.size(); r++) {
+                for (int i = 0; i < 5; i++) {
+                    byte[] message = transport.receive(r, 1);
+                    check(ok, name + " order from " + r, message[0] == r && message[1] == i);
+                }
+                check(ok, name + " file from " + r, Arrays.equals(transport.receive(r, 3), big));
+            }
+            for (int r = 1; r < transport.size(); r++) {
+                Transport.Envelope envelope = transport.probe(Transport.ANY_SOURCE, 2);
+                check(ok, name + " probe", envelope.tag() == 2 && transport.receive(envelope.source(), 2)[0] == envelope.source());
+                transport.send(envelope.source(), 4, big);
+            }
+        });
+        for (Transport endpoint : endpoints) endpoint.close();
+        Files.delete(file);
+        if (ok[0]) System.out.println("OK   " + name + " messaging");
+        return ok[0];
+    }
+
+    private static boolean distributed(String mode, Options options, String frames, BufferedImage[] originals) throws Exception {
+        Map<Integer, BufferedImage> written = new ConcurrentHashMap<>();
+        Map<Integer, RegionStats> regions = new ConcurrentHashMap<>();
+        boolean render = !options.has("no-render");
+        boolean withRegions = options.has("regions") || !render;
+        boolean ordered = options.has("ordered");
+        int[] last = {0};
+        boolean[] inOrder = {true};
+        FrameSink sink = new FrameSink() {
+            @Override
+            public void write(int index, BufferedImage frame) {
+                int width = frame.getWidth(), height = frame.getHeight();
+                BufferedImage copy = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                copy.setRGB(0, 0, width, height, frame.getRGB(0, 0, width, height, null, 0, width), 0, width);
+                written.put(index, copy);
+                inOrder[0] &= index > last[0];
+                last[0] = index;
+            }
+
+            @Override
+            public void writeRegions(int index, RegionStats stats) {
+                regions.put(index, stats.copy());
+            }
+
+            @Override
+            public boolean requiresOrder() {
+                return ordered;
+            }
+
+            @Override
+            public void finish() {
+            }
+        };
+        //every region is tracked, so the repainted frames have no random colors left and must match a single tracker exactly
+        boolean track = options.has("track");
+        FrameSink output = track ? new TrackingFrameSink(sink, 48, options.getInt("track-min-area", 16)) : sink;
+        Transport[] endpoints = InProcessTransport.create(RANKS);
+        //the extracted frames are only listed with the codec's extension, so the other formats get their own copies
+        FrameCodec codec = FrameCodec.select(options.get("frame-format", "png"), options.getInt("png-level", -1));
+        VideoProcessing.setFrameCodec(codec);
+        if (!codec.extension().equals("png")) {
+            for (int i = 0; i < FRAMES; i++) {
+                try (OutputStream out = new FileOutputStream(new File(frames, VideoProcessing.frameName(i)))) {
+                    codec.write(originals[i], out);
+                }
+            }
+        }
+        long t0 = System.nanoTime();
+        FrameDiff.setDefaultRender(render);
+        FrameDiff.setDefaultBackground(options.getInt("background", 0), null, null);
+        runRanks(endpoints, transport -> {
+            DistributedProcessor processor = new DistributedProcessor(options, transport);
+            FrameSink rankSink = transport.rank() == 0 ? output : null;
+            if (options.has("farm")) {
+                processor.processFramesFarm(frames, rankSink);
+            } else if (options.has("local-read")) {
+                processor.processFramesLocal(frames, rankSink);
+            } else {
+                processor.processFramesD(frames, rankSink);
+            }
+        });
+        long ms = (System.nanoTime() - t0) / 1_000_000;
+        FrameDiff.setDefaultRender(true);
+        VideoProcessing.setFrameCodec(FrameCodec.select("png", -1));
+
+        if (ordered && !inOrder[0]) {
+            System.out.println("FAIL [" + mode + "] frames written out of order");
+            return false;
+        }
+        FrameDiff frameDiff = new FrameDiff();
+        FrameDiff trackDiff = new FrameDiff(); //a model of its own, the frames go through twice
+        FrameDiff.setDefaultBackground(0, null, null);
+        Map<Integer, BufferedImage> tracked = new HashMap<>();
+        if (track) {
+            TrackingFrameSink reference = new TrackingFrameSink(new FrameSink() {
+                @Override
+                public void write(int index, BufferedImage frame) {
+                    tracked.put(index, frame);
+                }
+
+                @Override
+                public void finish() {
+                }
+            }, 48, options.getInt("track-min-area", 16));
+            for (int i = 1; i < FRAMES; i++) {
+                BufferedImage diff = trackDiff.computeDifference(originals[i - 1], originals[i]);
+                reference.writeRegions(i, trackDiff.lastRegions());
+                reference.write(i, diff);
+            }
+        }
+        for (int i = 1; i < FRAMES; i++) {
+            BufferedImage curr = originals[i];
+            BufferedImage expected = frameDiff.computeDifference(originals[i - 1], curr);
+            if (withRegions && (!regions.containsKey(i) || !RegionStatsTest.sameRegions(frameDiff.lastRegions(), regions.get(i)))) {
+                System.out.println("FAIL [" + mode + "] region stats of frame " + i + " differ");
+                return false;
+            }
+            if (!render) continue;
+            BufferedImage actual = written.get(i);
+            if (actual == null) {
+                System.out.println("FAIL [" + mode + "] no output for frame " + i);
+                return false;
+            }
+            //region colors are random, so only which pixels changed has to match
+            for (int y = 0; y < curr.getHeight(); y++) {
+                for (int x = 0; x < curr.getWidth(); x++) {
+                    int c = curr.getRGB(x, y);
+                    if ((expected.getRGB(x, y) != c) != (actual.getRGB(x, y) != c)
+                            || track && tracked.get(i).getRGB(x, y) != actual.getRGB(x, y)) {
+                        System.out.println("FAIL [" + mode + "] frame " + i + " at " + x + "," + y);
+                        return false;
+                    }
+                }
+            }
+        }
+        System.out.println("OK   [" + mode + "] " + (render ? written.size() : regions.size()) + " frames in " + ms + " ms");
+        return true;
+    }
+
+    private static void runRanks(Transport[] endpoints, RankBody body) throws Exception {
+        Thread[] threads = new Thread[endpoints.length];
+        Exception[] failure = new Exception[1];
+        for (int r = 0; r < endpoints.length; r++) {
+            Transport endpoint = endpoints[r];
+            threads[r] = new Thread(() -> {
+                try {
+                    body.run(endpoint);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }, "rank-" + r);
+            threads[r].start();
+        }
+        for (Thread thread : threads) thread.join();
+        if (failure[0] != null) throw failure[0];
+    }
+
+    private static void check(boolean[] ok, String name, boolean condition) {
+        if (!condition) {
+            System.out.println("FAIL " + name);
+            ok[0] = false;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+//running average of every channel of every pixel in 8.8 fixed point, one unsigned 16 bit plane per channel
+//each frame is read once: the same pass thresholds it against the model and moves the model 1/2^shift towards it
+//slow lighting changes and flicker fade into the model, and a moving object shows up where it is instead of twice,
+//where it was and where it is. Writing the model as well as reading it costs about twice the pairwise mask at 1080p
+//the model is seeded from the first frame of a run, FrameDiff.startBackground warms a later run up over the frames
+//before it and FramePipeline runs it on its decoding thread so the frames reach it in order
+class BackgroundModel {
+    static final int MAGIC = 0x42474d44; //"BGMD"
+    static final int VERSION = 1;
+
+    private final int shift;
+    private char[] red = new char[0];
+    private char[] green = new char[0];
+    private char[] blue = new char[0];
+    private int width;
+    private int height;
+    private boolean seeded;
+
+    BackgroundModel(int shift) {
+        this.shift = shift;
+    }
+
+    boolean seeded() {
+        return seeded;
+    }
+
+    boolean fits(int width, int height) {
+        return seeded && this.width == width && this.height == height;
+    }
+
+    void clear() {
+        seeded = false;
+    }
+
+    //the model becomes the frame itself, as if it had been static forever
+    void seed(int[] pixels, int width, int height) {
+        int n = width * height;
+        ensureModel(n);
+        char[] red = this.red, green = this.green, blue = this.blue;
+        for (int p = 0; p < n; p++) {
+            int argb = pixels[p];
+            red[p] = (char) (argb >> 8 & 0xff00);
+            green[p] = (char) (argb & 0xff00);
+            blue[p] = (char) ((argb & 0xff) << 8);
+        }
+        this.width = width;
+        this.height = height;
+        seeded = true;
+    }
+
+    //sets the mask bits of pixels [from, to) that differ from the model by more than threshold, then updates the model
+    //from must be a multiple of 64, ranges that don't overlap can run on different threads
+    void update(int[] curr, long[] mask, int from, int to, int threshold) {
+        char[] red = this.red, green = this.green, blue = this.blue;
+        int shift = this.shift;
+        for (int base = from; base < to; base += 64) {
+            int end = Math.min(base + 64, to);
+            long bits = 0;
+            for (int p = base; p < end; p++) {
+                int argb = curr[p];
+                int r = (argb >> 16) & 0xff, g = (argb >> 8) & 0xff, b = argb & 0xff;
+                int mr = red[p], mg = green[p], mb = blue[p];
+                //rounded back to 8 bits so a freshly seeded model gives the same mask as the pairwise diff
+                int sad = Math.abs(r - ((mr + 128) >> 8)) + Math.abs(g - ((mg + 128) >> 8)) + Math.abs(b - ((mb + 128) >> 8));
+                //branch free, the sign bit of threshold - sad is set when the pixel changed
+                bits |= (long) ((threshold - sad) >>> 31) << p;
+                red[p] = (char) (mr + (((r << 8) - mr) >> shift));
+                green[p] = (char) (mg + (((g << 8) - mg) >> shift));
+                blue[p] = (char) (mb + (((b << 8) - mb) >> shift));
+            }
+            mask[base >>> 6] = bits;
+        }
+    }
+
+    //header, then the three planes as unsigned 16 bit numbers
+    void writeTo(DataOutputStream out) throws IOException {
+        int n = width * height;
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(width);
+        out.writeInt(height);
+        byte[] bytes = new byte[2 * n];
+        for (char[] plane : new char[][]{red, green, blue}) {
+            for (int p = 0; p < n; p++) {
+                bytes[2 * p] = (byte) (plane[p] >> 8);
+                bytes[2 * p + 1] = (byte) plane[p];
+            }
+            out.write(bytes);
+        }
+    }
+
+    //replaces the model with a snapshot written by writeTo
+    void readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) throw new IOException("Not a background model snapshot");
+        int version = in.readInt();
+        if (version != VERSION) throw new IOException("Unsupported background model version " + version);
+        int width = in.readInt();
+        int height = in.readInt();
+        int n = width * height;
+        ensureModel(n);
+        byte[] bytes = new byte[2 * n];
+        for (char[] plane : new char[][]{red, green, blue}) {
+            in.readFully(bytes);
+            for (int p = 0; p < n; p++) {
+                plane[p] = (char) (((bytes[2 * p] & 0xff) << 8) | (bytes[2 * p + 1] & 0xff));
+            }
+        }
+        this.width = width;
+        this.height = height;
+        seeded = true;
+    }
+
+    private void ensureModel(int pixels) {
+        if (red.length < pixels) {
+            red = new char[pixels];
+            green = new char[pixels];
+            blue = new char[pixels];
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package util;
+
+//rgb of a frame pair halved levels times, only the coarsest level of each is kept
+//a cell of the coarsest level covers 2^levels x 2^levels pixels, cells on the right and bottom edge cover fewer
+//the three channels stay packed in one int like in the frame and are averaged together, so a change of color that
+//keeps the brightness (which a luma pyramid can't see at all) is found like any other
+class ColorPyramid {
+    //the summed channel change of a cell's average that counts as motion, the same as for a single pixel
+    static final int THRESHOLD = FrameDiff.SAD_THRESHOLD;
+    private static final int LOW_BITS = 0xfefefe; //every channel but its lowest bit, shifting it right can't carry over
+
+    private final int levels;
+    private int[] prevLevel = new int[0];
+    private int[] currLevel = new int[0];
+    private int[] scratch = new int[0];
+    private int width;
+
+    ColorPyramid(int levels) {
+        this.levels = levels;
+    }
+
+    int levels() {
+        return levels;
+    }
+
+    void build(int[] prev, int[] curr, int frameWidth, int frameHeight) {
+        int w = (frameWidth + 1) / 2, h = (frameHeight + 1) / 2;
+        if (prevLevel.length < w * h) {
+            prevLevel = new int[w * h];
+            currLevel = new int[w * h];
+            scratch = new int[w * h];
+        }
+        firstLevel(prev, prevLevel, frameWidth, frameHeight);
+        firstLevel(curr, currLevel, frameWidth, frameHeight);
+        for (int level = 1; level < levels; level++) {
+            halve(prevLevel, w, h);
+            halve(currLevel, w, h);
+            w = (w + 1) / 2;
+            h = (h + 1) / 2;
+        }
+        width = w;
+    }
+
+    //cell (x, y) of the coarsest level changed
+    boolean changed(int x, int y) {
+        int p = y * width + x;
+        int a = prevLevel[p], b = currLevel[p];
+        int sad = Math.abs(((a >> 16) & 0xff) - ((b >> 16) & 0xff)) + Math.abs(((a >> 8) & 0xff) - ((b >> 8) & 0xff))
+                + Math.abs((a & 0xff) - (b & 0xff));
+        return sad > THRESHOLD;
+    }
+
+    //the first halving keeps the top left pixel of every 2x2 block instead of averaging all four, so building the
+    //pyramid reads a quarter of the frame; the levels after it average and smooth that out again
+    private static void firstLevel(int[] pixels, int[] out, int width, int height) {
+        int w = (width + 1) / 2;
+        for (int y = 0; y < height; y += 2) {
+            int row = y * width;
+            int outRow = (y / 2) * w;
+            for (int x = 0; x < width; x += 2) {
+                out[outRow + x / 2] = pixels[row + x] & 0xffffff;
+            }
+        }
+    }
+
+    //level of w x h cells halved in place, the result is stored row major with its own width
+    private void halve(int[] level, int w, int h) {
+        int halfW = (w + 1) / 2, halfH = (h + 1) / 2;
+        int[] out = scratch;
+        for (int y = 0; y < halfH; y++) {
+            int top = 2 * y * w;
+            //a last odd row or column is counted twice instead of dividing by a different count
+            int bottom = 2 * y + 1 < h ? top + w : top;
+            int outRow = y * halfW;
+            for (int x = 0; x < halfW; x++) {
+                int left = 2 * x;
+                int right = left + 1 < w ? left + 1 : left;
+                out[outRow + x] = average(average(level[top + left], level[top + right]), average(level[bottom + left], level[bottom + right]));
+            }
+        }
+        System.arraycopy(out, 0, level, 0, halfW * halfH);
+    }
+
+    //per channel average of two packed rgb pixels, rounded down: the bits both have plus half of the ones only one has
+    private static int average(int a, int b) {
+        return (a & b) + (((a ^ b) & LOW_BITS) >>> 1);
+    }
+}
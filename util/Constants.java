@@ -7,5 +7,7 @@ public class Constants {
     public static final String OUTPUT_VIDEO_PATH="Prog3/outputVideo";
     public static final String MIDWAY_POINT="Prog3/vidOutput";
     public static final String OUTPUT_FOLDER="Prog3";
+    public static final String OUTPUT_VIDEO_FILE="output.mp4";
+    public static final String REGIONS_FILE="regions.bin";
 
 }
@@ -0,0 +1,93 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.List;
+
+//keeps one ffmpeg process open and pipes raw frames into libx264, frames have to be written in order
+public class EncoderFrameSink implements FrameSink {
+    private final String outputVideo;
+    private final int fps;
+    private Process process;
+    private OutputStream out;
+    private int width;
+    private int height;
+    private int[] scratch;
+    private byte[] frameBytes;
+    private IntBuffer frameInts;
+    private int written = 0;
+
+    public EncoderFrameSink(String outputVideo, int fps) {
+        this.outputVideo = outputVideo;
+        this.fps = fps;
+    }
+
+    //the encoder is started with the first frame because that is when the size is known
+    private void start(int width, int height) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.frameBytes = new byte[width * height * 4];
+        //ARGB ints written little endian come out as the bgra bytes ffmpeg expects
+        this.frameInts = ByteBuffer.wrap(frameBytes).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+
+        File outputFile = new File(outputVideo);
+        if (outputFile.exists()) {
+            outputFile.delete();
+        }
+        List<String> command = List.of("ffmpeg", "-v", "error",
+                "-f", "rawvideo", "-pix_fmt", "bgra", "-s", width + "x" + height, "-framerate", String.valueOf(fps),
+                "-i", "-",
+                "-c:v", "libx264", "-pix_fmt", "yuv420p", outputVideo);
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+        processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        process = processBuilder.start();
+        out = new BufferedOutputStream(process.getOutputStream(), frameBytes.length);
+        Logger.log("Encoding " + width + "x" + height + " frames into " + outputVideo, LogLevel.Info);
+    }
+
+    @Override
+    public void write(int index, BufferedImage frame) throws IOException {
+        if (process == null) {
+            start(frame.getWidth(), frame.getHeight());
+        }
+        if (frame.getWidth() != width || frame.getHeight() != height) {
+            throw new IOException("Frame " + index + " is " + frame.getWidth() + "x" + frame.getHeight() + ", encoder expects " + width + "x" + height);
+        }
+
+        int[] pixels;
+        if (frame.getType() == BufferedImage.TYPE_INT_ARGB) {
+            pixels = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+        } else {
+            if (scratch == null) {
+                scratch = new int[width * height];
+            }
+            pixels = frame.getRGB(0, 0, width, height, scratch, 0, width);
+        }
+        frameInts.clear();
+        frameInts.put(pixels);
+        out.write(frameBytes);
+        written++;
+    }
+
+    @Override
+    public void finish() throws IOException, InterruptedException {
+        if (process == null) {
+            Logger.log("No frames were written, " + outputVideo + " was not created", LogLevel.Warn);
+            return;
+        }
+        out.close();
+        int exitCode = process.waitFor();
+        if (exitCode != 0) {
+            throw new IOException("ffmpeg exited with code " + exitCode + " while encoding " + outputVideo);
+        }
+        Logger.log("Encoded " + written + " frames into " + outputVideo, LogLevel.Info);
+    }
+}
@@ -0,0 +1,47 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+//format of the frames that are only kept between stages: the extracted frames, the processed frames makeVideo reads
+//and the frames and diffs sent between ranks. Picked with --frame-format, readers recognise every format by its first
+//bytes, so only the writing side has to know which one is used
+public interface FrameCodec {
+    //file extension without the dot, ffmpeg picks the image format from it too
+    String extension();
+
+    //added to the ffmpeg command that extracts frames in this format
+    List<String> ffmpegOptions();
+
+    void write(BufferedImage frame, OutputStream out) throws IOException;
+
+    //reuse is used when it has the size and layout the codec decodes into, otherwise a new image is returned
+    BufferedImage read(InputStream in, BufferedImage reuse) throws IOException;
+
+    //png, qoi or raw, pngLevel is the deflate level 0-9 of png frames, -1 keeps the writers' defaults
+    static FrameCodec select(String format, int pngLevel) {
+        return switch (format) {
+            case "qoi" -> new QoiFrameCodec();
+            case "raw" -> new RawFrameCodec();
+            case "png" -> new PngFrameCodec(pngLevel);
+            default -> {
+                Logger.log("Unknown --frame-format " + format + ", use png, qoi or raw. Using png", LogLevel.Warn);
+                yield new PngFrameCodec(pngLevel);
+            }
+        };
+    }
+
+    //the codec for a file starting with these bytes, null for png and anything else ImageIO has to look at
+    static FrameCodec forHeader(byte[] header, int length) {
+        if (length >= 4 && header[0] == 'q' && header[1] == 'o' && header[2] == 'i' && header[3] == 'f') {
+            return new QoiFrameCodec();
+        }
+        if (length >= 2 && header[0] == 'P' && header[1] == '7') {
+            return new RawFrameCodec();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,754 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+//motion detection shared by all processors, works on the packed pixel arrays instead of getRGB/setRGB
+public class FrameDiff {
+    //largest sum of channel differences that still counts as no change
+    public static final int SAD_THRESHOLD = sadThreshold(Constants.PIXEL_DIFF_THRESHOLD);
+    protected static final int COLOR_COUNT = 10;
+    //picked once by Main from --simd, instances created afterwards use it
+    private static volatile MaskKernel defaultKernel = new ScalarMaskKernel();
+    //false with --no-render, regions are still labelled and measured but the output image is left untouched
+    private static volatile boolean defaultRender = true;
+    //--tiles=step, 0 compares every pixel, otherwise tiles are checked on every step-th pixel and row first
+    private static volatile int defaultTileStep = 0;
+    //--pyramid=levels, 0 for none
+    private static volatile int defaultPyramidLevels = 0;
+    //--skip-static=tolerance, pairs whose fingerprints match within it skip the pixel pass, -1 compares every pair
+    private static volatile int defaultStaticTolerance = -1;
+    //--background=shift, 0 diffs frame pairs, otherwise frames are compared with a running average that moves 1/2^shift per frame
+    private static volatile int defaultBackgroundShift = 0;
+    //--background-state: snapshot every model starts from, and the file the model that saw the last frame is written to
+    private static volatile byte[] defaultBackgroundState;
+    private static volatile String backgroundStatePath;
+    protected static final int TILE_SIZE = 16;
+    //--skip-static without a value: about one sample of a fingerprint block changing by the per pixel threshold
+    public static final int DEFAULT_STATIC_TOLERANCE = Math.max(1, SAD_THRESHOLD / 3);
+    //--background without a value, the model takes about 16 frames to follow a change
+    public static final int DEFAULT_BACKGROUND_SHIFT = 4;
+
+    //converts the percentage threshold into a sum of absolute differences
+    //the search is done with the old floating point formula so the masks stay exactly the same
+    public static int sadThreshold(double percent) {
+        for (int diff = 0; diff <= 3 * 255; diff++) {
+            if ((diff / (3.0 * 255.0)) * 100.0 > percent) {
+                return diff - 1;
+            }
+        }
+        return 3 * 255;
+    }
+
+    //scratch buffers reused across frames, so one instance must only be used by one thread at a time
+    private long[] visited = new long[0];
+    //bit p set when pixel p changed, filled by the mask kernel before labelling
+    protected long[] mask = new long[0];
+    private int[] stack = new int[1024];
+    private int[] prevScratch;
+    private int[] currScratch;
+    private final int[] colors = new int[COLOR_COUNT];
+    private final Random random;
+    private final MaskKernel kernel;
+    protected final boolean render = defaultRender;
+    protected final int tileStep = defaultTileStep;
+    private final ColorPyramid pyramid;
+    private final int staticTolerance = defaultStaticTolerance;
+    private FrameFingerprint prevPrint = new FrameFingerprint();
+    private FrameFingerprint currPrint = new FrameFingerprint();
+    private BufferedImage printedFrame; //curr frame of the last in order pair, currPrint is still its fingerprint
+    private boolean prevPrinted; //prevPrint already is the fingerprint of the next pair's prev frame
+    private boolean unchanged;
+    private final BackgroundModel background;
+    private final byte[] backgroundState = defaultBackgroundState;
+    private final String backgroundSavePath = backgroundStatePath;
+    private boolean feedPrev; //startBackground stopped before the first pair's prev frame, the next pair hands it to the model
+    private boolean fedPrinted; //prevPrint holds the fingerprint of the last frame startBackground fed to the model
+    private boolean preset; //the mask of this computeDifference comes from backgroundMask, null in presetMask for an unchanged pair
+    private long[] presetMask;
+    private boolean[] tileQueued = new boolean[0];
+    private int[] tileQueue = new int[0];
+    private int tilesChecked;
+    private int tilesCompared;
+    protected final RegionStats regions = new RegionStats();
+
+    public FrameDiff() {
+        this(new Random());
+    }
+
+    //a seeded random gives the same region colors every run, used to compare labelling modes
+    public FrameDiff(Random random) {
+        this(random, defaultKernel);
+    }
+
+    public FrameDiff(Random random, MaskKernel kernel) {
+        this(random, kernel, defaultPyramidLevels);
+    }
+
+    public FrameDiff(Random random, MaskKernel kernel, int pyramidLevels) {
+        this.random = random;
+        this.kernel = kernel;
+        this.pyramid = pyramidLevels > 0 ? new ColorPyramid(pyramidLevels) : null;
+        this.background = defaultBackgroundShift > 0 ? new BackgroundModel(defaultBackgroundShift) : null;
+        restartBackground();
+    }
+
+    public static void setDefaultKernel(MaskKernel kernel) {
+        defaultKernel = kernel;
+    }
+
+    public static void setDefaultRender(boolean render) {
+        defaultRender = render;
+    }
+
+    public static void setDefaultTileStep(int step) {
+        defaultTileStep = Math.max(0, step);
+    }
+
+    public static void setDefaultPyramidLevels(int levels) {
+        defaultPyramidLevels = Math.max(0, levels);
+    }
+
+    public static void setDefaultStaticTolerance(int tolerance) {
+        defaultStaticTolerance = tolerance;
+    }
+
+    //the diff options of the three versions, set before any FrameDiff is made
+    //the sequential and parallel versions start the background model from --background-state and write it back there
+    public static void configure(Options options) {
+        String state = options.get("background-state", null);
+        configure(options, options.has("background") ? readBackgroundState(state) : null, state);
+    }
+
+    //backgroundState and savePath as for setDefaultBackground
+    public static void configure(Options options, byte[] backgroundState, String savePath) {
+        if (options.has("simd")) setDefaultKernel(MaskKernel.select(true));
+        if (options.has("no-render")) setDefaultRender(false);
+        if (options.has("tiles")) setDefaultTileStep(options.getFlagInt("tiles", 2));
+        if (options.has("pyramid")) setDefaultPyramidLevels(options.getFlagInt("pyramid", 2));
+        if (options.has("skip-static")) setDefaultStaticTolerance(options.getFlagInt("skip-static", DEFAULT_STATIC_TOLERANCE));
+        if (options.has("background")) {
+            setDefaultBackground(options.getFlagInt("background", DEFAULT_BACKGROUND_SHIFT), backgroundState, savePath);
+        }
+    }
+
+    //state is a snapshot from saveBackground or null, savePath may be null to never write one
+    public static void setDefaultBackground(int shift, byte[] state, String savePath) {
+        defaultBackgroundShift = Math.max(0, shift);
+        defaultBackgroundState = state;
+        backgroundStatePath = savePath;
+    }
+
+    //the snapshot in path, null when there is no path or no file yet
+    public static byte[] readBackgroundState(String path) {
+        if (path == null || !new File(path).isFile()) return null;
+        try {
+            return Files.readAllBytes(Path.of(path));
+        } catch (IOException e) {
+            Logger.log("Could not read background model snapshot " + path + ": " + e.getMessage(), LogLevel.Warn);
+            return null;
+        }
+    }
+
+    //processors that hand frames out in any order have to keep each model on a contiguous run of frames
+    public static boolean usesBackground() {
+        return defaultBackgroundShift > 0;
+    }
+
+    //frames a run of pairs feeds to a fresh model before its first pair, four times the frames the model takes to follow
+    //a change, so less than 2% of the frame it was seeded from is left
+    public static int backgroundLeadIn() {
+        return usesBackground() ? 4 << defaultBackgroundShift : 0;
+    }
+
+    //first frame startBackground loads for a run whose first pair is (first, first + 1), first itself without a model
+    public static int backgroundLeadStart(int first) {
+        return Math.max(0, first - backgroundLeadIn());
+    }
+
+    public interface FrameLoader {
+        //frame index of the run's source, decoded into reuse when possible, null when it is missing
+        BufferedImage load(int index, BufferedImage reuse) throws IOException;
+    }
+
+    //for the run summaries, whether unchanged pairs are counted at all
+    public static boolean skipsStaticPairs() {
+        return defaultStaticTolerance >= 0;
+    }
+
+    //changed-pixel bits and region colors of the last computeDifference, overwritten by the next call
+    public long[] lastMask() {
+        return mask;
+    }
+
+    public int[] lastColors() {
+        return colors;
+    }
+
+    //bounding box, area and centroid of every region of the last computeDifference, numbered like the colors
+    public RegionStats lastRegions() {
+        return regions;
+    }
+
+    //with --tiles or --pyramid, how many tiles the last frame had and how many of them were compared pixel by pixel
+    public int lastTileCount() {
+        return tilesChecked;
+    }
+
+    public int lastComparedTiles() {
+        return tilesCompared;
+    }
+
+    //the last pair matched on its fingerprints, the output is the current frame and there are no regions
+    public boolean lastUnchanged() {
+        return unchanged;
+    }
+
+    //call before a run of pairs that doesn't continue the last one and starts at frame 0: the model goes back to the
+    //snapshot or, without one, is seeded from the prev frame of the next pair
+    public void restartBackground() {
+        if (background == null) return;
+        background.clear();
+        feedPrev = false;
+        fedPrinted = false;
+        printedFrame = null;
+        if (backgroundState == null) return;
+        try {
+            background.readFrom(new DataInputStream(new ByteArrayInputStream(backgroundState)));
+        } catch (IOException e) {
+            Logger.log("Ignoring background model snapshot: " + e.getMessage(), LogLevel.Warn);
+            background.clear();
+        }
+    }
+
+    //call before a run of pairs that doesn't continue the last one, its first pair is (first, first + 1)
+    //frames backgroundLeadStart(first) until first are loaded in order and fed to the model the way a run from frame 0
+    //would have, and the next pair adds its prev frame. A lead-in from frame 0 starts at the snapshot and gives exactly
+    //that run's model, a later one is seeded from its first frame
+    public void startBackground(int first, FrameLoader frames) throws IOException {
+        if (background == null) return;
+        int lead = backgroundLeadStart(first);
+        restartBackground();
+        //a snapshot is the model at frame 0 of this run, later lead-ins start from scratch
+        if (lead > 0) background.clear();
+        BufferedImage frame = null;
+        for (int i = lead; i < first; i++) {
+            frame = frames.load(i, frame);
+            if (frame == null) continue;
+            int[] pixels = argbPixels(frame, currScratch);
+            if (!ownsPixels(frame, pixels)) currScratch = pixels;
+            feedBackground(pixels, frame.getWidth(), frame.getHeight(), i == 0);
+        }
+        feedPrev = first > 0;
+    }
+
+    //the model takes the frame like the curr frame of a pair, or is seeded from it, the first frame of the video only seeds
+    //with --skip-static a frame whose fingerprint matches the frame before is left out, its pair skipped the model too
+    private void feedBackground(int[] pixels, int width, int height, boolean firstFrame) {
+        if (staticTolerance >= 0) {
+            currPrint.compute(pixels, width, height);
+            boolean same = fedPrinted && prevPrint.matches(currPrint, staticTolerance);
+            FrameFingerprint last = currPrint;
+            currPrint = prevPrint;
+            prevPrint = last;
+            fedPrinted = true;
+            if (same) return;
+        }
+        if (!background.fits(width, height)) {
+            background.seed(pixels, width, height);
+        } else if (!firstFrame) {
+            ensureMask(width * height);
+            background.update(pixels, mask, 0, width * height, SAD_THRESHOLD);
+        }
+    }
+
+    //--background with several diff threads: the model has to see every frame in order, so the thread that reads the
+    //frames runs this for each pair and the diff threads label it with the mask it returns, see computeDifference below
+    //returns null for a pair that matched on its fingerprints, reuse is filled when it is big enough
+    public long[] backgroundMask(BufferedImage prevFrame, BufferedImage currentFrame, long[] reuse) {
+        int width = prevFrame.getWidth();
+        int height = prevFrame.getHeight();
+        int n = width * height;
+        int[] prev = argbPixels(prevFrame, prevScratch);
+        int[] curr = argbPixels(currentFrame, currScratch);
+        if (!ownsPixels(prevFrame, prev)) prevScratch = prev;
+        if (!ownsPixels(currentFrame, curr)) currScratch = curr;
+        //the model sees the frames in order, so the prev frame was the curr of the last call
+        boolean printed = takePrevPrint(prevFrame);
+        if (feedPrev) {
+            feedPrev = false;
+            feedBackground(prev, width, height, false);
+            printed = staticTolerance >= 0;
+        }
+        if (staticTolerance >= 0) {
+            printedFrame = currentFrame;
+            if (sameFingerprint(prev, curr, width, height, printed)) return null;
+        }
+        if (!background.fits(width, height)) background.seed(prev, width, height);
+        int words = (n + 63) >>> 6;
+        long[] out = reuse != null && reuse.length >= words ? reuse : new long[words];
+        background.update(curr, out, 0, n, SAD_THRESHOLD);
+        return out;
+    }
+
+    //writes the model to the --background-state file, only the model that saw the last frame of a run should call this
+    public void saveBackground() throws IOException {
+        if (background == null || backgroundSavePath == null || !background.seeded()) return;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(backgroundSavePath)))) {
+            background.writeTo(out);
+        }
+        Logger.log("Background model saved to " + backgroundSavePath, LogLevel.Info);
+    }
+
+    //the mask comes from a model, here or the one that made the preset mask
+    protected boolean hasBackground() {
+        return background != null || preset;
+    }
+
+    protected int pyramidLevels() {
+        return pyramid == null ? 0 : pyramid.levels();
+    }
+
+    public BufferedImage computeDifference(BufferedImage prevFrame, BufferedImage currentFrame) {
+        return computeDifference(prevFrame, currentFrame, null);
+    }
+
+    //labels the pair with a mask from backgroundMask instead of making one, null for a pair it found unchanged
+    //this instance's own model is left alone
+    public BufferedImage computeDifference(BufferedImage prevFrame, BufferedImage currentFrame, BufferedImage reuse, long[] mask) {
+        preset = true;
+        presetMask = mask;
+        try {
+            return computeDifference(prevFrame, currentFrame, reuse);
+        } finally {
+            preset = false;
+            presetMask = null;
+        }
+    }
+
+    //writes into reuse when it is a TYPE_INT_ARGB image of the right size, otherwise into a new image
+    //with a reused output nothing is allocated once the scratch buffers have grown
+    public BufferedImage computeDifference(BufferedImage prevFrame, BufferedImage currentFrame, BufferedImage reuse) {
+        return computeDifference(prevFrame, currentFrame, reuse, false);
+    }
+
+    //for callers that go through the frames in order: when prevFrame is the currentFrame of the last call and hasn't been
+    //decoded into since, --skip-static keeps its fingerprint from that call instead of reading the frame again
+    //pools that hand a frame back out between its two pairs have to use computeDifference
+    public BufferedImage computeNextDifference(BufferedImage prevFrame, BufferedImage currentFrame, BufferedImage reuse) {
+        return computeDifference(prevFrame, currentFrame, reuse, true);
+    }
+
+    private BufferedImage computeDifference(BufferedImage prevFrame, BufferedImage currentFrame, BufferedImage reuse, boolean inOrder) {
+        int width = prevFrame.getWidth();
+        int height = prevFrame.getHeight();
+
+        BufferedImage diffFrame = reuse;
+        if (diffFrame == null || diffFrame.getType() != BufferedImage.TYPE_INT_ARGB
+                || diffFrame.getWidth() != width || diffFrame.getHeight() != height) {
+            diffFrame = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+
+        int[] curr = argbPixels(currentFrame, currScratch);
+        //a preset mask needs no prev pixels
+        int[] prev = preset ? curr : argbPixels(prevFrame, prevScratch);
+        //only keep converted copies as scratch, never an array that belongs to a frame
+        if (!ownsPixels(prevFrame, prev) && prev != curr) prevScratch = prev;
+        if (!ownsPixels(currentFrame, curr)) currScratch = curr;
+
+        int[] out = ((DataBufferInt) diffFrame.getRaster().getDataBuffer()).getData();
+        prevPrinted = inOrder && takePrevPrint(prevFrame);
+        computeDifference(prev, curr, out, width, height);
+        if (inOrder && staticTolerance >= 0 && !preset) printedFrame = currentFrame;
+        return diffFrame;
+    }
+
+    //all arrays are ARGB in row major order, unchanged pixels are copied and each changed region gets one color
+    public void computeDifference(int[] prev, int[] curr, int[] out, int width, int height) {
+        boolean printed = prevPrinted;
+        prevPrinted = false;
+        printedFrame = null;
+        randomColors(colors);
+        if (preset) {
+            unchanged = presetMask == null;
+        } else {
+            if (feedPrev) {
+                feedPrev = false;
+                if (background != null) {
+                    feedBackground(prev, width, height, false);
+                    printed = staticTolerance >= 0;
+                }
+            }
+            unchanged = staticTolerance >= 0 && sameFingerprint(prev, curr, width, height, printed);
+        }
+        if (unchanged) {
+            copyUnchanged(curr, out, width * height);
+        } else {
+            //a snapshot of another frame size is as good as none
+            if (!preset && background != null && !background.fits(width, height)) background.seed(prev, width, height);
+            labelRegions(prev, curr, out, width, height, colors);
+        }
+    }
+
+    //--skip-static: fingerprints of both frames read a sixteenth of their pixels each, far less than the mask pass
+    //prevReady when prevPrint already is prev's, from the pair before or from feeding it to the model
+    private boolean sameFingerprint(int[] prev, int[] curr, int width, int height, boolean prevReady) {
+        if (!prevReady) prevPrint.compute(prev, width, height);
+        currPrint.compute(curr, width, height);
+        return prevPrint.matches(currPrint, staticTolerance);
+    }
+
+    //when prevFrame is the curr frame of the last in order pair its fingerprint moves over to prevPrint
+    private boolean takePrevPrint(BufferedImage prevFrame) {
+        boolean printed = staticTolerance >= 0 && prevFrame == printedFrame;
+        printedFrame = null;
+        if (!printed) return false;
+        FrameFingerprint last = prevPrint;
+        prevPrint = currPrint;
+        currPrint = last;
+        return true;
+    }
+
+    //what labelRegions leaves behind for a pair without a single changed pixel
+    private void copyUnchanged(int[] curr, int[] out, int n) {
+        ensureMask(n);
+        Arrays.fill(mask, 0, (n + 63) >>> 6, 0L);
+        regions.reset(0);
+        tilesChecked = 0;
+        tilesCompared = 0;
+        if (render) System.arraycopy(curr, 0, out, 0, n);
+    }
+
+    //regions are numbered in the order their first pixel appears in a row major scan and take colors[number % colors.length]
+    //this is the single threaded flood fill, StripeFrameDiff labels stripes of the frame in parallel
+    protected void labelRegions(int[] prev, int[] curr, int[] out, int width, int height, int[] colors) {
+        int n = width * height;
+        int words = (n + 63) >>> 6;
+        if (visited.length < words) {
+            visited = new long[words];
+        } else {
+            Arrays.fill(visited, 0, words, 0L);
+        }
+        computeFrameMask(prev, curr, width, height);
+        long[] mask = this.mask;
+        regions.reset(0);
+        int colorIndex = 0; //index of the color to use for coloring the contiguous area
+
+        for (int word = 0; word < words; word++) {
+            int base = word << 6;
+            if (mask[word] == 0) {
+                //nothing changed in these 64 pixels or the ones after them, keep them all in one copy
+                int last = word;
+                while (last + 1 < words && mask[last + 1] == 0) last++;
+                int end = Math.min((last + 1) << 6, n);
+                if (render) System.arraycopy(curr, base, out, base, end - base);
+                word = last;
+                continue;
+            }
+            int end = Math.min(base + 64, n);
+            for (int p = base; p < end; p++) {
+                if ((mask[word] & (1L << p)) == 0) {
+                    //keep if no difference
+                    if (render) out[p] = curr[p];
+                } else if ((visited[word] & (1L << p)) == 0) {
+                    fillRegion(out, width, height, p, colors[colorIndex], regions.add());
+                    colorIndex = (colorIndex + 1) % colors.length; //cycle through colors
+                }
+            }
+        }
+    }
+
+    //fills mask for pixels [from, to), from must be a multiple of 64
+    //the mask array has to be big enough already when several threads call this for different ranges
+    protected void computeMask(int[] prev, int[] curr, int from, int to) {
+        ensureMask(to);
+        if (preset) {
+            System.arraycopy(presetMask, from >>> 6, mask, from >>> 6, ((to + 63) >>> 6) - (from >>> 6));
+        } else if (background != null) {
+            background.update(curr, mask, from, to, SAD_THRESHOLD);
+        } else {
+            kernel.computeMask(prev, curr, mask, from, to, SAD_THRESHOLD);
+        }
+    }
+
+    //picks how the mask of a frame is made: every pixel, sampled tiles (--tiles) or the color pyramid (--pyramid)
+    //a background model compares every pixel with the model instead of prev and takes over from the other two
+    protected void computeFrameMask(int[] prev, int[] curr, int width, int height) {
+        if (hasBackground()) {
+            computeMask(prev, curr, 0, width * height);
+        } else if (pyramid != null) {
+            computePyramidMask(prev, curr, width, height);
+        } else if (tileStep > 0) {
+            computeTiledMask(prev, curr, width, height);
+        } else {
+            computeMask(prev, curr, 0, width * height);
+        }
+    }
+
+    //--tiles: a cheap pass samples every tileStep-th pixel of every tileStep-th row of each 16x16 tile, and only tiles
+    //where a sample changed get the per pixel mask. The rest of the mask stays 0 and labelRegions copies those pixels
+    //in whole words, so a mostly static frame costs the sampled pass and a copy: at 1080p about 4 ms with step 2 and
+    //2 ms with step 4 against 11 ms for the full comparison, while frames full of motion get a bit slower.
+    //Only regions that no sample touches are missed, --tiles=1 samples every pixel
+    protected void computeTiledMask(int[] prev, int[] curr, int width, int height) {
+        int tilesX = startTiles(width, height, TILE_SIZE);
+        int tiles = tilesX * ((height + TILE_SIZE - 1) / TILE_SIZE);
+        int top = 0;
+        for (int t = 0; t < tiles; t++) {
+            if (sampledChange(prev, curr, width, height, t % tilesX, t / tilesX)) {
+                top = queueTile(t, top);
+            }
+        }
+        refineTiles(prev, curr, width, height, TILE_SIZE, top);
+    }
+
+    //--pyramid: motion is found on the coarsest level of a color pyramid, one cell per tile of 2^levels pixels, and
+    //the changed cells and their 8 neighbours are compared at full resolution
+    //small or faint changes that disappear in the averaging are missed, bench.Benchmarks reports how many. On the noisy
+    //frames of test.FrameDiffTest it finds 99.4 to 99.9% of the changed pixels and every blob, but only 5 to 42 of the
+    //64 to 69 regions since most of them are single noise pixels, on the 1080p frames of the benchmark 100% of the
+    //pixels at 1% and 10% motion and 99.99% at 50%. It takes about two thirds of the full diff's time at 1% motion,
+    //about the same at 10%, and more at 50%
+    protected void computePyramidMask(int[] prev, int[] curr, int width, int height) {
+        pyramid.build(prev, curr, width, height);
+        int size = 1 << pyramid.levels();
+        int tilesX = startTiles(width, height, size);
+        int tilesY = (height + size - 1) / size;
+        int top = 0;
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                if (!pyramid.changed(tx, ty)) continue;
+                for (int ny = Math.max(0, ty - 1); ny <= Math.min(tilesY - 1, ty + 1); ny++) {
+                    for (int nx = Math.max(0, tx - 1); nx <= Math.min(tilesX - 1, tx + 1); nx++) {
+                        top = queueTile(ny * tilesX + nx, top);
+                    }
+                }
+            }
+        }
+        refineTiles(prev, curr, width, height, size, top);
+    }
+
+    //clears the mask and the queue for tiles of size x size pixels, returns how many tiles make up a row
+    private int startTiles(int width, int height, int size) {
+        int n = width * height;
+        ensureMask(n);
+        Arrays.fill(mask, 0, (n + 63) >>> 6, 0L);
+        int tilesX = (width + size - 1) / size;
+        int tiles = tilesX * ((height + size - 1) / size);
+        if (tileQueued.length < tiles) {
+            tileQueued = new boolean[tiles];
+            tileQueue = new int[tiles];
+        } else {
+            Arrays.fill(tileQueued, 0, tiles, false);
+        }
+        tilesChecked = tiles;
+        return tilesX;
+    }
+
+    //computes the per pixel mask of the top queued tiles. A tile whose changed pixels reach one of its edges queues
+    //that neighbour too, so a region is followed across tile borders until it ends even where no seed hit it
+    private void refineTiles(int[] prev, int[] curr, int width, int height, int size, int top) {
+        long[] mask = this.mask;
+        int tilesX = (width + size - 1) / size;
+        int tilesY = (height + size - 1) / size;
+        int compared = 0;
+        while (top > 0) {
+            int t = tileQueue[--top];
+            compared++;
+            int tx = t % tilesX, ty = t / tilesX;
+            int x0 = tx * size, x1 = Math.min(width, x0 + size);
+            int y0 = ty * size, y1 = Math.min(height, y0 + size);
+            boolean left = false, right = false, up = false, down = false;
+            for (int y = y0; y < y1; y++) {
+                int row = y * width;
+                for (int p = row + x0; p < row + x1; p++) {
+                    if (pixelDifference(prev[p], curr[p]) > SAD_THRESHOLD) {
+                        mask[p >>> 6] |= 1L << p;
+                        left |= p == row + x0;
+                        right |= p == row + x1 - 1;
+                        up |= y == y0;
+                        down |= y == y1 - 1;
+                    }
+                }
+            }
+            if (left && tx > 0) top = queueTile(t - 1, top);
+            if (right && tx < tilesX - 1) top = queueTile(t + 1, top);
+            if (up && ty > 0) top = queueTile(t - tilesX, top);
+            if (down && ty < tilesY - 1) top = queueTile(t + tilesX, top);
+        }
+        tilesCompared = compared;
+    }
+
+    //every tile is queued at most once, so the queue never holds more than all tiles
+    private int queueTile(int t, int top) {
+        if (!tileQueued[t]) {
+            tileQueued[t] = true;
+            tileQueue[top++] = t;
+        }
+        return top;
+    }
+
+    //odd sample rows are shifted by half a step so the samples cover the tile like a checkerboard
+    private boolean sampledChange(int[] prev, int[] curr, int width, int height, int tx, int ty) {
+        int x0 = tx * TILE_SIZE, x1 = Math.min(width, x0 + TILE_SIZE);
+        int y0 = ty * TILE_SIZE, y1 = Math.min(height, y0 + TILE_SIZE);
+        int step = tileStep;
+        for (int y = y0, sampleRow = 0; y < y1; y += step, sampleRow++) {
+            int row = y * width;
+            for (int x = x0 + (sampleRow & 1) * (step / 2); x < x1; x += step) {
+                if (pixelDifference(prev[row + x], curr[row + x]) > SAD_THRESHOLD) return true;
+            }
+        }
+        return false;
+    }
+
+    protected void ensureMask(int pixels) {
+        int words = (pixels + 63) >>> 6;
+        if (mask.length < words) {
+            mask = new long[words];
+        }
+    }
+
+    //scanline fill: colors the whole run of changed pixels in a row, then pushes one seed per run in the rows above and below
+    //every run is also added to the region's stats
+    private void fillRegion(int[] out, int width, int height, int start, int color, int region) {
+        long[] visited = this.visited;
+        long[] mask = this.mask;
+        int top = 0;
+        stack[top++] = start;
+
+        while (top > 0) {
+            int p = stack[--top];
+            if (!unvisitedChange(mask, visited, p)) {
+                continue;
+            }
+            int rowStart = p - p % width;
+            int rowEnd = rowStart + width - 1;
+            int left = p;
+            while (left > rowStart && unvisitedChange(mask, visited, left - 1)) left--;
+            int right = p;
+            while (right < rowEnd && unvisitedChange(mask, visited, right + 1)) right++;
+
+            for (int q = left; q <= right; q++) {
+                visited[q >>> 6] |= 1L << q;
+            }
+            if (render) Arrays.fill(out, left, right + 1, color);
+            regions.addRun(region, rowStart / width, left - rowStart, right - rowStart);
+            if (rowStart > 0) {
+                top = pushRuns(mask, visited, left - width, right - width, top);
+            }
+            if (rowEnd + 1 < width * height) {
+                top = pushRuns(mask, visited, left + width, right + width, top);
+            }
+        }
+    }
+
+    //pushes the first pixel of every run of unvisited changed pixels in [from, to]
+    private int pushRuns(long[] mask, long[] visited, int from, int to, int top) {
+        boolean inRun = false;
+        for (int q = from; q <= to; q++) {
+            if (unvisitedChange(mask, visited, q)) {
+                if (!inRun) {
+                    if (top == stack.length) {
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                    }
+                    stack[top++] = q;
+                    inRun = true;
+                }
+            } else {
+                inRun = false;
+            }
+        }
+        return top;
+    }
+
+    private static boolean unvisitedChange(long[] mask, long[] visited, int p) {
+        return (mask[p >>> 6] & ~visited[p >>> 6] & (1L << p)) != 0;
+    }
+
+    //new colors every frame like before, but written into the same array
+    private void randomColors(int[] colors) {
+        for (int i = 0; i < colors.length; i++) {
+            int r = random.nextInt(256);
+            int g = random.nextInt(256);
+            int b = random.nextInt(256);
+            int alpha = random.nextInt(50);
+
+            colors[i] = (alpha << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    //sum of absolute channel differences, 0..765, alpha is ignored
+    public static int pixelDifference(int prevPixel, int currPixel) {
+        //rgb structure: AARRGGBB in bytes
+        int dr = ((prevPixel >> 16) & 0xff) - ((currPixel >> 16) & 0xff);
+        int dg = ((prevPixel >> 8) & 0xff) - ((currPixel >> 8) & 0xff);
+        int db = (prevPixel & 0xff) - (currPixel & 0xff);
+        return Math.abs(dr) + Math.abs(dg) + Math.abs(db);
+    }
+
+    //packed ARGB pixels in row major order, same values getRGB would return
+    //int ARGB images hand out their own raster array, other types are converted into reuse (or a new array)
+    public static int[] argbPixels(BufferedImage img, int[] reuse) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int n = width * height;
+        boolean plain = img.getRaster().getParent() == null && img.getRaster().getDataBuffer().getSize() == n * bandsPerPixel(img.getType());
+        if (plain && img.getType() == BufferedImage.TYPE_INT_ARGB) {
+            return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        }
+
+        int[] pixels = (reuse != null && reuse.length == n) ? reuse : new int[n];
+        if (!plain) {
+            return img.getRGB(0, 0, width, height, pixels, 0, width);
+        }
+        switch (img.getType()) {
+            case BufferedImage.TYPE_INT_RGB -> {
+                int[] data = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+                for (int p = 0; p < n; p++) {
+                    pixels[p] = data[p] | 0xff000000;
+                }
+            }
+            case BufferedImage.TYPE_3BYTE_BGR -> {
+                //what ImageIO gives back for the pngs ffmpeg writes
+                byte[] data = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+                for (int p = 0, b = 0; p < n; p++, b += 3) {
+                    pixels[p] = 0xff000000 | ((data[b + 2] & 0xff) << 16) | ((data[b + 1] & 0xff) << 8) | (data[b] & 0xff);
+                }
+            }
+            case BufferedImage.TYPE_4BYTE_ABGR -> {
+                byte[] data = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+                for (int p = 0, b = 0; p < n; p++, b += 4) {
+                    pixels[p] = ((data[b] & 0xff) << 24) | ((data[b + 3] & 0xff) << 16) | ((data[b + 2] & 0xff) << 8) | (data[b + 1] & 0xff);
+                }
+            }
+            default -> img.getRGB(0, 0, width, height, pixels, 0, width);
+        }
+        return pixels;
+    }
+
+    private static boolean ownsPixels(BufferedImage img, int[] pixels) {
+        return img.getRaster().getDataBuffer() instanceof DataBufferInt buffer && buffer.getData() == pixels;
+    }
+
+    //array elements per pixel for the types argbPixels reads directly
+    private static int bandsPerPixel(int type) {
+        return switch (type) {
+            case BufferedImage.TYPE_3BYTE_BGR -> 3;
+            case BufferedImage.TYPE_4BYTE_ABGR -> 4;
+            default -> 1;
+        };
+    }
+}
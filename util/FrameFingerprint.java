@@ -0,0 +1,45 @@
+package util;
+
+import java.util.Arrays;
+
+//summed luma of every 16x16 block of a frame, taken on every 4th pixel of every 4th row
+//two frames whose block sums all stay within a tolerance are treated as the same picture, so motion small enough to stay
+//within the tolerance of its block is missed. At 1080p a skipped pair costs about 2 ms instead of 10 ms
+class FrameFingerprint {
+    static final int BLOCK_SIZE = 16;
+    static final int SAMPLE_STEP = 4;
+
+    private int[] sums = new int[0];
+    private int blocks;
+
+    //reads a sixteenth of the pixels
+    void compute(int[] pixels, int width, int height) {
+        int blocksX = (width + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        blocks = blocksX * ((height + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        if (sums.length < blocks) {
+            sums = new int[blocks];
+        } else {
+            Arrays.fill(sums, 0, blocks, 0);
+        }
+        int[] sums = this.sums;
+        for (int y = 0; y < height; y += SAMPLE_STEP) {
+            int row = y * width;
+            int blockRow = (y / BLOCK_SIZE) * blocksX;
+            for (int x = 0; x < width; x += SAMPLE_STEP) {
+                int argb = pixels[row + x];
+                //BT.601 weights in 8 bit fixed point
+                sums[blockRow + x / BLOCK_SIZE] += (77 * ((argb >> 16) & 0xff) + 150 * ((argb >> 8) & 0xff) + 29 * (argb & 0xff)) >> 8;
+            }
+        }
+    }
+
+    //no block sum moved by more than tolerance, fingerprints with a different block count never match
+    boolean matches(FrameFingerprint other, int tolerance) {
+        if (blocks != other.blocks) return false;
+        int[] a = sums, b = other.sums;
+        for (int i = 0; i < blocks; i++) {
+            if (Math.abs(a[i] - b[i]) > tolerance) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,69 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+//fixed number of frame buffers that are handed out and given back, so memory does not grow with the video length
+//the buffers are heap images because ImageIO, the encoder and the diff all work on the image's own arrays
+public class FramePool {
+    private final int width;
+    private final int height;
+    private final int type;
+    private final int capacity;
+    private final BlockingQueue<BufferedImage> free;
+    private int created = 0;
+
+    public FramePool(int width, int height, int type, int capacity) {
+        this.width = width;
+        this.height = height;
+        this.type = type;
+        this.capacity = capacity;
+        this.free = new ArrayBlockingQueue<>(capacity);
+    }
+
+    //creates buffers until the capacity is reached, after that waits for one to be released
+    public BufferedImage acquire() throws InterruptedException {
+        BufferedImage image = free.poll();
+        if (image != null) {
+            return image;
+        }
+        synchronized (this) {
+            if (created < capacity) {
+                created++;
+                return new BufferedImage(width, height, type);
+            }
+        }
+        return free.take();
+    }
+
+    //like acquire but returns null instead of waiting when every buffer is in use
+    public BufferedImage poll() {
+        BufferedImage image = free.poll();
+        if (image != null) {
+            return image;
+        }
+        synchronized (this) {
+            if (created < capacity) {
+                created++;
+                return new BufferedImage(width, height, type);
+            }
+        }
+        return null;
+    }
+
+    //any image with the pool's size and type can be released, images that don't fit are left to the gc
+    public void release(BufferedImage image) {
+        if (image != null && image.getWidth() == width && image.getHeight() == height && image.getType() == type) {
+            free.offer(image);
+        }
+    }
+
+    public synchronized int created() {
+        return created;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,34 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+public interface FrameSink {
+
+    //index is the index of the frame in the source, the first processed frame is 1
+    //the caller can reuse the image once write returns, a sink that holds frames keeps its own copy
+    void write(int index, BufferedImage frame) throws IOException;
+
+    //a frame encoded with the --frame-format codec, for sinks that can store it without decoding
+    default void writeEncoded(int index, byte[] encoded) throws IOException {
+        write(index, ImageDecoder.read(new ByteArrayInputStream(encoded), null));
+    }
+
+    //stats of the regions in frame index, called on the thread that computed the diff, in any order and from several threads
+    //the stats are overwritten by the next diff, sinks that keep them have to copy them
+    default void writeRegions(int index, RegionStats regions) throws IOException {
+    }
+
+    //called for frames that could not be produced so ordered sinks don't wait for them
+    default void skip(int index) throws IOException {
+    }
+
+    //false when frames can be written from several threads in any order
+    default boolean requiresOrder() {
+        return true;
+    }
+
+    //called once after the last frame, finishes the output video
+    void finish() throws IOException, InterruptedException;
+}
@@ -0,0 +1,23 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+
+public interface FrameSource extends Closeable {
+
+    //returns the next frame or null when there are no more frames
+    //reuse is an image the caller is done with, sources decode into it when it has the right size and type
+    //the returned image can still be a different one, so callers must not assume it is reuse
+    BufferedImage read(BufferedImage reuse) throws IOException;
+
+    //index of the frame the last read returned, counted like frameName from 0
+    //a source that leaves out a frame it could not produce keeps the numbers of the frames after it
+    int lastIndex();
+
+    //name of the frame at the given index, used for the processed frame files
+    String frameName(int index);
+
+    //number of frames the source will produce, an estimate for streamed sources
+    int frameCount();
+}
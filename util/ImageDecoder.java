@@ -0,0 +1,77 @@
+package util;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+//decodes images into an existing BufferedImage when possible so decoded frames can be reused
+public class ImageDecoder {
+
+    //input is a File or an InputStream
+    //reuse is used when it has the size and layout the decoder produces, otherwise a new image is returned
+    //qoi and raw frames (--frame-format) are recognised by their first bytes, everything else goes to ImageIO
+    public static BufferedImage read(Object input, BufferedImage reuse) throws IOException {
+        if (input instanceof File file && !file.getName().endsWith(".png")) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+                return read(in, reuse);
+            }
+        }
+        if (input instanceof InputStream in) {
+            InputStream marked = in.markSupported() ? in : new BufferedInputStream(in);
+            marked.mark(4);
+            byte[] header = new byte[4];
+            int length = marked.readNBytes(header, 0, 4);
+            marked.reset();
+            FrameCodec codec = FrameCodec.forHeader(header, length);
+            if (codec != null) {
+                return codec.read(marked, reuse);
+            }
+            input = marked;
+        }
+        if (reuse == null) {
+            return input instanceof File file ? ImageIO.read(file) : ImageIO.read((InputStream) input);
+        }
+        try (ImageInputStream stream = ImageIO.createImageInputStream(input)) {
+            if (stream == null) {
+                throw new IIOException("Can't read input file!");
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                if (!supportsType(reader, reuse.getType())
+                        || reader.getWidth(0) != reuse.getWidth() || reader.getHeight(0) != reuse.getHeight()) {
+                    return reader.read(0);
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setDestination(reuse);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static boolean supportsType(ImageReader reader, int type) throws IOException {
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        while (types.hasNext()) {
+            if (types.next().getBufferedImageType() == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,22 @@
+package util;
+
+//first step of every diff: marks which pixels changed by more than the threshold
+//bit p of the mask is pixel p, so word w holds pixels 64w .. 64w+63
+public interface MaskKernel {
+    //writes the mask words for pixels [from, to), from has to be a multiple of 64 so no word is shared with another caller
+    void computeMask(int[] prev, int[] curr, long[] mask, int from, int to, int threshold);
+
+    //the vector kernel is loaded by name so the scalar path never touches jdk.incubator.vector
+    static MaskKernel select(boolean simd) {
+        if (simd) {
+            try {
+                MaskKernel kernel = (MaskKernel) Class.forName("simd.VectorMaskKernel").getDeclaredConstructor().newInstance();
+                Logger.log("Using the vector mask kernel (" + kernel + ")", LogLevel.Info);
+                return kernel;
+            } catch (ReflectiveOperationException | LinkageError e) {
+                Logger.log("Vector API not available (run with --add-modules jdk.incubator.vector), using the scalar mask kernel", LogLevel.Warn);
+            }
+        }
+        return new ScalarMaskKernel();
+    }
+}
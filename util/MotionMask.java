@@ -0,0 +1,167 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.util.Arrays;
+
+//compact form of a diff frame: only the runs of changed pixels and which region color each run has
+//the receiver paints the runs over its own copy of the current frame, so the unchanged pixels never travel
+//layout: width, height, color count, colors, run count as ints, then per run varint gap, varint length and a color id byte
+public class MotionMask {
+    private MotionMask() {
+    }
+
+    //mask and colors as left by FrameDiff after computing out
+    public static byte[] encode(long[] mask, int[] out, int[] colors, int width, int height) {
+        int n = width * height;
+        Buffer buffer = new Buffer(64 + colors.length * 4);
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.putInt(colors.length);
+        for (int color : colors) {
+            buffer.putInt(color);
+        }
+        int runCountAt = buffer.size;
+        buffer.putInt(0);
+
+        int runs = 0;
+        int lastEnd = 0;
+        int p = 0;
+        while (p < n) {
+            //jump over words without changes, runs can go on into the following words
+            long bits = mask[p >>> 6] >>> p;
+            if (bits == 0) {
+                p = ((p >>> 6) + 1) << 6;
+                continue;
+            }
+            p += Long.numberOfTrailingZeros(bits);
+            int color = out[p];
+            int runStart = p;
+            while (p < n && (mask[p >>> 6] & (1L << p)) != 0 && out[p] == color) p++;
+            buffer.putVarint(runStart - lastEnd);
+            buffer.putVarint(p - runStart);
+            buffer.put(colorId(colors, color));
+            lastEnd = p;
+            runs++;
+        }
+        buffer.putIntAt(runCountAt, runs);
+        return Arrays.copyOf(buffer.data, buffer.size);
+    }
+
+    //current frame with the runs painted on, written into reuse when it is a TYPE_INT_ARGB image of the right size
+    public static BufferedImage composite(byte[] payload, BufferedImage current, BufferedImage reuse) throws IOException {
+        Reader reader = new Reader(payload);
+        int width = reader.getInt();
+        int height = reader.getInt();
+        if (width != current.getWidth() || height != current.getHeight()) {
+            throw new IOException("Motion mask is " + width + "x" + height + " but the frame is " + current.getWidth() + "x" + current.getHeight());
+        }
+        int[] colors = new int[reader.getInt()];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = reader.getInt();
+        }
+        int runs = reader.getInt();
+
+        BufferedImage result = reuse;
+        if (result == null || result.getType() != BufferedImage.TYPE_INT_ARGB
+                || result.getWidth() != width || result.getHeight() != height) {
+            result = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+        int[] out = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+        int[] pixels = FrameDiff.argbPixels(current, out);
+        if (pixels != out) {
+            System.arraycopy(pixels, 0, out, 0, out.length);
+        }
+
+        int p = 0;
+        for (int r = 0; r < runs; r++) {
+            p += reader.getVarint();
+            int length = reader.getVarint();
+            int color = colors[reader.get() & 0xff];
+            if (p + length > out.length) {
+                throw new IOException("Motion mask run goes past the end of the frame");
+            }
+            Arrays.fill(out, p, p + length, color);
+            p += length;
+        }
+        return result;
+    }
+
+    private static byte colorId(int[] colors, int color) {
+        for (int i = 0; i < colors.length; i++) {
+            if (colors[i] == color) return (byte) i;
+        }
+        throw new IllegalArgumentException("Changed pixel has a color that is not in the color table");
+    }
+
+    private static final class Buffer {
+        private byte[] data;
+        private int size;
+
+        Buffer(int capacity) {
+            data = new byte[capacity];
+        }
+
+        void put(byte b) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size++] = b;
+        }
+
+        void putInt(int value) {
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                put((byte) (value >>> shift));
+            }
+        }
+
+        void putIntAt(int at, int value) {
+            for (int i = 0; i < 4; i++) {
+                data[at + i] = (byte) (value >>> (24 - 8 * i));
+            }
+        }
+
+        //7 bits per byte, high bit set when more bytes follow, most gaps and lengths fit in one or two bytes
+        void putVarint(int value) {
+            while ((value & ~0x7f) != 0) {
+                put((byte) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            put((byte) value);
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] data;
+        private int position;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        byte get() throws IOException {
+            if (position >= data.length) {
+                throw new IOException("Motion mask payload is truncated");
+            }
+            return data[position++];
+        }
+
+        int getInt() throws IOException {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value = (value << 8) | (get() & 0xff);
+            }
+            return value;
+        }
+
+        int getVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = get();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class Options {
+    private final Map<String, String> values = new HashMap<>();
+
+    //parses --name and --name=value flags starting at args[from]
+    public Options(String[] args, int from) {
+        for (int i = from; i < args.length; i++) {
+            String arg = args[i].trim();
+            if (!arg.startsWith("--")) {
+                Logger.log("Ignoring unknown argument: " + arg, LogLevel.Warn);
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                values.put(arg.substring(2), "true");
+            } else {
+                values.put(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        }
+    }
+
+    //--name=false and --name=off leave the flag off like not giving it
+    public boolean has(String name) {
+        String value = values.get(name);
+        return value != null && !value.equalsIgnoreCase("false") && !value.equalsIgnoreCase("off");
+    }
+
+    public String get(String name, String defaultValue) {
+        return values.getOrDefault(name, defaultValue);
+    }
+
+    //for flags with an optional number like --tiles[=step], a bare --name or --name=true gives defaultValue
+    public int getFlagInt(String name, int defaultValue) {
+        return values.getOrDefault(name, "true").equalsIgnoreCase("true") ? defaultValue : getInt(name, defaultValue);
+    }
+
+    public int getInt(String name, int defaultValue) {
+        String value = values.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            Logger.log("Invalid number for --" + name + ": " + value + ", using " + defaultValue, LogLevel.Warn);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package util;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+//what every stage used before --frame-format, with --png-level the deflate level can be turned down
+public class PngFrameCodec implements FrameCodec {
+    private final int level;
+
+    public PngFrameCodec(int level) {
+        this.level = Math.min(9, level);
+    }
+
+    @Override
+    public String extension() {
+        return "png";
+    }
+
+    @Override
+    public List<String> ffmpegOptions() {
+        return level < 0 ? List.of() : List.of("-compression_level", String.valueOf(level));
+    }
+
+    @Override
+    public void write(BufferedImage frame, OutputStream out) throws IOException {
+        if (level < 0) {
+            ImageIO.write(frame, "PNG", out);
+            return;
+        }
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            //the writer uses deflate level (int) (9 * (1 - quality)), the half keeps float rounding from landing one level lower
+            param.setCompressionQuality(Math.max(0f, 1f - (level + 0.5f) / 9f));
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(frame, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    @Override
+    public BufferedImage read(InputStream in, BufferedImage reuse) throws IOException {
+        return ImageDecoder.read(in, reuse);
+    }
+
+    @Override
+    public String toString() {
+        return level < 0 ? "png" : "png level " + level;
+    }
+}
@@ -0,0 +1,66 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+//writes every processed frame as a file in the --frame-format (png unless set) and runs makeVideo over the folder at the end
+public class PngFrameSink implements FrameSink {
+    private final String outputPath;
+    private final int fps;
+    private final FrameCodec codec = VideoProcessing.frameCodec();
+
+    public PngFrameSink(String outputPath, int fps) {
+        this.outputPath = outputPath;
+        this.fps = fps;
+
+        //check if output directory exists and make sure its empty
+        File outputDir = new File(outputPath);
+        if (outputDir.exists()) {
+            for (File file : outputDir.listFiles()) {
+                deleteRecursively(file);
+            }
+        } else {
+            outputDir.mkdirs();
+        }
+    }
+
+    @Override
+    public void write(int index, BufferedImage frame) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(outputPath, VideoProcessing.frameName(index))), 1 << 16)) {
+            codec.write(frame, out);
+        }
+    }
+
+    @Override
+    public void writeEncoded(int index, byte[] encoded) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(new File(outputPath, VideoProcessing.frameName(index)))) {
+            fos.write(encoded);
+        }
+    }
+
+    //every frame is its own file
+    @Override
+    public boolean requiresOrder() {
+        return false;
+    }
+
+    @Override
+    public void finish() throws IOException, InterruptedException {
+        new VideoProcessing().makeVideo(outputPath, Constants.OUTPUT_VIDEO_FILE, fps);
+    }
+
+    private void deleteRecursively(File file) {
+        if (file.isDirectory()) {
+            for (File sub : file.listFiles()) {
+                deleteRecursively(sub);
+            }
+        }
+        if (!file.delete()) {
+            Logger.log("Failed to delete file: " + file.getAbsolutePath(), LogLevel.Error);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+public class PngFrameSource implements FrameSource {
+    private final File[] frames;
+    private final int[] present; //indices of the frames whose file exists, the others are left out
+    private int position = 0;
+    //optional decoder threads that read ahead of the caller, the lookahead bounds how many decoded frames wait
+    private final ExecutorService decoders;
+    private final int lookahead;
+    private final ArrayDeque<Future<BufferedImage>> decoded = new ArrayDeque<>();
+    private final ArrayDeque<BufferedImage> spares = new ArrayDeque<>(); //images handed back through reuse, decoded into later
+    private int submitted = 0;
+
+    public PngFrameSource(String imgPath) {
+        this(imgPath, 0);
+    }
+
+    //with decoderThreads > 0 the pngs are decoded in parallel but still returned in order
+    public PngFrameSource(String imgPath, int decoderThreads) {
+        this(listFrames(imgPath), decoderThreads);
+    }
+
+    //reads exactly these files in the given order, e.g. one rank's part of the frame folder
+    public PngFrameSource(File[] frames, int decoderThreads) {
+        this.frames = frames;
+        this.present = IntStream.range(0, frames.length).filter(i -> frames[i].isFile()).toArray();
+        this.decoders = decoderThreads > 0 ? Executors.newFixedThreadPool(decoderThreads) : null;
+        this.lookahead = decoderThreads * 2;
+    }
+
+    //the frame files indexed by the number in their name, frame_0001 at 0, so every path numbers a frame like its file
+    //a number missing from the folder gets a File that doesn't exist, readers skip it like a frame that failed to decode
+    public static File[] listFrames(String imgPath) {
+        String extension = "." + VideoProcessing.frameCodec().extension();
+        File[] files = new File(imgPath).listFiles(((dir, name) -> name.endsWith(extension)));
+        if (files == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File file : files) count = Math.max(count, frameNumber(file));
+        File[] frames = new File[count];
+        for (File file : files) {
+            if (frameNumber(file) > 0) frames[frameNumber(file) - 1] = file;
+        }
+        int missing = 0;
+        for (int i = 0; i < count; i++) {
+            if (frames[i] == null) {
+                frames[i] = new File(imgPath, VideoProcessing.frameName(i));
+                missing++;
+            }
+        }
+        if (missing > 0) {
+            Logger.log(missing + " of " + count + " frame files are missing from " + imgPath + ", their frames are skipped", LogLevel.Warn);
+        }
+        return frames;
+    }
+
+    private static int frameNumber(File file) {
+        String digits = file.getName().replaceAll("\\D+", "");
+        return digits.isEmpty() ? 0 : Integer.parseInt(digits);
+    }
+
+    @Override
+    public BufferedImage read(BufferedImage reuse) throws IOException {
+        if (position >= present.length) {
+            return null;
+        }
+        if (decoders == null) {
+            return ImageDecoder.read(frames[present[position++]], reuse);
+        }
+        //frames are decoded ahead, so reuse can't be the target of this frame but it can be for a later one
+        if (reuse != null) {
+            spares.add(reuse);
+        }
+        while (submitted < present.length && submitted < position + lookahead) {
+            File frame = frames[present[submitted++]];
+            BufferedImage target = spares.poll();
+            decoded.add(decoders.submit(() -> ImageDecoder.read(frame, target)));
+        }
+        position++;
+        try {
+            return decoded.poll().get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to decode " + frames[lastIndex()].getName(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding " + frames[lastIndex()].getName(), e);
+        }
+    }
+
+    @Override
+    public int lastIndex() {
+        return present[position - 1];
+    }
+
+    @Override
+    public String frameName(int index) {
+        return frames[index].getName();
+    }
+
+    @Override
+    public int frameCount() {
+        return frames.length;
+    }
+
+    @Override
+    public void close() {
+        if (decoders != null) {
+            decoders.shutdownNow();
+        }
+    }
+}
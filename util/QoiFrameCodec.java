@@ -0,0 +1,202 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+//"Quite OK Image" format (qoiformat.org): lossless like png but a single pass with no entropy coding, so it encodes and
+//decodes several times faster for somewhat bigger files. Pixels are coded as runs, an index into the last 64 colors
+//seen, or small differences to the previous pixel. ffmpeg reads and writes it since 5.1
+public class QoiFrameCodec implements FrameCodec {
+    private static final int HEADER_SIZE = 14;
+    private static final byte[] END = {0, 0, 0, 0, 0, 0, 0, 1};
+    private static final int OP_INDEX = 0x00;
+    private static final int OP_DIFF = 0x40;
+    private static final int OP_LUMA = 0x80;
+    private static final int OP_RUN = 0xc0;
+    private static final int OP_RGB = 0xfe;
+    private static final int OP_RGBA = 0xff;
+    private static final int MASK_2 = 0xc0;
+
+    //argb pixels of frames that aren't TYPE_INT_ARGB and the encoded bytes, both reused by the writing thread
+    private static final ThreadLocal<int[]> PIXELS = new ThreadLocal<>();
+    private static final ThreadLocal<byte[]> BYTES = ThreadLocal.withInitial(() -> new byte[0]);
+
+    @Override
+    public String extension() {
+        return "qoi";
+    }
+
+    @Override
+    public List<String> ffmpegOptions() {
+        return List.of();
+    }
+
+    @Override
+    public void write(BufferedImage frame, OutputStream out) throws IOException {
+        int width = frame.getWidth(), height = frame.getHeight();
+        int[] pixels = FrameDiff.argbPixels(frame, PIXELS.get());
+        if (!(frame.getRaster().getDataBuffer() instanceof DataBufferInt buffer && buffer.getData() == pixels)) {
+            PIXELS.set(pixels);
+        }
+        boolean alpha = frame.getColorModel().hasAlpha();
+        int n = width * height;
+        //worst case every pixel is an OP_RGBA
+        int capacity = HEADER_SIZE + n * 5 + END.length;
+        byte[] bytes = BYTES.get();
+        if (bytes.length < capacity) {
+            bytes = new byte[capacity];
+            BYTES.set(bytes);
+        }
+
+        int pos = writeHeader(bytes, width, height, alpha ? 4 : 3);
+        int[] index = new int[64];
+        int prev = 0xff000000;
+        int run = 0;
+        for (int p = 0; p < n; p++) {
+            //frames without alpha are coded as opaque whatever the unused bits hold
+            int px = alpha ? pixels[p] : pixels[p] | 0xff000000;
+            if (px == prev) {
+                run++;
+                if (run == 62) {
+                    bytes[pos++] = (byte) (OP_RUN | (run - 1));
+                    run = 0;
+                }
+                continue;
+            }
+            if (run > 0) {
+                bytes[pos++] = (byte) (OP_RUN | (run - 1));
+                run = 0;
+            }
+            int slot = hash(px);
+            if (index[slot] == px) {
+                bytes[pos++] = (byte) (OP_INDEX | slot);
+            } else {
+                index[slot] = px;
+                if ((px >>> 24) == (prev >>> 24)) {
+                    //channel differences wrap around like unsigned bytes
+                    int dr = (byte) ((px >> 16) - (prev >> 16));
+                    int dg = (byte) ((px >> 8) - (prev >> 8));
+                    int db = (byte) (px - prev);
+                    int drg = dr - dg, dbg = db - dg;
+                    if (dr >= -2 && dr <= 1 && dg >= -2 && dg <= 1 && db >= -2 && db <= 1) {
+                        bytes[pos++] = (byte) (OP_DIFF | (dr + 2) << 4 | (dg + 2) << 2 | (db + 2));
+                    } else if (drg >= -8 && drg <= 7 && dg >= -32 && dg <= 31 && dbg >= -8 && dbg <= 7) {
+                        bytes[pos++] = (byte) (OP_LUMA | (dg + 32));
+                        bytes[pos++] = (byte) ((drg + 8) << 4 | (dbg + 8));
+                    } else {
+                        bytes[pos++] = (byte) OP_RGB;
+                        bytes[pos++] = (byte) (px >> 16);
+                        bytes[pos++] = (byte) (px >> 8);
+                        bytes[pos++] = (byte) px;
+                    }
+                } else {
+                    bytes[pos++] = (byte) OP_RGBA;
+                    bytes[pos++] = (byte) (px >> 16);
+                    bytes[pos++] = (byte) (px >> 8);
+                    bytes[pos++] = (byte) px;
+                    bytes[pos++] = (byte) (px >>> 24);
+                }
+            }
+            prev = px;
+        }
+        if (run > 0) {
+            bytes[pos++] = (byte) (OP_RUN | (run - 1));
+        }
+        System.arraycopy(END, 0, bytes, pos, END.length);
+        out.write(bytes, 0, pos + END.length);
+    }
+
+    //always decodes into TYPE_INT_ARGB, the layout FrameDiff works on without converting
+    @Override
+    public BufferedImage read(InputStream in, BufferedImage reuse) throws IOException {
+        byte[] bytes = in.readAllBytes();
+        if (bytes.length < HEADER_SIZE + END.length || bytes[0] != 'q' || bytes[1] != 'o' || bytes[2] != 'i' || bytes[3] != 'f') {
+            throw new IOException("Not a qoi image");
+        }
+        int width = readInt(bytes, 4), height = readInt(bytes, 8);
+        BufferedImage image = reuse;
+        if (image == null || image.getType() != BufferedImage.TYPE_INT_ARGB || image.getWidth() != width || image.getHeight() != height) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+        int n = width * height;
+        int end = bytes.length - END.length;
+        int[] index = new int[64];
+        int px = 0xff000000;
+        int pos = HEADER_SIZE;
+        for (int p = 0; p < n; p++) {
+            if (pos >= end) throw new IOException("Qoi image ends after " + p + " of " + n + " pixels");
+            int b1 = bytes[pos++] & 0xff;
+            if (b1 == OP_RGB) {
+                px = (px & 0xff000000) | (bytes[pos] & 0xff) << 16 | (bytes[pos + 1] & 0xff) << 8 | (bytes[pos + 2] & 0xff);
+                pos += 3;
+            } else if (b1 == OP_RGBA) {
+                px = (bytes[pos + 3] & 0xff) << 24 | (bytes[pos] & 0xff) << 16 | (bytes[pos + 1] & 0xff) << 8 | (bytes[pos + 2] & 0xff);
+                pos += 4;
+            } else if ((b1 & MASK_2) == OP_INDEX) {
+                px = index[b1];
+            } else if ((b1 & MASK_2) == OP_DIFF) {
+                px = withChannels(px, ((b1 >> 4) & 3) - 2, ((b1 >> 2) & 3) - 2, (b1 & 3) - 2);
+            } else if ((b1 & MASK_2) == OP_LUMA) {
+                int b2 = bytes[pos++] & 0xff;
+                int dg = (b1 & 0x3f) - 32;
+                px = withChannels(px, dg - 8 + ((b2 >> 4) & 0x0f), dg, dg - 8 + (b2 & 0x0f));
+            } else {
+                //runs repeat the previous pixel and leave the index alone, like the encoder
+                int run = Math.min((b1 & 0x3f) + 1, n - p);
+                Arrays.fill(pixels, p, p + run, px);
+                p += run - 1;
+                continue;
+            }
+            index[hash(px)] = px;
+            pixels[p] = px;
+        }
+        return image;
+    }
+
+    private static int writeHeader(byte[] bytes, int width, int height, int channels) {
+        bytes[0] = 'q';
+        bytes[1] = 'o';
+        bytes[2] = 'i';
+        bytes[3] = 'f';
+        writeInt(bytes, 4, width);
+        writeInt(bytes, 8, height);
+        bytes[12] = (byte) channels;
+        bytes[13] = 0; //sRGB with linear alpha
+        return HEADER_SIZE;
+    }
+
+    //adds the differences to each color channel, wrapping around within the channel, alpha stays
+    private static int withChannels(int px, int dr, int dg, int db) {
+        int r = ((px >> 16) + dr) & 0xff;
+        int g = ((px >> 8) + dg) & 0xff;
+        int b = (px + db) & 0xff;
+        return (px & 0xff000000) | r << 16 | g << 8 | b;
+    }
+
+    private static int hash(int px) {
+        return (((px >> 16) & 0xff) * 3 + ((px >> 8) & 0xff) * 5 + (px & 0xff) * 7 + (px >>> 24) * 11) & 63;
+    }
+
+    private static void writeInt(byte[] bytes, int pos, int value) {
+        bytes[pos] = (byte) (value >>> 24);
+        bytes[pos + 1] = (byte) (value >>> 16);
+        bytes[pos + 2] = (byte) (value >>> 8);
+        bytes[pos + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] bytes, int pos) {
+        return (bytes[pos] & 0xff) << 24 | (bytes[pos + 1] & 0xff) << 16 | (bytes[pos + 2] & 0xff) << 8 | (bytes[pos + 3] & 0xff);
+    }
+
+    @Override
+    public String toString() {
+        return "qoi";
+    }
+}
@@ -0,0 +1,125 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+//uncompressed RGB or RGBA bytes behind a PAM header (netpbm P7), which ffmpeg reads and writes as .pam
+//nothing to compute in either direction, the cost is the size: 6 MB per 1080p frame, 8 with alpha
+public class RawFrameCodec implements FrameCodec {
+    //argb pixels of frames that aren't TYPE_INT_ARGB and the bytes of a frame, both reused by the thread
+    private static final ThreadLocal<int[]> PIXELS = new ThreadLocal<>();
+    private static final ThreadLocal<byte[]> BYTES = ThreadLocal.withInitial(() -> new byte[0]);
+
+    @Override
+    public String extension() {
+        return "pam";
+    }
+
+    @Override
+    public List<String> ffmpegOptions() {
+        return List.of();
+    }
+
+    @Override
+    public void write(BufferedImage frame, OutputStream out) throws IOException {
+        int width = frame.getWidth(), height = frame.getHeight();
+        int[] pixels = FrameDiff.argbPixels(frame, PIXELS.get());
+        if (!(frame.getRaster().getDataBuffer() instanceof DataBufferInt buffer && buffer.getData() == pixels)) {
+            PIXELS.set(pixels);
+        }
+        //the diffs keep their alpha so the translucent track colors survive the trip between ranks
+        int depth = frame.getColorModel().hasAlpha() ? 4 : 3;
+        out.write(("P7\nWIDTH " + width + "\nHEIGHT " + height + "\nDEPTH " + depth + "\nMAXVAL 255\nTUPLTYPE "
+                + (depth == 4 ? "RGB_ALPHA" : "RGB") + "\nENDHDR\n").getBytes(StandardCharsets.US_ASCII));
+        int n = width * height;
+        byte[] bytes = bytes(n * depth);
+        if (depth == 4) {
+            for (int p = 0, b = 0; p < n; p++, b += 4) {
+                int px = pixels[p];
+                bytes[b] = (byte) (px >> 16);
+                bytes[b + 1] = (byte) (px >> 8);
+                bytes[b + 2] = (byte) px;
+                bytes[b + 3] = (byte) (px >>> 24);
+            }
+        } else {
+            for (int p = 0, b = 0; p < n; p++, b += 3) {
+                int px = pixels[p];
+                bytes[b] = (byte) (px >> 16);
+                bytes[b + 1] = (byte) (px >> 8);
+                bytes[b + 2] = (byte) px;
+            }
+        }
+        out.write(bytes, 0, n * depth);
+    }
+
+    //always decodes into TYPE_INT_ARGB, the layout FrameDiff works on without converting
+    @Override
+    public BufferedImage read(InputStream in, BufferedImage reuse) throws IOException {
+        int width = 0, height = 0, depth = 0, maxval = 0;
+        String line = readLine(in);
+        if (!line.equals("P7")) throw new IOException("Not a pam image");
+        while (!(line = readLine(in)).equals("ENDHDR")) {
+            String[] parts = line.trim().split("\\s+", 2);
+            if (parts.length < 2) continue;
+            switch (parts[0]) {
+                case "WIDTH" -> width = Integer.parseInt(parts[1]);
+                case "HEIGHT" -> height = Integer.parseInt(parts[1]);
+                case "DEPTH" -> depth = Integer.parseInt(parts[1]);
+                case "MAXVAL" -> maxval = Integer.parseInt(parts[1]);
+                default -> { } //TUPLTYPE follows from the depth, comments start with #
+            }
+        }
+        if (width <= 0 || height <= 0 || (depth != 3 && depth != 4) || maxval != 255) {
+            throw new IOException("Unsupported pam image: " + width + "x" + height + ", depth " + depth + ", maxval " + maxval);
+        }
+        BufferedImage image = reuse;
+        if (image == null || image.getType() != BufferedImage.TYPE_INT_ARGB || image.getWidth() != width || image.getHeight() != height) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int n = width * height;
+        byte[] bytes = bytes(n * depth);
+        if (in.readNBytes(bytes, 0, n * depth) != n * depth) throw new IOException("Pam image ends early");
+        if (depth == 4) {
+            for (int p = 0, b = 0; p < n; p++, b += 4) {
+                pixels[p] = (bytes[b + 3] & 0xff) << 24 | (bytes[b] & 0xff) << 16 | (bytes[b + 1] & 0xff) << 8 | (bytes[b + 2] & 0xff);
+            }
+        } else {
+            for (int p = 0, b = 0; p < n; p++, b += 3) {
+                pixels[p] = 0xff000000 | (bytes[b] & 0xff) << 16 | (bytes[b + 1] & 0xff) << 8 | (bytes[b + 2] & 0xff);
+            }
+        }
+        return image;
+    }
+
+    private static byte[] bytes(int size) {
+        byte[] bytes = BYTES.get();
+        if (bytes.length < size) {
+            bytes = new byte[size];
+            BYTES.set(bytes);
+        }
+        return bytes;
+    }
+
+    //header lines are short ascii, read byte by byte so nothing after ENDHDR is consumed
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) throw new IOException("Pam header ends early");
+            line.write(c);
+        }
+        return line.toString(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public String toString() {
+        return "raw";
+    }
+}
@@ -0,0 +1,117 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+//reads decoded frames straight from ffmpeg's stdout instead of going through png files
+public class RawVideoFrameSource implements FrameSource {
+    private final Process process;
+    private final InputStream in;
+    private final int width;
+    private final int height;
+    private final int frameCount;
+    private final byte[] frameBytes;
+    private final ByteBuffer frameBuffer;
+    private int framesRead = 0;
+
+    public RawVideoFrameSource(String inputVideoPath, int fps, VideoInfo info) throws IOException {
+        this(inputVideoPath, fps, info, 0, info.frameCount(fps));
+    }
+
+    //decodes frameCount frames starting at output frame firstFrame, picked like the --segments extraction picks them,
+    //so the ranks' streams together give the same frames as one stream over the whole video
+    public RawVideoFrameSource(String inputVideoPath, int fps, VideoInfo info, int firstFrame, int frameCount) throws IOException {
+        this.width = info.width;
+        this.height = info.height;
+        this.frameCount = frameCount;
+        this.frameBytes = new byte[width * height * 4];
+        //bgra bytes read as little endian ints are exactly the AARRGGBB layout of TYPE_INT_ARGB
+        this.frameBuffer = ByteBuffer.wrap(frameBytes).order(ByteOrder.LITTLE_ENDIAN);
+
+        List<String> command = new ArrayList<>(List.of("ffmpeg", "-v", "error"));
+        command.addAll(SegmentedFrameExtractor.inputFrom(inputVideoPath, firstFrame, fps));
+        if (frameCount >= 0) {
+            //cap at the count we told the processors about
+            command.addAll(List.of("-frames:v", String.valueOf(frameCount)));
+        }
+        command.addAll(List.of("-f", "rawvideo", "-pix_fmt", "bgra", "-"));
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        this.process = processBuilder.start();
+        this.in = process.getInputStream();
+    }
+
+    @Override
+    public BufferedImage read(BufferedImage reuse) throws IOException {
+        try {
+            readFully(frameBytes);
+        } catch (EOFException e) {
+            return null;
+        }
+        BufferedImage frame = reuse;
+        if (frame == null || frame.getType() != BufferedImage.TYPE_INT_ARGB
+                || frame.getWidth() != width || frame.getHeight() != height) {
+            frame = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+        int[] pixels = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+        frameBuffer.clear();
+        frameBuffer.asIntBuffer().get(pixels);
+        framesRead++;
+        return frame;
+    }
+
+    @Override
+    public int lastIndex() {
+        return framesRead - 1;
+    }
+
+    private void readFully(byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int read = in.read(buffer, offset, buffer.length - offset);
+            if (read < 0) {
+                if (offset > 0) {
+                    Logger.log("ffmpeg stream ended in the middle of a frame", LogLevel.Warn);
+                }
+                throw new EOFException();
+            }
+            offset += read;
+        }
+    }
+
+    @Override
+    public String frameName(int index) {
+        return VideoProcessing.frameName(index);
+    }
+
+    @Override
+    public int frameCount() {
+        return frameCount;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+        try {
+            process.waitFor();
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
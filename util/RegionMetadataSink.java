@@ -0,0 +1,145 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+//writes the region stats of every frame to a binary file and passes the frames on to delegate
+//with no delegate (--no-render) only the stats are kept, nothing is encoded
+//file: magic, version, then per frame its index and RegionStats.writeTo, in the order the frames finished
+public class RegionMetadataSink implements FrameSink {
+    public static final int MAGIC = 0x564f5452; //VOTR
+    public static final int VERSION = 1;
+
+    private final FrameSink delegate;
+    private final String path;
+    private final String export;
+    private final DataOutputStream out;
+    private int frames;
+
+    //export is csv, json or null, the export goes next to path with that extension
+    public RegionMetadataSink(FrameSink delegate, String path, String export) throws IOException {
+        this.delegate = delegate;
+        this.path = path;
+        this.export = export;
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    @Override
+    public synchronized void writeRegions(int index, RegionStats regions) throws IOException {
+        out.writeInt(index);
+        regions.writeTo(out);
+        frames++;
+    }
+
+    @Override
+    public void write(int index, BufferedImage frame) throws IOException {
+        if (delegate != null) delegate.write(index, frame);
+    }
+
+    @Override
+    public void writeEncoded(int index, byte[] encoded) throws IOException {
+        if (delegate != null) delegate.writeEncoded(index, encoded);
+    }
+
+    @Override
+    public void skip(int index) throws IOException {
+        if (delegate != null) delegate.skip(index);
+    }
+
+    @Override
+    public boolean requiresOrder() {
+        return delegate != null && delegate.requiresOrder();
+    }
+
+    @Override
+    public void finish() throws IOException, InterruptedException {
+        synchronized (this) {
+            out.close();
+        }
+        Logger.log("Region stats of " + frames + " frames written to " + path, LogLevel.Info);
+        if (export != null) {
+            String exportPath = withExtension(path, export);
+            exportTo(read(path), exportPath, export);
+            Logger.log("Region stats exported to " + exportPath, LogLevel.Info);
+        }
+        if (delegate != null) delegate.finish();
+    }
+
+    //frame index -> stats, sorted by index
+    public static Map<Integer, RegionStats> read(String path) throws IOException {
+        Map<Integer, RegionStats> frames = new TreeMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(path + " is not a region stats file");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported region stats version " + version + " in " + path);
+            }
+            while (true) {
+                int index;
+                try {
+                    index = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                frames.put(index, RegionStats.readFrom(in));
+            }
+        }
+        return frames;
+    }
+
+    public static void exportTo(Map<Integer, RegionStats> frames, String exportPath, String format) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new BufferedOutputStream(new FileOutputStream(exportPath)))) {
+            switch (format) {
+                case "csv" -> {
+                    writer.println("frame,region,min_x,min_y,max_x,max_y,area,centroid_x,centroid_y");
+                    for (Map.Entry<Integer, RegionStats> frame : frames.entrySet()) {
+                        RegionStats r = frame.getValue();
+                        for (int i = 0; i < r.count(); i++) {
+                            writer.println(String.format(Locale.ROOT, "%d,%d,%d,%d,%d,%d,%d,%.2f,%.2f", frame.getKey(), i,
+                                    r.minX(i), r.minY(i), r.maxX(i), r.maxY(i), r.area(i), r.centroidX(i), r.centroidY(i)));
+                        }
+                    }
+                }
+                case "json" -> {
+                    writer.println("[");
+                    int written = 0;
+                    for (Map.Entry<Integer, RegionStats> frame : frames.entrySet()) {
+                        RegionStats r = frame.getValue();
+                        StringBuilder line = new StringBuilder("{\"frame\":").append(frame.getKey()).append(",\"regions\":[");
+                        for (int i = 0; i < r.count(); i++) {
+                            if (i > 0) line.append(',');
+                            line.append(String.format(Locale.ROOT, "{\"box\":[%d,%d,%d,%d],\"area\":%d,\"centroid\":[%.2f,%.2f]}",
+                                    r.minX(i), r.minY(i), r.maxX(i), r.maxY(i), r.area(i), r.centroidX(i), r.centroidY(i)));
+                        }
+                        line.append("]}");
+                        if (++written < frames.size()) line.append(',');
+                        writer.println(line);
+                    }
+                    writer.println("]");
+                }
+                default -> throw new IOException("Unknown region export format: " + format);
+            }
+        }
+    }
+
+    private static String withExtension(String path, String extension) {
+        int dot = path.lastIndexOf('.');
+        int slash = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'));
+        return (dot > slash ? path.substring(0, dot) : path) + "." + extension;
+    }
+}
@@ -0,0 +1,173 @@
+package util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+//bounding box, pixel count and centroid of every region of one frame, one array per column
+//FrameDiff fills it run by run while it floods the regions, so it costs a few adds per run of changed pixels
+public class RegionStats {
+    private int count;
+    private int[] minX = new int[16];
+    private int[] minY = new int[16];
+    private int[] maxX = new int[16];
+    private int[] maxY = new int[16];
+    //x of the region's first pixel in row major order, (topX, minY) is always inside the region
+    private int[] topX = new int[16];
+    private int[] area = new int[16];
+    //sums of the coordinates, divided by area for the centroid
+    private long[] sumX = new long[16];
+    private long[] sumY = new long[16];
+
+    //count empty regions, numbered 0 until count
+    public void reset(int count) {
+        this.count = 0;
+        ensure(count);
+        for (int i = 0; i < count; i++) add();
+    }
+
+    //a new empty region, returns its number
+    public int add() {
+        ensure(count + 1);
+        minX[count] = Integer.MAX_VALUE;
+        minY[count] = Integer.MAX_VALUE;
+        maxX[count] = -1;
+        maxY[count] = -1;
+        topX[count] = Integer.MAX_VALUE;
+        area[count] = 0;
+        sumX[count] = 0;
+        sumY[count] = 0;
+        return count++;
+    }
+
+    //pixels left..right of row y belong to region
+    public void addRun(int region, int y, int left, int right) {
+        int pixels = right - left + 1;
+        if (left < minX[region]) minX[region] = left;
+        if (right > maxX[region]) maxX[region] = right;
+        if (y < minY[region]) {
+            minY[region] = y;
+            topX[region] = left;
+        } else if (y == minY[region] && left < topX[region]) {
+            topX[region] = left;
+        }
+        if (y > maxY[region]) maxY[region] = y;
+        area[region] += pixels;
+        sumX[region] += (long) (left + right) * pixels / 2;
+        sumY[region] += (long) y * pixels;
+    }
+
+    //adds other's regions to the ones with the same number, e.g. the parts of a region in different stripes
+    public void merge(RegionStats other) {
+        for (int i = 0; i < other.count; i++) {
+            if (other.area[i] == 0) continue;
+            minX[i] = Math.min(minX[i], other.minX[i]);
+            if (other.minY[i] < minY[i]) {
+                minY[i] = other.minY[i];
+                topX[i] = other.topX[i];
+            } else if (other.minY[i] == minY[i]) {
+                topX[i] = Math.min(topX[i], other.topX[i]);
+            }
+            maxX[i] = Math.max(maxX[i], other.maxX[i]);
+            maxY[i] = Math.max(maxY[i], other.maxY[i]);
+            area[i] += other.area[i];
+            sumX[i] += other.sumX[i];
+            sumY[i] += other.sumY[i];
+        }
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public int minX(int region) {
+        return minX[region];
+    }
+
+    public int minY(int region) {
+        return minY[region];
+    }
+
+    public int maxX(int region) {
+        return maxX[region];
+    }
+
+    public int maxY(int region) {
+        return maxY[region];
+    }
+
+    public int topX(int region) {
+        return topX[region];
+    }
+
+    public int area(int region) {
+        return area[region];
+    }
+
+    public double centroidX(int region) {
+        return area[region] == 0 ? 0 : (double) sumX[region] / area[region];
+    }
+
+    public double centroidY(int region) {
+        return area[region] == 0 ? 0 : (double) sumY[region] / area[region];
+    }
+
+    public RegionStats copy() {
+        RegionStats copy = new RegionStats();
+        copy.ensure(count);
+        copy.count = count;
+        System.arraycopy(minX, 0, copy.minX, 0, count);
+        System.arraycopy(minY, 0, copy.minY, 0, count);
+        System.arraycopy(maxX, 0, copy.maxX, 0, count);
+        System.arraycopy(maxY, 0, copy.maxY, 0, count);
+        System.arraycopy(topX, 0, copy.topX, 0, count);
+        System.arraycopy(area, 0, copy.area, 0, count);
+        System.arraycopy(sumX, 0, copy.sumX, 0, count);
+        System.arraycopy(sumY, 0, copy.sumY, 0, count);
+        return copy;
+    }
+
+    //the count, then each column on its own so similar values sit together and compress well
+    //coordinates are 16 bit, the centroid is kept as its coordinate sums so nothing is lost on the way
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) out.writeShort(minX[i]);
+        for (int i = 0; i < count; i++) out.writeShort(minY[i]);
+        for (int i = 0; i < count; i++) out.writeShort(maxX[i]);
+        for (int i = 0; i < count; i++) out.writeShort(maxY[i]);
+        for (int i = 0; i < count; i++) out.writeShort(topX[i]);
+        for (int i = 0; i < count; i++) out.writeInt(area[i]);
+        for (int i = 0; i < count; i++) out.writeLong(sumX[i]);
+        for (int i = 0; i < count; i++) out.writeLong(sumY[i]);
+    }
+
+    public static RegionStats readFrom(DataInput in) throws IOException {
+        RegionStats stats = new RegionStats();
+        int count = in.readInt();
+        stats.ensure(count);
+        stats.count = count;
+        for (int i = 0; i < count; i++) stats.minX[i] = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) stats.minY[i] = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) stats.maxX[i] = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) stats.maxY[i] = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) stats.topX[i] = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) stats.area[i] = in.readInt();
+        for (int i = 0; i < count; i++) stats.sumX[i] = in.readLong();
+        for (int i = 0; i < count; i++) stats.sumY[i] = in.readLong();
+        return stats;
+    }
+
+    private void ensure(int capacity) {
+        if (minX.length >= capacity) return;
+        int size = Math.max(capacity, minX.length * 2);
+        minX = Arrays.copyOf(minX, size);
+        minY = Arrays.copyOf(minY, size);
+        maxX = Arrays.copyOf(maxX, size);
+        maxY = Arrays.copyOf(maxY, size);
+        topX = Arrays.copyOf(topX, size);
+        area = Arrays.copyOf(area, size);
+        sumX = Arrays.copyOf(sumX, size);
+        sumY = Arrays.copyOf(sumY, size);
+    }
+}
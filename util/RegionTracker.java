@@ -0,0 +1,166 @@
+package util;
+
+import java.util.Arrays;
+
+//gives the regions of consecutive frames persistent track ids
+//a region continues the track of the previous frame's region whose box overlaps it most, or failing that the one
+//with the nearest centroid within maxDistance, every previous region is continued at most once
+//candidates come from a uniform grid hashed into buckets, so a frame costs about its region count, not prev * curr
+//frames have to be passed in order, one tracker follows one video
+public class RegionTracker {
+    private static final int CELL_SIZE = 64;
+
+    private final int maxDistance;
+    private final int minArea;
+    private RegionStats prev = new RegionStats();
+    private int[] prevTracks = new int[0];
+    private int nextTrack = 1;
+
+    //grid of the previous frame: bucketStart[b]..bucketStart[b + 1] are the entries of bucket b in bucketItems
+    private int[] bucketStart = new int[1];
+    private int[] bucketItems = new int[0];
+    private int bucketMask;
+    //last current region that looked at a previous region, so a region in several cells is scored once
+    private int[] seenBy = new int[0];
+    //candidate pairs, the score in the high half and the pair number in the low half so sorting ranks them
+    private long[] candidates = new long[64];
+    private int[] candidateCurr = new int[64];
+    private int[] candidatePrev = new int[64];
+
+    public RegionTracker(int maxDistance, int minArea) {
+        this.maxDistance = maxDistance;
+        this.minArea = minArea;
+        index(prev);
+    }
+
+    //track ids of regions, 0 for regions smaller than minArea, in the order of regions
+    //the stats are copied, the caller can reuse them
+    //a frame without any region, like a pair --skip-static found unchanged, leaves the tracks to the next frame
+    public int[] track(RegionStats regions) {
+        int n = regions.count();
+        if (n == 0) return new int[0];
+        int[] tracks = new int[n];
+        int pairs = 0;
+        int[] seenBy = this.seenBy;
+        for (int c = 0; c < n; c++) {
+            if (regions.area(c) < minArea) continue;
+            //the box grown by maxDistance reaches every previous box that overlaps or has a centroid close enough
+            int fromX = cell(regions.minX(c) - maxDistance), toX = cell(regions.maxX(c) + maxDistance);
+            int fromY = cell(regions.minY(c) - maxDistance), toY = cell(regions.maxY(c) + maxDistance);
+            for (int cy = fromY; cy <= toY; cy++) {
+                for (int cx = fromX; cx <= toX; cx++) {
+                    int bucket = bucket(cx, cy);
+                    for (int k = bucketStart[bucket]; k < bucketStart[bucket + 1]; k++) {
+                        int p = bucketItems[k];
+                        if (seenBy[p] == c + 1) continue;
+                        seenBy[p] = c + 1;
+                        float score = score(regions, c, prev, p);
+                        if (score <= 0) continue;
+                        if (pairs == candidates.length) {
+                            candidates = Arrays.copyOf(candidates, pairs * 2);
+                            candidateCurr = Arrays.copyOf(candidateCurr, pairs * 2);
+                            candidatePrev = Arrays.copyOf(candidatePrev, pairs * 2);
+                        }
+                        candidates[pairs] = ((long) Float.floatToIntBits(score) << 32) | pairs;
+                        candidateCurr[pairs] = c;
+                        candidatePrev[pairs] = p;
+                        pairs++;
+                    }
+                }
+            }
+        }
+
+        //best pairs first, positive floats sort like their bits
+        Arrays.sort(candidates, 0, pairs);
+        boolean[] continued = new boolean[prev.count()];
+        for (int i = pairs - 1; i >= 0; i--) {
+            int pair = (int) candidates[i];
+            int c = candidateCurr[pair], p = candidatePrev[pair];
+            if (tracks[c] != 0 || continued[p]) continue;
+            tracks[c] = prevTracks[p];
+            continued[p] = true;
+        }
+        for (int c = 0; c < n; c++) {
+            if (tracks[c] == 0 && regions.area(c) >= minArea) tracks[c] = nextTrack++;
+        }
+
+        prev = regions.copy();
+        prevTracks = tracks.clone();
+        index(prev);
+        return tracks;
+    }
+
+    //tracks started so far
+    public int trackCount() {
+        return nextTrack - 1;
+    }
+
+    //translucent like the per frame colors, but the same for a track in every frame
+    public static int trackColor(int track) {
+        int hash = track * 0x9E3779B1;
+        hash ^= hash >>> 15;
+        hash *= 0x85EBCA77;
+        hash ^= hash >>> 13;
+        int alpha = ((hash >>> 24) & 0xff) % 50;
+        return (alpha << 24) | (hash & 0xffffff);
+    }
+
+    //1 + overlap of the boxes over their union when they overlap, otherwise how close the centroids are, 0 for no match
+    private float score(RegionStats a, int i, RegionStats b, int j) {
+        int overlapX = Math.min(a.maxX(i), b.maxX(j)) - Math.max(a.minX(i), b.minX(j)) + 1;
+        int overlapY = Math.min(a.maxY(i), b.maxY(j)) - Math.max(a.minY(i), b.minY(j)) + 1;
+        if (overlapX > 0 && overlapY > 0) {
+            long overlap = (long) overlapX * overlapY;
+            long union = boxArea(a, i) + boxArea(b, j) - overlap;
+            return 1 + (float) overlap / union;
+        }
+        double dx = a.centroidX(i) - b.centroidX(j);
+        double dy = a.centroidY(i) - b.centroidY(j);
+        double distance = Math.sqrt(dx * dx + dy * dy);
+        return distance >= maxDistance ? 0 : (float) (1 - distance / maxDistance);
+    }
+
+    private static long boxArea(RegionStats r, int i) {
+        return (long) (r.maxX(i) - r.minX(i) + 1) * (r.maxY(i) - r.minY(i) + 1);
+    }
+
+    //counting sort of the tracked previous regions into the buckets of every cell their box touches
+    private void index(RegionStats regions) {
+        int n = regions.count();
+        int buckets = Integer.highestOneBit(Math.max(1, 2 * n - 1)) << 1;
+        bucketMask = buckets - 1;
+        if (bucketStart.length < buckets + 1) bucketStart = new int[buckets + 1];
+        Arrays.fill(bucketStart, 0, buckets + 1, 0);
+        int entries = 0;
+        for (int r = 0; r < n; r++) {
+            if (prevTracks[r] == 0) continue;
+            for (int cy = cell(regions.minY(r)); cy <= cell(regions.maxY(r)); cy++) {
+                for (int cx = cell(regions.minX(r)); cx <= cell(regions.maxX(r)); cx++) {
+                    bucketStart[bucket(cx, cy) + 1]++;
+                    entries++;
+                }
+            }
+        }
+        for (int b = 0; b < buckets; b++) bucketStart[b + 1] += bucketStart[b];
+        if (bucketItems.length < entries) bucketItems = new int[entries];
+        int[] fill = Arrays.copyOf(bucketStart, buckets);
+        for (int r = 0; r < n; r++) {
+            if (prevTracks[r] == 0) continue;
+            for (int cy = cell(regions.minY(r)); cy <= cell(regions.maxY(r)); cy++) {
+                for (int cx = cell(regions.minX(r)); cx <= cell(regions.maxX(r)); cx++) {
+                    bucketItems[fill[bucket(cx, cy)]++] = r;
+                }
+            }
+        }
+        if (seenBy.length < n) seenBy = new int[n];
+        Arrays.fill(seenBy, 0, n, 0);
+    }
+
+    private static int cell(int coordinate) {
+        return Math.floorDiv(coordinate, CELL_SIZE);
+    }
+
+    private int bucket(int cx, int cy) {
+        return ((cx * 0x8DA6B343) ^ (cy * 0xD8163841)) & bucketMask;
+    }
+}
@@ -0,0 +1,101 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+//lets several threads write frames in any order and forwards them to an ordered sink
+//writers block while their frame is more than window frames ahead so memory stays bounded
+//encoded frames are kept encoded and only handed on, so the delegate decodes them when their turn comes
+//a frame image that has to wait is copied, its writer reuses the image once write returns like with any other sink
+public class ReorderingFrameSink implements FrameSink {
+    private static final Object SKIPPED = new Object();
+
+    private final FrameSink delegate;
+    private final int window;
+    private final Map<Integer, Object> pending = new HashMap<>(); //BufferedImage, encoded byte[] or SKIPPED
+    private int next;
+
+    public ReorderingFrameSink(FrameSink delegate, int firstIndex, int window) {
+        this.delegate = delegate;
+        this.next = firstIndex;
+        this.window = window;
+    }
+
+    @Override
+    public synchronized void write(int index, BufferedImage frame) throws IOException {
+        put(index, index == next ? frame : new BufferedImage(frame.getColorModel(), frame.copyData(null), frame.isAlphaPremultiplied(), null));
+    }
+
+    @Override
+    public synchronized void writeEncoded(int index, byte[] encoded) throws IOException {
+        put(index, encoded);
+    }
+
+    @Override
+    public synchronized void skip(int index) throws IOException {
+        put(index, SKIPPED);
+    }
+
+    //a write of index returns without waiting
+    public synchronized boolean accepts(int index) {
+        return index < next + window;
+    }
+
+    //the frame the delegate gets next
+    public synchronized int next() {
+        return next;
+    }
+
+    //waits up to millis for frame index to be handed on, for a thread that has nothing else to do
+    public synchronized void awaitPast(int index, long millis) throws InterruptedException {
+        if (next <= index) wait(millis);
+    }
+
+    //stats don't need to be in order, so they skip the window
+    @Override
+    public void writeRegions(int index, RegionStats regions) throws IOException {
+        delegate.writeRegions(index, regions);
+    }
+
+    private void put(int index, Object frame) throws IOException {
+        //the writer of frame next never waits, so the window always moves forward
+        while (index >= next + window) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting to write frame " + index, e);
+            }
+        }
+        pending.put(index, frame);
+
+        Object ready;
+        while ((ready = pending.remove(next)) != null) {
+            if (ready == SKIPPED) {
+                delegate.skip(next);
+            } else if (ready instanceof byte[] encoded) {
+                delegate.writeEncoded(next, encoded);
+            } else {
+                delegate.write(next, (BufferedImage) ready);
+            }
+            next++;
+        }
+        notifyAll();
+    }
+
+    //this sink puts them back in order itself
+    @Override
+    public boolean requiresOrder() {
+        return false;
+    }
+
+    @Override
+    public synchronized void finish() throws IOException, InterruptedException {
+        if (!pending.isEmpty()) {
+            Logger.log(pending.size() + " frames were still waiting for frame " + (next) + " when the output was finished", LogLevel.Warn);
+        }
+        delegate.finish();
+    }
+}
@@ -0,0 +1,23 @@
+package util;
+
+//plain loop over FrameDiff.pixelDifference, the reference the vector kernel is tested against
+public class ScalarMaskKernel implements MaskKernel {
+    @Override
+    public void computeMask(int[] prev, int[] curr, long[] mask, int from, int to, int threshold) {
+        for (int base = from; base < to; base += 64) {
+            int end = Math.min(base + 64, to);
+            long bits = 0;
+            for (int p = base; p < end; p++) {
+                if (FrameDiff.pixelDifference(prev[p], curr[p]) > threshold) {
+                    bits |= 1L << p;
+                }
+            }
+            mask[base >>> 6] = bits;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "scalar";
+    }
+}
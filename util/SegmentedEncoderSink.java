@@ -0,0 +1,168 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+//--encode-segments=L: frames are saved as pngs like PngFrameSink, but every run of L frames is encoded on its own as soon as
+//all of its frames are in, while the processors are still working on later ones. Each segment is a separate libx264 run, so
+//it starts on a keyframe and the segments are joined with the concat demuxer without encoding again
+public class SegmentedEncoderSink extends PngFrameSink {
+    private static final int FIRST_INDEX = 1; //processors write frame 1 first, frame 0 has no diff
+
+    private final String outputPath;
+    private final int fps;
+    private final int segmentFrames;
+    private final File segmentDir;
+    private final ExecutorService encoders;
+    private final Map<Integer, Integer> framesIn = new HashMap<>(); //frames written or skipped per segment
+    private final Map<Integer, Future<File>> encoded = new HashMap<>();
+    private long encodeNanos;
+
+    public SegmentedEncoderSink(String outputPath, int fps, int segmentFrames, int encoderThreads) {
+        super(outputPath, fps);
+        this.outputPath = outputPath;
+        this.fps = fps;
+        this.segmentFrames = Math.max(1, segmentFrames);
+        this.segmentDir = new File(outputPath, "segments");
+        this.encoders = Executors.newFixedThreadPool(Math.max(1, encoderThreads));
+        segmentDir.mkdirs();
+    }
+
+    @Override
+    public void write(int index, BufferedImage frame) throws IOException {
+        super.write(index, frame);
+        frameDone(index);
+    }
+
+    @Override
+    public void writeEncoded(int index, byte[] encoded) throws IOException {
+        super.writeEncoded(index, encoded);
+        frameDone(index);
+    }
+
+    @Override
+    public void skip(int index) {
+        frameDone(index);
+    }
+
+    private synchronized void frameDone(int index) {
+        int segment = (index - FIRST_INDEX) / segmentFrames;
+        int count = framesIn.merge(segment, 1, Integer::sum);
+        if (count == segmentFrames) {
+            submit(segment);
+        }
+    }
+
+    //the last segment is usually short, and a frame count that was only an estimate can leave others incomplete
+    @Override
+    public void finish() throws IOException, InterruptedException {
+        long tailStart = System.nanoTime();
+        synchronized (this) {
+            for (int segment : framesIn.keySet()) {
+                if (!encoded.containsKey(segment)) submit(segment);
+            }
+        }
+        encoders.shutdown();
+
+        List<Integer> order = new ArrayList<>(encoded.keySet());
+        order.sort(null);
+        File list = new File(segmentDir, "segments.txt");
+        int joined = 0;
+        try (PrintWriter writer = new PrintWriter(list)) {
+            for (int segment : order) {
+                File file;
+                try {
+                    file = encoded.get(segment).get();
+                } catch (ExecutionException e) {
+                    throw new IOException("Encoding segment " + segment + " failed: " + e.getCause().getMessage(), e.getCause());
+                }
+                if (file != null) {
+                    writer.println("file '" + file.getName() + "'");
+                    joined++;
+                }
+            }
+        }
+        if (joined == 0) {
+            Logger.log("No frames were written, " + Constants.OUTPUT_VIDEO_FILE + " was not created", LogLevel.Warn);
+            return;
+        }
+
+        File output = new File(Constants.OUTPUT_VIDEO_FILE);
+        if (output.exists()) {
+            output.delete();
+        }
+        run(List.of("ffmpeg", "-v", "error", "-f", "concat", "-safe", "0", "-i", list.getPath(), "-c", "copy", output.getPath()));
+        Logger.log("Joined " + joined + " segments into " + output.getPath() + ", " + (System.nanoTime() - tailStart) / 1_000_000
+                + " ms after the last frame (" + encodeNanos / 1_000_000 + " ms of encoding in total)", LogLevel.Info);
+    }
+
+    private void submit(int segment) {
+        boolean complete = framesIn.get(segment) == segmentFrames;
+        encoded.put(segment, encoders.submit(() -> encode(segment, complete)));
+    }
+
+    //null when the segment has no frames at all
+    private File encode(int segment, boolean complete) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        int first = FIRST_INDEX + segment * segmentFrames;
+        int last = -1;
+        File firstFrame = null;
+        for (int index = first; index < first + segmentFrames; index++) {
+            if (frameFile(index).exists()) {
+                if (firstFrame == null) firstFrame = frameFile(index);
+                last = index;
+            }
+        }
+        if (firstFrame == null) {
+            return null;
+        }
+        if (complete) {
+            last = first + segmentFrames - 1;
+        }
+        //skipped frames repeat the one before so the segment keeps its length, a missing png would end the input early
+        File previous = firstFrame;
+        for (int index = first; index <= last; index++) {
+            File frame = frameFile(index);
+            if (frame.exists()) {
+                previous = frame;
+            } else {
+                Files.copy(previous.toPath(), frame.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        File out = new File(segmentDir, String.format("segment_%05d.mp4", segment));
+        run(List.of("ffmpeg", "-v", "error", "-y", "-framerate", String.valueOf(fps),
+                "-start_number", String.valueOf(first + 1), "-i", outputPath + "/" + VideoProcessing.framePattern(),
+                "-frames:v", String.valueOf(last - first + 1),
+                "-c:v", "libx264", "-pix_fmt", "yuv420p", out.getPath()));
+        synchronized (this) {
+            encodeNanos += System.nanoTime() - start;
+        }
+        Logger.log("Encoded segment " + segment + " (frames " + first + " to " + last + ")", LogLevel.Debug);
+        return out;
+    }
+
+    private File frameFile(int index) {
+        return new File(outputPath, VideoProcessing.frameName(index));
+    }
+
+    private static void run(List<String> command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).inheritIO().start();
+        int exit = process.waitFor();
+        if (exit != 0) {
+            throw new IOException(command.get(0) + " exited with code " + exit);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+//--segments=K: K ffmpeg processes extract disjoint time ranges of the video at the same time instead of one decoding it all
+//each seeks to a bit before its first frame and numbers its files with -start_number, so the folder looks like a single extraction
+//frames() hands the frames out in order as soon as they are written, while the later segments are still being decoded,
+//the sequential version and the parallel --pipeline/--encode paths use it, the others wait for every segment
+//the segments are cut from the video's duration, so ffprobe has to report one
+public class SegmentedFrameExtractor implements Closeable {
+    private static final long POLL_MS = 5;
+    private static final double SEEK_MARGIN_SECONDS = 1; //decoded before a segment so fps has frames on both sides of its first one
+
+    private final String outputFolder;
+    private final int[] starts; //first frame of every segment, starts[K] is the frame count
+    private final Process[] processes;
+
+    public SegmentedFrameExtractor(String inputVideoPath, String outputFolder, int fps, VideoInfo info, int segments) throws IOException {
+        this.outputFolder = outputFolder;
+        int total = info.frameCount(fps);
+        if (total <= 0) {
+            throw new IOException("Duration of " + inputVideoPath + " is unknown, it can't be split into segments");
+        }
+        segments = Math.max(1, Math.min(segments, total));
+        starts = new int[segments + 1];
+        for (int k = 0; k <= segments; k++) {
+            starts[k] = (int) ((long) total * k / segments);
+        }
+
+        processes = new Process[segments];
+        for (int k = 0; k < segments; k++) {
+            int count = starts[k + 1] - starts[k];
+            List<String> command = new ArrayList<>(List.of("ffmpeg", "-v", "error"));
+            command.addAll(inputFrom(inputVideoPath, starts[k], fps));
+            command.addAll(List.of("-frames:v", String.valueOf(count)));
+            command.addAll(VideoProcessing.frameCodec().ffmpegOptions());
+            command.addAll(List.of("-start_number", String.valueOf(starts[k] + 1), outputFolder + "/" + VideoProcessing.framePattern()));
+            processes[k] = new ProcessBuilder(command).inheritIO().start();
+        }
+        Logger.log("Extracting " + total + " frames in " + segments + " segments", LogLevel.Info);
+    }
+
+    public int frameCount() {
+        return starts[starts.length - 1];
+    }
+
+    //ffmpeg input and filter options that start at output frame firstFrame of the video at fps
+    //-ss before -i alone restarts the timestamps at the seek point, and fps then picks its frames on a grid
+    //that can be off by one from a run over the whole video. -copyts keeps the video's own timestamps, so fps
+    //numbers its frames like one ffmpeg over the whole video would, and select keeps those from firstFrame on
+    static List<String> inputFrom(String inputVideoPath, int firstFrame, int fps) {
+        List<String> options = new ArrayList<>();
+        String filter = "fps=" + fps;
+        if (firstFrame > 0) {
+            double seek = Math.max(0, firstFrame / (double) fps - SEEK_MARGIN_SECONDS);
+            options.addAll(List.of("-ss", String.format(Locale.ROOT, "%.6f", seek), "-copyts", "-start_at_zero"));
+            filter += String.format(Locale.ROOT, ",select='gte(t,%.6f)'", (firstFrame - 0.5) / fps);
+        }
+        options.addAll(List.of("-i", inputVideoPath, "-vf", filter));
+        return options;
+    }
+
+    //waits until every segment is written
+    public void await() throws IOException, InterruptedException {
+        for (int k = 0; k < processes.length; k++) {
+            int exit = processes[k].waitFor();
+            if (exit != 0) {
+                throw new IOException("ffmpeg failed on segment " + k + " (frames " + starts[k] + " to " + starts[k + 1] + "), exit code " + exit);
+            }
+        }
+    }
+
+    //the frames in order, each one as soon as it is complete
+    //ffmpeg writes a segment's files one after the other, so a frame is complete once the next one of its segment exists
+    //or its decoder is done. Frames a segment never wrote are left out, lastIndex keeps the numbers of the rest
+    public FrameSource frames() {
+        return new FrameSource() {
+            private int next = 0;
+            private int last = -1;
+
+            @Override
+            public BufferedImage read(BufferedImage reuse) throws IOException {
+                while (next < frameCount()) {
+                    int index = next++;
+                    File file = file(index);
+                    if (awaitComplete(index, file)) {
+                        last = index;
+                        return ImageDecoder.read(file, reuse);
+                    }
+                    Logger.log("Segment decoder never wrote " + file.getName() + ", skipping it", LogLevel.Warn);
+                }
+                return null;
+            }
+
+            @Override
+            public int lastIndex() {
+                return last;
+            }
+
+            @Override
+            public String frameName(int index) {
+                return VideoProcessing.frameName(index);
+            }
+
+            @Override
+            public int frameCount() {
+                return SegmentedFrameExtractor.this.frameCount();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    //false when the frame's segment finished without writing it
+    private boolean awaitComplete(int index, File file) throws IOException {
+        int k = segmentOf(index);
+        File following = index + 1 < starts[k + 1] ? file(index + 1) : null;
+        try {
+            while (processes[k].isAlive() && (following == null || !following.exists())) {
+                Thread.sleep(POLL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + file.getName(), e);
+        }
+        return file.exists();
+    }
+
+    private int segmentOf(int index) {
+        int k = 0;
+        while (index >= starts[k + 1]) k++;
+        return k;
+    }
+
+    private File file(int index) {
+        return new File(outputFolder, VideoProcessing.frameName(index));
+    }
+
+    //stops decoders that are still running, e.g. when processing failed
+    @Override
+    public void close() {
+        for (Process process : processes) {
+            if (process.isAlive()) process.destroy();
+        }
+    }
+}
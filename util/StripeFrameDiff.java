@@ -0,0 +1,192 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+//labels one frame on several threads for large frames where a single flood fill is too slow
+//pass 1 labels horizontal stripes independently with union-find, pass 2 merges labels across stripe borders
+//regions and their colors come out the same as with the flood fill in FrameDiff
+public class StripeFrameDiff extends FrameDiff {
+    private static final int MIN_STRIPE_ROWS = 16;
+
+    private final ForkJoinPool pool;
+    private final int stripeCount;
+    //parent[p] is -1 for unchanged pixels, otherwise a pixel with a smaller or equal index in the same region
+    private int[] parent = new int[0];
+    private int[] labels = new int[0];
+    private int[] stripeRoots = new int[0];
+    //each stripe measures its part of the regions, merged into regions afterwards
+    private RegionStats[] stripeRegions = new RegionStats[0];
+
+    public StripeFrameDiff(ForkJoinPool pool, int stripeCount) {
+        this(pool, stripeCount, new Random());
+    }
+
+    public StripeFrameDiff(ForkJoinPool pool, int stripeCount, Random random) {
+        super(random);
+        this.pool = pool;
+        this.stripeCount = stripeCount;
+    }
+
+    @Override
+    protected void labelRegions(int[] prev, int[] curr, int[] out, int width, int height, int[] colors) {
+        int n = width * height;
+        if (parent.length < n) {
+            parent = new int[n];
+            labels = new int[n];
+        }
+        int stripes = Math.max(1, Math.min(stripeCount, height / MIN_STRIPE_ROWS));
+        if (stripeRoots.length < stripes) {
+            stripeRoots = new int[stripes];
+            stripeRegions = new RegionStats[stripes];
+            for (int s = 0; s < stripes; s++) stripeRegions[s] = new RegionStats();
+        }
+        int rowsPerStripe = (height + stripes - 1) / stripes;
+        int[] parent = this.parent;
+        int[] labels = this.labels;
+
+        //the mask is split on 64 pixel boundaries instead of rows so no two stripes write the same word
+        ensureMask(n);
+        int maskChunk = ((n + stripes - 1) / stripes + 63) & ~63;
+        if ((tileStep > 0 || pyramidLevels() > 0) && !hasBackground()) {
+            //the tile and pyramid passes follow regions from tile to tile, so they run on this thread
+            computeFrameMask(prev, curr, width, height);
+        } else {
+            forEachStripe(stripes, s -> {
+                int from = Math.min(s * maskChunk, n);
+                int to = Math.min(from + maskChunk, n);
+                if (from < to) computeMask(prev, curr, from, to);
+            });
+        }
+        long[] mask = this.mask;
+
+        //pass 1: union with the left and upper neighbour inside the stripe
+        forEachStripe(stripes, s -> {
+            int from = Math.min(s * rowsPerStripe, height) * width;
+            int to = Math.min((s + 1) * rowsPerStripe, height) * width;
+            for (int p = from; p < to; p++) {
+                if ((mask[p >>> 6] & (1L << p)) == 0) {
+                    parent[p] = -1;
+                    continue;
+                }
+                parent[p] = p;
+                if (p % width > 0 && parent[p - 1] >= 0) union(parent, p, p - 1);
+                if (p - width >= from && parent[p - width] >= 0) union(parent, p, p - width);
+            }
+        });
+
+        //pass 2: merge regions that touch across a stripe border, only one row per border so this stays on one thread
+        for (int s = 1; s < stripes; s++) {
+            int rowStart = Math.min(s * rowsPerStripe, height) * width;
+            if (rowStart >= n) break;
+            for (int p = rowStart; p < rowStart + width; p++) {
+                if (parent[p] >= 0 && parent[p - width] >= 0) union(parent, p, p - width);
+            }
+        }
+
+        //every region's root is its lowest pixel, so numbering roots in index order matches the flood fill's scan order
+        forEachStripe(stripes, s -> {
+            int from = Math.min(s * rowsPerStripe, height) * width;
+            int to = Math.min((s + 1) * rowsPerStripe, height) * width;
+            int roots = 0;
+            for (int p = from; p < to; p++) {
+                labels[p] = parent[p] < 0 ? -1 : root(parent, p);
+                if (labels[p] == p) roots++;
+            }
+            stripeRoots[s] = roots;
+        });
+        int next = 0;
+        for (int s = 0; s < stripes; s++) {
+            int roots = stripeRoots[s];
+            stripeRoots[s] = next;
+            next += roots;
+        }
+
+        //parent is not needed anymore, roots store their region number in it
+        forEachStripe(stripes, s -> {
+            int from = Math.min(s * rowsPerStripe, height) * width;
+            int to = Math.min((s + 1) * rowsPerStripe, height) * width;
+            int number = stripeRoots[s];
+            for (int p = from; p < to; p++) {
+                if (labels[p] == p) parent[p] = number++;
+            }
+        });
+        int regionCount = next;
+        forEachStripe(stripes, s -> {
+            RegionStats stats = stripeRegions[s];
+            stats.reset(regionCount);
+            int rowEnd = Math.min((s + 1) * rowsPerStripe, height);
+            for (int y = Math.min(s * rowsPerStripe, height); y < rowEnd; y++) {
+                int rowStart = y * width;
+                int x = 0;
+                while (x < width) {
+                    int p = rowStart + x;
+                    if (labels[p] < 0) {
+                        if (render) out[p] = curr[p];
+                        x++;
+                        continue;
+                    }
+                    int label = labels[p];
+                    int left = x;
+                    while (x + 1 < width && labels[rowStart + x + 1] == label) x++;
+                    int region = parent[label];
+                    if (render) Arrays.fill(out, rowStart + left, rowStart + x + 1, colors[region % colors.length]);
+                    stats.addRun(region, y, left, x);
+                    x++;
+                }
+            }
+        });
+        regions.reset(regionCount);
+        for (int s = 0; s < stripes; s++) {
+            regions.merge(stripeRegions[s]);
+        }
+    }
+
+    //the smaller root always becomes the parent, that keeps parent[p] <= p
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        if (rootA < rootB) {
+            parent[rootB] = rootA;
+        } else if (rootB < rootA) {
+            parent[rootA] = rootB;
+        }
+    }
+
+    //path halving, only used while a single thread owns every pixel the path can reach
+    private static int find(int[] parent, int p) {
+        while (parent[p] != p) {
+            parent[p] = parent[parent[p]];
+            p = parent[p];
+        }
+        return p;
+    }
+
+    //read only version for when stripes look up roots in other stripes at the same time
+    private static int root(int[] parent, int p) {
+        while (parent[p] != p) {
+            p = parent[p];
+        }
+        return p;
+    }
+
+    private void forEachStripe(int stripes, IntConsumer body) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(stripes);
+        for (int s = 0; s < stripes; s++) {
+            int stripe = s;
+            tasks.add(ForkJoinTask.adapt(() -> body.accept(stripe)));
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+}
@@ -0,0 +1,108 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+//--track: repaints every region of a diff frame in the color of its track before passing the frame on
+//tracks have to be followed frame by frame, so this sink takes frames in order; the processors already put
+//frames from parallel workers or other ranks back in order for ordered sinks, which also joins the tracks at
+//the borders of their chunks. Region stats may come in any order from any thread before their frame
+public class TrackingFrameSink implements FrameSink {
+    private final FrameSink delegate;
+    private final RegionTracker tracker;
+    private final Map<Integer, RegionStats> pending = new HashMap<>();
+    private int[] stack = new int[1024];
+    private long[] repainted = new long[0];
+    private long trackNanos;
+
+    public TrackingFrameSink(FrameSink delegate, int maxDistance, int minArea) {
+        this.delegate = delegate;
+        this.tracker = new RegionTracker(maxDistance, minArea);
+    }
+
+    @Override
+    public void writeRegions(int index, RegionStats regions) throws IOException {
+        RegionStats copy = regions.copy();
+        synchronized (pending) {
+            pending.put(index, copy);
+        }
+        delegate.writeRegions(index, regions);
+    }
+
+    @Override
+    public void write(int index, BufferedImage frame) throws IOException {
+        RegionStats regions;
+        synchronized (pending) {
+            regions = pending.remove(index);
+        }
+        if (regions == null) {
+            Logger.log("No region stats for frame " + index + ", written without tracks", LogLevel.Warn);
+            delegate.write(index, frame);
+            return;
+        }
+        long start = System.nanoTime();
+        int[] tracks = tracker.track(regions);
+        BufferedImage out = frame;
+        if (out.getType() != BufferedImage.TYPE_INT_ARGB) {
+            //decoded png payloads come back as byte images, drawImage would round the translucent colors
+            out = new BufferedImage(frame.getWidth(), frame.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            int[] data = ((DataBufferInt) out.getRaster().getDataBuffer()).getData();
+            int[] pixels = FrameDiff.argbPixels(frame, data);
+            if (pixels != data) System.arraycopy(pixels, 0, data, 0, data.length);
+        }
+        repaint(((DataBufferInt) out.getRaster().getDataBuffer()).getData(), out.getWidth(), out.getHeight(), regions, tracks);
+        trackNanos += System.nanoTime() - start;
+        delegate.write(index, out);
+    }
+
+    @Override
+    public void skip(int index) throws IOException {
+        synchronized (pending) {
+            pending.remove(index);
+        }
+        delegate.skip(index);
+    }
+
+    @Override
+    public void finish() throws IOException, InterruptedException {
+        Logger.log(tracker.trackCount() + " tracks, tracking and repainting took " + trackNanos / 1_000_000 + " ms", LogLevel.Info);
+        delegate.finish();
+    }
+
+    //painted pixels are the translucent ones, the copied frame pixels are opaque, so each region is flooded again
+    //from its first pixel over translucent neighbours; that is the same 4-connected region FrameDiff painted
+    private void repaint(int[] pixels, int width, int height, RegionStats regions, int[] tracks) {
+        int words = (pixels.length + 63) >>> 6;
+        if (repainted.length < words) {
+            repainted = new long[words];
+        } else {
+            Arrays.fill(repainted, 0, words, 0L);
+        }
+        for (int r = 0; r < regions.count(); r++) {
+            if (tracks[r] == 0) continue;
+            int color = RegionTracker.trackColor(tracks[r]);
+            int top = 0;
+            stack[top++] = regions.minY(r) * width + regions.topX(r);
+            while (top > 0) {
+                int p = stack[--top];
+                if (!toRepaint(pixels, p)) continue;
+                repainted[p >>> 6] |= 1L << p;
+                pixels[p] = color;
+                int x = p % width;
+                if (top + 4 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+                if (x > 0) stack[top++] = p - 1;
+                if (x < width - 1) stack[top++] = p + 1;
+                if (p >= width) stack[top++] = p - width;
+                if (p + width < width * height) stack[top++] = p + width;
+            }
+        }
+    }
+
+    private boolean toRepaint(int[] pixels, int p) {
+        return (repainted[p >>> 6] & (1L << p)) == 0 && (pixels[p] >>> 24) != 0xff;
+    }
+}
@@ -0,0 +1,21 @@
+package util;
+
+public class VideoInfo {
+    public final int width;
+    public final int height;
+    public final double duration; //seconds
+
+    public VideoInfo(int width, int height, double duration) {
+        this.width = width;
+        this.height = height;
+        this.duration = duration;
+    }
+
+    //number of frames the fps filter produces for this video, -1 when ffprobe didn't report a duration
+    public int frameCount(int fps) {
+        if (duration <= 0) {
+            return -1;
+        }
+        return (int) Math.round(duration * fps);
+    }
+}
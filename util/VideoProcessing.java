@@ -1,11 +1,59 @@
 package util;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
 
 public class VideoProcessing {
+    //--frame-format and --png-level, set by Main before any frame is written
+    private static volatile FrameCodec frameCodec = new PngFrameCodec(-1);
+
+    public static void setFrameCodec(FrameCodec codec) {
+        frameCodec = codec;
+    }
+
+    //--frame-format and --png-level, the same for the three versions
+    public static void configure(Options options) {
+        if (options.has("frame-format") || options.has("png-level")) {
+            setFrameCodec(FrameCodec.select(options.get("frame-format", "png"), options.getInt("png-level", -1)));
+        }
+    }
+
+    public static FrameCodec frameCodec() {
+        return frameCodec;
+    }
 
     public void extractFrames(String inputVideoPath, String outputFolder, int fps) throws IOException, InterruptedException {
+        clearFolder(outputFolder);
+        List<String> codecOptions = frameCodec.ffmpegOptions();
+        String command = String.format("ffmpeg -i %s -vf fps=%d %s%s/%s",
+                //vf= video filter => fps is a filter
+                //%%04d frames will be numbered with a 4digit zero padded integer
+                inputVideoPath, fps, codecOptions.isEmpty() ? "" : String.join(" ", codecOptions) + " ", outputFolder, framePattern());
+        executeFFmpegCommand(command);
+    }
+
+    //--segments=K: the same files, decoded by K ffmpeg processes at once
+    public void extractFrames(String inputVideoPath, String outputFolder, int fps, int segments) throws IOException, InterruptedException {
+        if (segments <= 1) {
+            extractFrames(inputVideoPath, outputFolder, fps);
+            return;
+        }
+        try (SegmentedFrameExtractor extractor = startExtraction(inputVideoPath, outputFolder, fps, segments)) {
+            extractor.await();
+        }
+    }
+
+    //starts the K decoders and returns straight away, frames() can be read while they are still extracting
+    public SegmentedFrameExtractor startExtraction(String inputVideoPath, String outputFolder, int fps, int segments) throws IOException, InterruptedException {
+        VideoInfo info = probe(inputVideoPath);
+        clearFolder(outputFolder);
+        return new SegmentedFrameExtractor(inputVideoPath, outputFolder, fps, info, segments);
+    }
+
+    private static void clearFolder(String outputFolder) {
         // Check if the folder exists and is not empty
         File folder = new File(outputFolder);
         if (!folder.exists()) {
@@ -19,25 +67,103 @@ public class VideoProcessing {
                 }
             }
         }
-        String command = String.format("ffmpeg -i %s -vf fps=%d %s/frame_%%04d.png",
-                //vf= video filter => fps is a filter
-                //%%04d frames will be numbered with a 4digit zero padded integer
-                inputVideoPath, fps, outputFolder);
-        executeFFmpegCommand(command);
     }
+
     public void makeVideo(String inputImgPath, String outputFolder, int fps) throws IOException, InterruptedException {
         Logger.log("Output folder is "+ inputImgPath, LogLevel.Warn);
         File outputFile = new File(outputFolder);
         if (outputFile.exists()) {
             outputFile.delete(); // Delete the file if it exists
         }
-        String command = String.format("ffmpeg -framerate %d -i %s/frame_%%04d.png -c:v libx264 -pix_fmt yuv420p %s",
+        String command = String.format("ffmpeg -framerate %d -i %s/%s -c:v libx264 -pix_fmt yuv420p %s",
                 // -c:v libx264 = codec to use to encode the video
                 //-pix_fmt yuv420p pixel format for compatibility
-                fps, inputImgPath, outputFolder);
+                fps, inputImgPath, framePattern(), outputFolder);
         executeFFmpegCommand(command);
     }
 
+    //starts ffmpeg decoding straight to a pipe, no png files are written
+    public RawVideoFrameSource openFrameStream(String inputVideoPath, int fps) throws IOException, InterruptedException {
+        VideoInfo info = probe(inputVideoPath);
+        Logger.log("Streaming " + info.width + "x" + info.height + " frames from " + inputVideoPath, LogLevel.Info);
+        return new RawVideoFrameSource(inputVideoPath, fps, info);
+    }
+
+    //only frames [firstFrame, firstFrame + frameCount) of the stream, used when every rank decodes its own part
+    public RawVideoFrameSource openFrameStream(String inputVideoPath, int fps, int firstFrame, int frameCount) throws IOException, InterruptedException {
+        VideoInfo info = probe(inputVideoPath);
+        Logger.log("Streaming frames " + firstFrame + " to " + (firstFrame + frameCount) + " from " + inputVideoPath, LogLevel.Info);
+        return new RawVideoFrameSource(inputVideoPath, fps, info, firstFrame, frameCount);
+    }
+
+    //--encode pipes processed frames into ffmpeg while they are produced, otherwise they are saved as files for makeVideo
+    //--encode-segments=L saves files too but encodes every finished run of L frames on --encoders=N ffmpeg processes
+    public FrameSink openFrameSink(Options options, String outputPath, int fps) throws IOException {
+        //--no-render keeps only the region stats, so there are no frames to write or encode
+        FrameSink frames = options.has("no-render") ? null : openVideoSink(options, outputPath, fps);
+        if (frames != null && options.has("track")) {
+            frames = new TrackingFrameSink(frames, options.getInt("track-distance", 48), options.getInt("track-min-area", 16));
+        }
+        if (!options.has("regions") && !options.has("no-render")) {
+            return frames;
+        }
+        String path = options.get("regions", "true");
+        if (path.equals("true") || path.equals("false")) path = Constants.REGIONS_FILE;
+        String export = options.get("regions-export", null);
+        if (export != null && !export.equals("csv") && !export.equals("json")) {
+            Logger.log("Unknown --regions-export format " + export + ", only the binary file is written", LogLevel.Warn);
+            export = null;
+        }
+        return new RegionMetadataSink(frames, path, export);
+    }
+
+    private FrameSink openVideoSink(Options options, String outputPath, int fps) {
+        if (options.has("encode")) {
+            return new EncoderFrameSink(Constants.OUTPUT_VIDEO_FILE, fps);
+        }
+        if (options.has("encode-segments")) {
+            return new SegmentedEncoderSink(outputPath, fps, options.getInt("encode-segments", 4 * fps), options.getInt("encoders", 2));
+        }
+        return new PngFrameSink(outputPath, fps);
+    }
+
+    public VideoInfo probe(String inputVideoPath) throws IOException, InterruptedException {
+        List<String> command = List.of("ffprobe", "-v", "error", "-select_streams", "v:0",
+                "-show_entries", "stream=width,height:format=duration",
+                "-of", "default=noprint_wrappers=1", inputVideoPath);
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        int width = 0, height = 0;
+        double duration = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                //lines look like width=1920
+                String[] parts = line.split("=", 2);
+                if (parts.length != 2 || parts[1].equals("N/A")) continue;
+                switch (parts[0]) {
+                    case "width" -> width = Integer.parseInt(parts[1]);
+                    case "height" -> height = Integer.parseInt(parts[1]);
+                    case "duration" -> duration = Double.parseDouble(parts[1]);
+                }
+            }
+        }
+        process.waitFor();
+        if (width <= 0 || height <= 0) {
+            throw new IOException("Could not read video size from " + inputVideoPath);
+        }
+        return new VideoInfo(width, height, duration);
+    }
+
+    //same naming ffmpeg uses for extracted frames, index is 0 based
+    public static String frameName(int index) {
+        return String.format("frame_%04d.", index + 1) + frameCodec.extension();
+    }
+
+    //frameName as an ffmpeg image sequence pattern
+    public static String framePattern() {
+        return "frame_%04d." + frameCodec.extension();
+    }
+
     private Process executeFFmpegCommand(String command) throws IOException, InterruptedException {
         ProcessBuilder processBuilder = new ProcessBuilder(command.split(" "));
         processBuilder.inheritIO();